@@ -0,0 +1,54 @@
+package eu.darken.rxshell.cmd;
+
+/**
+ * Bounds how many commands may wait in a session's queue and decides what happens to those that don't fit.
+ * <p>Commands of a batch count one by one, a batch that is larger than the capacity is only admitted into an empty queue.
+ * Commands that are turned away return {@link Cmd.ExitCode#REJECTED}.
+ * Commands that were already written to the shell don't count.
+ *
+ * @see RxCmdShell.Builder#admission(Admission)
+ * @see RxCmdShell.Session#getRejectedCount()
+ */
+public class Admission {
+    enum Mode {
+        REJECT, BLOCK, SHED
+    }
+
+    final int capacity;
+    final Mode mode;
+
+    Admission(int capacity, Mode mode) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity needs to be at least 1");
+        this.capacity = capacity;
+        this.mode = mode;
+    }
+
+    /**
+     * If the queue is full, new commands are rejected right away.
+     */
+    public static Admission reject(int capacity) {
+        return new Admission(capacity, Mode.REJECT);
+    }
+
+    /**
+     * If the queue is full, submission blocks the subscribing thread until there is room.
+     * <p>Don't subscribe on a thread the results are delivered on.
+     * An interrupted submitter gets its command rejected.
+     */
+    public static Admission block(int capacity) {
+        return new Admission(capacity, Mode.BLOCK);
+    }
+
+    /**
+     * If the queue is full, the queued command with the lowest {@link Cmd.Priority} is rejected to make room, the oldest among equals.
+     * <p>That is the new command itself if its priority is lower than that of all others.
+     */
+    public static Admission shed(int capacity) {
+        return new Admission(capacity, Mode.SHED);
+    }
+
+    @Override
+    public String toString() {
+        return "Admission(capacity=" + capacity + ", mode=" + mode + ")";
+    }
+}
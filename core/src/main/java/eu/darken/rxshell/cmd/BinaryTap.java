@@ -0,0 +1,79 @@
+package eu.darken.rxshell.cmd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import eu.darken.rxshell.shell.ByteTap;
+import timber.log.Timber;
+
+/**
+ * Passes a command's raw {@code STDOUT} bytes to its {@link ByteSink}.
+ * <p>The marker is searched for in the raw bytes, everything before it is the command's output.
+ * The marker itself is left unconsumed, so it is read as a line and the {@link Harvester} can finish the command.
+ * <p>The last {@code marker length - 1} bytes of each chunk are held back, they could be the start of the marker.
+ */
+class BinaryTap implements ByteTap {
+    private static final String TAG = "RXS:BinaryTap";
+    private final MarkerMatcher matcher;
+    private final ByteSink sink;
+    private boolean done = false;
+    private boolean failed = false;
+
+    BinaryTap(MarkerMatcher matcher, ByteSink sink) {
+        this.matcher = matcher;
+        this.sink = sink;
+    }
+
+    static BinaryTap forOutput(Cmd cmd) {
+        return new BinaryTap(cmd.getMarkerMatcher(), cmd.getOutputSink());
+    }
+
+    @Override
+    public synchronized int onBytes(byte[] buffer, int offset, int length) {
+        if (done) return 0;
+
+        final int markerIndex = matcher.indexOf(buffer, offset, length);
+        if (markerIndex >= 0) {
+            write(buffer, offset, markerIndex - offset);
+            done = true;
+            if (!failed) sink.onComplete();
+            return markerIndex - offset;
+        }
+
+        final int consumable = length - (matcher.length() - 1);
+        if (consumable <= 0) return 0;
+        write(buffer, offset, consumable);
+        return consumable;
+    }
+
+    private void write(byte[] buffer, int offset, int length) {
+        // After a failed write the bytes are still consumed, to stay in sync with the shell
+        if (failed || length == 0) return;
+        try {
+            sink.write(ByteBuffer.wrap(buffer, offset, length));
+        } catch (IOException e) {
+            Timber.tag(TAG).e(e, "Failed to write to %s", sink);
+            failed = true;
+            sink.onError(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Ends the sink if the marker was never seen, e.g. because the shell died.
+     */
+    synchronized void abort() {
+        if (done) return;
+        done = true;
+        if (!failed) sink.onError(new IOException("Output ended before the command finished."));
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryTap(matcher=" + matcher + ", sink=" + sink + ", done=" + done + ")";
+    }
+}
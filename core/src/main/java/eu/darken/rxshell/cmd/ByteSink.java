@@ -0,0 +1,138 @@
+package eu.darken.rxshell.cmd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+
+import io.reactivex.rxjava3.processors.FlowableProcessor;
+import timber.log.Timber;
+
+/**
+ * Receives a command's raw {@code STDOUT} bytes, see {@link Cmd.Builder#outputSink(ByteSink)}.
+ * <p>All methods are called on the thread that reads the shell's output, blocking them blocks the shell.
+ */
+public abstract class ByteSink {
+    private static final String TAG = "RXS:ByteSink";
+
+    /**
+     * @param buffer only valid for the duration of this call.
+     */
+    public abstract void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * The command's output ended normally.
+     */
+    public void onComplete() {
+
+    }
+
+    /**
+     * The command's output ended prematurely or could not be written.
+     * No further bytes will be written to this sink.
+     */
+    public void onError(Throwable error) {
+
+    }
+
+    /**
+     * Writes to the given channel, the channel is not closed.
+     */
+    public static ByteSink channel(WritableByteChannel channel) {
+        return new ByteSink() {
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+
+            @Override
+            public String toString() {
+                return "ByteSink.channel(" + channel + ")";
+            }
+        };
+    }
+
+    /**
+     * Emits a copy of each chunk of bytes, followed by {@code onComplete} or {@code onError}.
+     * <p>Mind the backpressure, see {@link Cmd.Builder#outputProcessor(FlowableProcessor)}.
+     */
+    public static ByteSink processor(FlowableProcessor<ByteBuffer> processor) {
+        return new ByteSink() {
+            @Override
+            public void write(ByteBuffer buffer) {
+                final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer).flip();
+                processor.onNext(copy);
+            }
+
+            @Override
+            public void onComplete() {
+                processor.onComplete();
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                processor.onError(error);
+            }
+
+            @Override
+            public String toString() {
+                return "ByteSink.processor(" + processor + ")";
+            }
+        };
+    }
+
+    /**
+     * @return a sink whose bytes can be read from {@link PipeSink#getInputStream()}, the stream ends with the command's output.
+     */
+    public static PipeSink pipe() throws IOException {
+        return new PipeSink(Pipe.open());
+    }
+
+    public static class PipeSink extends ByteSink {
+        private final Pipe pipe;
+        private final InputStream inputStream;
+
+        PipeSink(Pipe pipe) {
+            this.pipe = pipe;
+            this.inputStream = Channels.newInputStream(pipe.source());
+        }
+
+        /**
+         * Has to be read concurrently, writes block once the pipe is full.
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) pipe.sink().write(buffer);
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            close();
+        }
+
+        private void close() {
+            try {
+                pipe.sink().close();
+            } catch (IOException e) {
+                Timber.tag(TAG).w(e, "Failed to close pipe.");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ByteSink.PipeSink(pipe=" + pipe + ")";
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package eu.darken.rxshell.cmd;
+
+import eu.darken.rxshell.shell.LineTap;
+import eu.darken.rxshell.shell.LineView;
+
+/**
+ * Hands a command's lines straight from the reader's buffer to its {@link Cmd.LineCallback}.
+ * <p>Once the marker shows up, it is passed on as a normal line so the {@link Harvester} can finish the command.
+ */
+class CallbackTap implements LineTap {
+    private final MarkerMatcher matcher;
+    private final Cmd.LineCallback callback;
+    private final int markerGap;
+    private volatile boolean done = false;
+
+    /**
+     * @param markerGap number of characters between the content and the marker that are not part of the content.
+     */
+    CallbackTap(MarkerMatcher matcher, Cmd.LineCallback callback, int markerGap) {
+        this.matcher = matcher;
+        this.callback = callback;
+        this.markerGap = markerGap;
+    }
+
+    static CallbackTap forOutput(Cmd cmd) {
+        return new CallbackTap(cmd.getMarkerMatcher(), cmd.getOutputCallback(), 0);
+    }
+
+    static CallbackTap forError(Cmd cmd) {
+        // Same content split as ErrorHarvester.ErrorSub
+        return new CallbackTap(cmd.getMarkerMatcher(), cmd.getErrorCallback(), 1);
+    }
+
+    @Override
+    public boolean onLine(LineView line) {
+        if (done) return false;
+
+        final int markerIndex = matcher.indexOf(line);
+        if (markerIndex < 0) {
+            callback.onLine(line);
+            return true;
+        }
+
+        done = true;
+        if (markerIndex > 0) callback.onLine(line.subSequence(0, Math.max(markerIndex - markerGap, 0)));
+        line.narrow(markerIndex, line.length());
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "CallbackTap(matcher=" + matcher + ", done=" + done + ")";
+    }
+}
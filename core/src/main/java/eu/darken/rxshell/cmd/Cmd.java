@@ -2,6 +2,8 @@ package eu.darken.rxshell.cmd;
 
 import android.support.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -14,18 +16,80 @@ import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.processors.FlowableProcessor;
 
 public class Cmd {
+    /**
+     * The tenant of commands that don't set one, see {@link Builder#tenant(String)}.
+     */
+    public static final String DEFAULT_TENANT = "default";
+
     public static class ExitCode extends RxProcess.ExitCode {
         public static final int INITIAL = -99;
+        public static final int REJECTED = -4;
         public static final int SHELL_DIED = -3;
         public static final int TIMEOUT = -2;
         public static final int EXCEPTION = -1;
     }
 
+    /**
+     * Decides which queued command is written to the shell next.
+     * Commands of a higher priority go first, within the same priority those with the earliest {@link Builder#deadline(long)}.
+     * Commands without a deadline are due one second after their submission.
+     * Commands that are already running are never interrupted.
+     */
+    public enum Priority {
+        /**
+         * E.g. something the user is waiting for.
+         */
+        HIGH,
+        NORMAL,
+        /**
+         * E.g. long running background work.
+         */
+        LOW
+    }
+
+    /**
+     * Whether a command needs root, decides where {@link RxCmdShellRouter} sends it.
+     */
+    public enum Privilege {
+        /**
+         * The router decides, based on what it learned about this command before.
+         */
+        UNKNOWN,
+        /**
+         * Runs fine without root.
+         */
+        USER,
+        ROOT
+    }
+
+    /**
+     * Receives lines without them being copied into Strings.
+     *
+     * @see Builder#outputCallback(LineCallback)
+     */
+    public interface LineCallback {
+        /**
+         * @param line only valid for the duration of this call, use {@link CharSequence#toString()} to keep it.
+         */
+        void onLine(CharSequence line);
+    }
+
     private final String marker = UUID.randomUUID().toString();
+    private MarkerMatcher markerMatcher;
     private final List<String> commands;
     private final long timeout;
+    private final boolean isolated;
+    private final boolean interruptible;
+    private final boolean idempotent;
+    private final Priority priority;
+    private final Privilege privilege;
+    private final long deadline;
+    private final String tenant;
     private final FlowableProcessor<String> outputProcessor;
     private final FlowableProcessor<String> errorProcessor;
+    private final LineCallback outputCallback;
+    private final LineCallback errorCallback;
+    private final ByteSink outputSink;
     private final boolean useOutputBuffer;
     private final boolean useErrorBuffer;
 
@@ -37,10 +101,20 @@ public class Cmd {
     Cmd(Builder builder) {
         commands = builder.commands;
         timeout = builder.timeout;
+        isolated = builder.isolated;
+        interruptible = builder.interruptible;
+        idempotent = builder.idempotent;
+        priority = builder.priority;
+        privilege = builder.privilege;
+        deadline = builder.deadline;
+        tenant = builder.tenant;
         useOutputBuffer = builder.outputBuffer;
         useErrorBuffer = builder.errorBuffer;
         outputProcessor = builder.outputProcessor;
         errorProcessor = builder.errorProcessor;
+        outputCallback = builder.outputCallback;
+        errorCallback = builder.errorCallback;
+        outputSink = builder.outputSink;
     }
 
     public FlowableProcessor<String> getOutputProcessor() {
@@ -51,6 +125,21 @@ public class Cmd {
         return errorProcessor;
     }
 
+    @Nullable
+    public LineCallback getOutputCallback() {
+        return outputCallback;
+    }
+
+    @Nullable
+    public LineCallback getErrorCallback() {
+        return errorCallback;
+    }
+
+    @Nullable
+    public ByteSink getOutputSink() {
+        return outputSink;
+    }
+
     public List<String> getCommands() {
         return commands;
     }
@@ -59,10 +148,71 @@ public class Cmd {
         return marker;
     }
 
+    /**
+     * The matcher for {@link #getMarker()}, created once and reused for every line of this command.
+     */
+    public final MarkerMatcher getMarkerMatcher() {
+        if (markerMatcher == null) markerMatcher = new MarkerMatcher(getMarker());
+        return markerMatcher;
+    }
+
     public long getTimeout() {
         return timeout;
     }
 
+    /**
+     * @see Builder#isolated(boolean)
+     */
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    /**
+     * @see Builder#interruptible(boolean)
+     */
+    public boolean isInterruptible() {
+        return interruptible;
+    }
+
+    /**
+     * @see Builder#idempotent(boolean)
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * @return {@code true} if it can run again without the caller noticing, i.e. it's idempotent and nothing streams its output.
+     */
+    boolean isRepeatable() {
+        return idempotent
+                && outputProcessor == null && errorProcessor == null
+                && outputCallback == null && errorCallback == null
+                && outputSink == null;
+    }
+
+    public Privilege getPrivilege() {
+        return privilege;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the {@link System#currentTimeMillis()} by which this command has to be started, {@code 0} if there is none.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @see Builder#tenant(String)
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
     public boolean isOutputBufferEnabled() {
         return useOutputBuffer;
     }
@@ -167,7 +317,17 @@ public class Cmd {
         final List<String> commands = new ArrayList<>();
         FlowableProcessor<String> outputProcessor;
         FlowableProcessor<String> errorProcessor;
+        LineCallback outputCallback;
+        LineCallback errorCallback;
+        ByteSink outputSink;
         long timeout = 0;
+        boolean isolated = false;
+        boolean interruptible = false;
+        boolean idempotent = false;
+        Priority priority = Priority.NORMAL;
+        Privilege privilege = Privilege.UNKNOWN;
+        long deadline = 0;
+        String tenant = DEFAULT_TENANT;
         boolean outputBuffer = true;
         boolean errorBuffer = true;
 
@@ -180,7 +340,17 @@ public class Cmd {
             errorBuffer(source.isErrorBufferEnabled());
             outputProcessor(source.getOutputProcessor());
             errorProcessor(source.getErrorProcessor());
+            outputCallback(source.getOutputCallback());
+            errorCallback(source.getErrorCallback());
+            outputSink(source.getOutputSink());
             timeout(source.getTimeout());
+            isolated(source.isIsolated());
+            interruptible(source.isInterruptible());
+            idempotent(source.isIdempotent());
+            priority(source.getPriority());
+            privilege(source.getPrivilege());
+            deadline(source.getDeadline());
+            tenant(source.getTenant());
         }
 
         /**
@@ -244,7 +414,58 @@ public class Cmd {
         }
 
         /**
-         * A timeout for this command. If the timeout is reached the whole {@link RxCmdShell.Session} is forcibly killed.
+         * Hands each line of {@code STDOUT} to the callback as a view on the reader's buffer.
+         * <p>No {@link String} is created for the line, which makes this the cheapest way to filter or parse large outputs.
+         * The view is only valid for the duration of the callback.
+         * <p>The callback is invoked on the thread that reads the shell's output, blocking it blocks the shell.
+         * <p>Lines consumed by the callback are neither buffered (see {@link #outputBuffer(boolean)}) nor passed to {@link #outputProcessor(FlowableProcessor)}.
+         *
+         * @param callback the callback to use
+         */
+        public Builder outputCallback(LineCallback callback) {
+            this.outputCallback = callback;
+            return this;
+        }
+
+        /**
+         * @see #outputCallback(LineCallback)
+         */
+        public Builder errorCallback(LineCallback callback) {
+            this.errorCallback = callback;
+            return this;
+        }
+
+        /**
+         * Streams the raw bytes of {@code STDOUT} to the sink, instead of splitting them into lines.
+         * <p>Use this for binary output, e.g. {@code cat} on an image. No line separator is needed at the end of the output.
+         * <p>The sink is called on the thread that reads the shell's output, blocking it blocks the shell.
+         * It ends with {@link ByteSink#onComplete()}, or {@link ByteSink#onError(Throwable)} if the command didn't finish.
+         * <p>The output is neither buffered (see {@link #outputBuffer(boolean)}) nor passed to {@link #outputProcessor(FlowableProcessor)} or {@link #outputCallback(LineCallback)}.
+         *
+         * @param sink the sink to use
+         */
+        public Builder outputSink(ByteSink sink) {
+            this.outputSink = sink;
+            return this;
+        }
+
+        /**
+         * Convenience method for {@link #outputSink(ByteSink)} using {@link ByteSink#channel(WritableByteChannel)}
+         */
+        public Builder outputChannel(WritableByteChannel channel) {
+            return outputSink(ByteSink.channel(channel));
+        }
+
+        /**
+         * Convenience method for {@link #outputSink(ByteSink)} using {@link ByteSink#processor(FlowableProcessor)}
+         */
+        public Builder outputBytes(FlowableProcessor<ByteBuffer> processor) {
+            return outputSink(ByteSink.processor(processor));
+        }
+
+        /**
+         * A timeout for this command. If the timeout is reached the whole {@link RxCmdShell.Session} is forcibly killed,
+         * unless the command is {@link #isolated(boolean)}.
          * <p>A command that timed out returns {@link Cmd.ExitCode#TIMEOUT} from {@link Result#getExitCode()}.
          *
          * @param timeout in milliseconds
@@ -254,6 +475,97 @@ public class Cmd {
             return this;
         }
 
+        /**
+         * Runs this command in a background subshell that is watched by the shell itself.
+         * <p>If the {@link #timeout(long)} is reached, only this command and its child processes are killed,
+         * the session and the queued commands survive. The result then has {@link Cmd.ExitCode#TIMEOUT}.
+         * <p>The subshell can't change the session, i.e. {@code cd} or variable assignments don't persist, and its stdin is empty.
+         * On timeout, the command's whole process tree is killed, found via {@code /proc}.
+         * Needs {@code sleep}, {@code kill} and {@code readlink} on the device.
+         * With toolbox's {@code sleep} (API 21-22) the timeout is rounded up to whole seconds.
+         *
+         * @param isolated defaults to {@code false}.
+         */
+        public Builder isolated(boolean isolated) {
+            this.isolated = isolated;
+            return this;
+        }
+
+        /**
+         * What happens if the result is disposed while this command is running.
+         * <p>A command that is still queued is always dropped.
+         * One that is running keeps running and its remaining output is discarded, unless it's interruptible.
+         * Then only this command and its child processes are killed, the session and the other commands are not affected.
+         * <p>To be stoppable, it runs in a background subshell like an {@link #isolated(boolean)} command, with the same limits:
+         * it can't change the session and its stdin is empty. Nothing else is written to the session while it runs, i.e. it isn't pipelined or coalesced.
+         *
+         * @param interruptible defaults to {@code false}.
+         */
+        public Builder interruptible(boolean interruptible) {
+            this.interruptible = interruptible;
+            return this;
+        }
+
+        /**
+         * Marks the command as read-only, it doesn't change anything and may run more than once.
+         * <p>Lets {@link RxCmdShellPool} hedge it, see {@link Hedging}.
+         *
+         * @param idempotent defaults to {@code false}.
+         */
+        public Builder idempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+            return this;
+        }
+
+        /**
+         * Lets this command overtake queued commands of a lower priority.
+         *
+         * @param priority defaults to {@link Priority#NORMAL}
+         */
+        public Builder priority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Only used by {@link RxCmdShellRouter}, a single session runs everything it's given.
+         *
+         * @param privilege defaults to {@link Privilege#UNKNOWN}
+         */
+        public Builder privilege(Privilege privilege) {
+            if (privilege == null) throw new IllegalArgumentException("Privilege can't be null");
+            this.privilege = privilege;
+            return this;
+        }
+
+        /**
+         * The latest time at which this command should be written to the shell.
+         * <p>If it's still queued by then, it's not run at all and returns {@link Cmd.ExitCode#TIMEOUT} right away.
+         * Unlike {@link #timeout(long)}, this doesn't kill the session.
+         * Once written, only {@link #timeout(long)} applies.
+         * <p>The earliest deadline goes first. Commands without one count as due one second after their submission,
+         * so a deadline only moves this command ahead of those if it's due sooner.
+         *
+         * @param deadline in {@link System#currentTimeMillis()}, {@code 0} for none. Defaults to {@code 0}.
+         */
+        public Builder deadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Tags the command with the component that submitted it.
+         * <p>Sessions with {@link Fairness} share their time between tenants by weight and keep {@link TenantStats} per tenant.
+         * Without, the tag has no effect.
+         *
+         * @param tenant defaults to {@link #DEFAULT_TENANT}.
+         */
+        public Builder tenant(String tenant) {
+            if (tenant == null) throw new IllegalArgumentException("Tenant can't be null");
+            this.tenant = tenant;
+            return this;
+        }
+
         /**
          * Builds the command.
          */
@@ -284,19 +596,23 @@ public class Cmd {
          * This is a convenience method for single-shot execution.
          * <p>It's behavior depends on {@link RxCmdShell#isAlive()}.
          * <br>If the shell is alive, then the existing session is used and kept open.
-         * <br>If the shell wasn't alive, a new session is created and closed after the command has terminated.
+         * <br>If the shell wasn't alive, a new session is created and closed after the command has terminated,
+         * or once no other one-shot came for {@link RxCmdShell.Builder#linger(long, java.util.concurrent.TimeUnit)}.
          *
          * @param shell the {@link RxCmdShell} to use.
          * @return a {@link Single} that will emit a {@link Cmd.Result} when the command has terminated.
          */
         public Single<Result> submit(RxCmdShell shell) {
             final Cmd cmd = build();
-            return shell.isAlive().flatMap(wasAlive ->
-                    shell.open().flatMap(session ->
-                            session.submit(cmd).flatMap(result -> {
-                                if (!wasAlive) return session.close().map(integer -> result);
-                                else return Single.just(result);
-                            })));
+            if (shell.lingers()) return shell.submitLingering(cmd);
+            return shell.isAlive().flatMap(wasAlive -> {
+                shell.countOneShot(wasAlive);
+                return shell.open().flatMap(session ->
+                        session.submit(cmd).flatMap(result -> {
+                            if (!wasAlive) return session.close().map(integer -> result);
+                            else return Single.just(result);
+                        }));
+            });
         }
 
         /**
@@ -314,6 +630,7 @@ public class Cmd {
                         if (cmd.outputProcessor != null) {
                             cmd.outputProcessor.onComplete();
                         }
+                        if (cmd.outputSink != null) cmd.outputSink.onError(err);
                         if (cmd.errorProcessor != null) {
                             cmd.errorProcessor.onNext(err.toString());
                             cmd.errorProcessor.onComplete();
@@ -1,20 +1,31 @@
 package eu.darken.rxshell.cmd;
 
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.pump.Pump;
 import eu.darken.rxshell.shell.RxShell;
+import io.reactivex.rxjava3.core.BackpressureStrategy;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.FlowableEmitter;
+import io.reactivex.rxjava3.core.FlowableOnSubscribe;
 import io.reactivex.rxjava3.core.Observable;
-import io.reactivex.rxjava3.core.ObservableOnSubscribe;
-import io.reactivex.rxjava3.core.Observer;
+import io.reactivex.rxjava3.core.Scheduler;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.core.SingleEmitter;
 import io.reactivex.rxjava3.core.SingleOnSubscribe;
@@ -26,144 +37,415 @@ import timber.log.Timber;
 public class CmdProcessor {
     static final String TAG = "RXS:CmdProcessor";
     final Harvester.Factory factory;
+    final ExecutionConfig executionConfig;
+    final int pipelineDepth;
+    final Coalescing coalescing;
+    final Admission admission;
+    final Fairness fairness;
+    // Only kept with fairness
+    final ConcurrentHashMap<String, TenantStats.Recorder> tenantStats;
     final BehaviorSubject<Boolean> idlePub = BehaviorSubject.createDefault(true);
-    final LinkedBlockingDeque<QueueCmd> cmdQueue = new LinkedBlockingDeque<>();
+    final CmdQueue cmdQueue;
+    final AtomicLong rejected = new AtomicLong();
     final AtomicBoolean attached = new AtomicBoolean(false);
+    final AtomicInteger threads = new AtomicInteger();
+    volatile Pump.Lane lane;
+    volatile Pipeline pipeline;
+    final AtomicInteger drainWip = new AtomicInteger();
     volatile boolean dead = false;
+    volatile Runnable onStopped;
 
     public CmdProcessor(Harvester.Factory factory) {
+        this(factory, Options.defaults());
+    }
+
+    public CmdProcessor(Harvester.Factory factory, Options options) {
         this.factory = factory;
+        this.executionConfig = options.executionConfig;
+        this.pipelineDepth = options.pipelineDepth;
+        this.coalescing = options.coalescing;
+        this.admission = options.admission;
+        this.fairness = options.fairness;
+        this.tenantStats = fairness != null ? new ConcurrentHashMap<>() : null;
+        this.cmdQueue = new CmdQueue(CmdProcessor::expire, admission, fairness);
     }
 
     public Single<Cmd.Result> submit(Cmd cmd) {
-        return Single.create((SingleOnSubscribe<Cmd.Result>) emitter -> {
-            QueueCmd item = new QueueCmd(cmd, emitter);
-            synchronized (CmdProcessor.this) {
-                if (dead) {
-                    if (RXSDebug.isDebug()) Timber.tag(TAG).w("Processor wasn't running: %s", cmd);
-                    item.exitCode(Cmd.ExitCode.SHELL_DIED);
-                    item.emit();
-                } else {
-                    if (RXSDebug.isDebug()) Timber.tag(TAG).d("Submitted: %s", cmd);
-                    cmdQueue.add(item);
-                }
-            }
+        final Single<Cmd.Result> result = Single.create((SingleOnSubscribe<Cmd.Result>) emitter -> {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).d("Submitted: %s", cmd);
+            final QueueCmd item = new QueueCmd(cmd, emitter);
+            item.stats = recorder(cmd);
+            emitter.setCancellable(() -> cancel(item));
+            enqueue(item);
         }).doOnSuccess(item -> {
             if (RXSDebug.isDebug()) {
                 Timber.tag(TAG).log(item.getErrors() != null && item.getErrors().size() > 0 ? Log.WARN : Log.INFO, "Processed: %s", item);
             }
         });
+        final Scheduler delivery = executionConfig.getDeliveryScheduler();
+        return delivery != null ? result.observeOn(delivery) : result;
+    }
+
+    /**
+     * Submits the commands as one batch.
+     * <p>The whole batch is written to the shell at once and its results are parsed in one go.
+     *
+     * @return a {@link Flowable} that emits the results in the order of the commands.
+     */
+    public Flowable<Cmd.Result> submitAll(Collection<Cmd> cmds) {
+        final Flowable<Cmd.Result> results = Flowable.create((FlowableOnSubscribe<Cmd.Result>) emitter -> {
+            if (cmds.isEmpty()) {
+                emitter.onComplete();
+                return;
+            }
+            // Shutdown can fail queued commands while others are delivered
+            final FlowableEmitter<Cmd.Result> serialized = emitter.serialize();
+            final List<QueueCmd> members = new ArrayList<>(cmds.size());
+            int index = 0;
+            for (Cmd cmd : cmds) {
+                final QueueCmd member = new QueueCmd(cmd, serialized, ++index == cmds.size());
+                member.stats = recorder(cmd);
+                members.add(member);
+            }
+            if (RXSDebug.isDebug()) Timber.tag(TAG).d("Submitted batch of %d", members.size());
+            final QueueCmd batch = new QueueCmd(members);
+            serialized.setCancellable(() -> cancel(batch));
+            enqueue(batch);
+        }, BackpressureStrategy.BUFFER);
+        final Scheduler delivery = executionConfig.getDeliveryScheduler();
+        return delivery != null ? results.observeOn(delivery) : results;
+    }
+
+    @Nullable
+    private TenantStats.Recorder recorder(Cmd cmd) {
+        if (tenantStats == null) return null;
+        final String tenant = cmd.getTenant();
+        TenantStats.Recorder recorder = tenantStats.get(tenant);
+        if (recorder == null) {
+            final TenantStats.Recorder created = new TenantStats.Recorder(tenant, fairness.weightOf(tenant));
+            recorder = tenantStats.putIfAbsent(tenant, created);
+            if (recorder == null) recorder = created;
+        }
+        return recorder;
     }
 
+    /**
+     * Lock-free, if the processor ended before or while we add the item, it is failed by {@link #drainDead()}.
+     */
+    private void enqueue(QueueCmd item) {
+        if (dead) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).w("Processor wasn't running: %s", item);
+            if (item.claim()) fail(item);
+            return;
+        }
+        if (!item.isPoisonPill() && item.deadline() > 0) {
+            final long delay = item.deadline() - System.currentTimeMillis();
+            if (delay <= 0) {
+                if (item.claim()) expire(item);
+                return;
+            }
+            item.expiry = Schedulers.computation().scheduleDirect(() -> {
+                if (cmdQueue.claim(item)) expire(item);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        final List<QueueCmd> turnedAway = cmdQueue.offer(item);
+        if (turnedAway != null) {
+            for (QueueCmd rejectedItem : turnedAway) reject(rejectedItem);
+        }
+        final Pump.Lane lane = this.lane;
+        if (lane != null) lane.wakeup();
+        // The dispatcher sets 'dead' before draining, so either it sees our item or we see 'dead'
+        if (dead) drainDead();
+    }
+
+    /**
+     * The subscriber is gone, also called once the result was emitted.
+     * <p>Queued commands are claimed, so the queue skips them. Others are dropped before they are written,
+     * or, if they are already in flight, their output is discarded by the {@link Pipeline}.
+     */
+    private void cancel(QueueCmd item) {
+        if (item.isBatch() ? item.batch.get(item.batch.size() - 1).emitted : item.emitted) return;
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Cancelled: %s", item);
+        item.cancelled = true;
+        if (item.isBatch()) {
+            for (QueueCmd member : item.batch) member.cancelled = true;
+        }
+        if (cmdQueue.claim(item)) {
+            if (item.expiry != null) item.expiry.dispose();
+            return;
+        }
+        final Pipeline pipeline = this.pipeline;
+        if (pipeline != null) pipeline.cancelled();
+    }
+
+    /**
+     * Starts processing the queue on this session.
+     * <p>Commands are written as long as the {@link Pipeline} has room, results are emitted as their markers come in.
+     * The session's lines are parsed by one long-lived {@link Pipeline}, there are no per-command subscriptions.
+     * <p>With {@link Coalescing}, single commands are collected into a group until its window closes or it's full.
+     */
     public synchronized void attach(RxShell.Session session) {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("attach(%s)", session);
         if (attached.getAndSet(true)) throw new IllegalStateException("Processor is already attached!");
 
-        Observable
-                .create((ObservableOnSubscribe<QueueCmd>) emitter -> {
-                    while (true) {
-                        QueueCmd item = cmdQueue.take();
-                        if (item.isPoisonPill()) {
-                            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Poison pill!");
+        final Pump.Lane lane = session.getPumpLane();
+        this.lane = lane;
+        final Pipeline pipeline = new Pipeline(session, factory, pipelineDepth, new Pipeline.Listener() {
+            @Override
+            public void onResult(QueueCmd item) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).v("onResult(%s)", item);
+                deliver(session, item);
+            }
+
+            @Override
+            public void onCapacity() {
+                if (lane != null) lane.wakeup();
+            }
+        });
+        this.pipeline = pipeline;
+
+        session.waitFor().subscribeOn(executionConfig.getDispatchScheduler()).subscribe(integer -> {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Attached session ended!");
+            cmdQueue.stop();
+            if (lane != null) lane.wakeup();
+        });
+
+        if (lane != null) {
+            lane.add(new Pump.Task() {
+                final Coalescing.Group group = coalescing != null ? new Coalescing.Group(coalescing) : null;
+                // Taken from the queue, but the pipeline had no room for it yet
+                QueueCmd pending;
+                boolean wakeupScheduled = false;
+
+                @Override
+                public int pump() {
+                    // Leave commands in the queue until they can be written, later ones may overtake them
+                    if (pending == null && !pipeline.hasRoom()) return IDLE;
+                    final QueueCmd item = pending != null ? pending : next();
+                    pending = null;
+                    if (item == null) return IDLE;
+                    if (item.isPoisonPill()) {
+                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("Poison pill!");
+                        shutdown();
+                        return DONE;
+                    }
+                    if (unbatch(item)) return BUSY;
+                    if (item.isCancelled()) return BUSY;
+                    if (item.isExpired()) {
+                        expire(item);
+                        return BUSY;
+                    }
+                    if (!pipeline.canWrite(item)) {
+                        pending = item;
+                        return IDLE;
+                    }
+                    idlePub.onNext(false);
+                    pipeline.write(item);
+                    return BUSY;
+                }
+
+                @Nullable
+                private QueueCmd next() {
+                    if (group == null) return cmdQueue.poll();
+                    while (!group.isFull()) {
+                        final QueueCmd item = cmdQueue.poll();
+                        if (item == null) break;
+                        if (!group.offer(item)) {
+                            if (group.isEmpty()) return item;
+                            cmdQueue.pushBack(item);
                             break;
-                        } else {
-                            idlePub.onNext(false);
-                            emitter.onNext(item);
                         }
                     }
-                    synchronized (CmdProcessor.this) {
-                        dead = true;
-                        while (!cmdQueue.isEmpty()) {
-                            final QueueCmd item = cmdQueue.poll();
-                            if (item.isPoisonPill()) continue;
-                            item.exitCode(Cmd.ExitCode.SHELL_DIED);
-                            item.emit();
-                        }
+                    if (group.isEmpty()) return null;
+                    final long remaining = group.remainingNanos();
+                    if (group.isFull() || remaining <= 0 || !cmdQueue.isEmpty()) {
+                        wakeupScheduled = false;
+                        return group.drain();
                     }
-                    emitter.onComplete();
-                    idlePub.onNext(true);
-                    idlePub.onComplete();
-                })
-                .subscribeOn(Schedulers.io())
-                .concatMap(item -> {
-                    if (RXSDebug.isDebug()) Timber.tag(TAG).d("Processing: %s", item.cmd);
-                    final Observable<OutputHarvester.Crop> outputs = session.outputLines()
-                            .compose(upstream -> factory.forOutput(upstream, item.cmd))
-                            .doOnEach(n -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v("outputLine():doOnEach: %s", n); })
-                            .toObservable().cache();
-                    outputs.subscribe(s -> {}, e -> {});
-
-                    final Observable<Harvester.Crop> errors = session.errorLines()
-                            .compose(upstream -> factory.forError(upstream, item.cmd))
-                            .doOnEach(n -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v("errorLines():doOnEach: %s", n); })
-                            .toObservable().cache();
-                    errors.subscribe(s -> {}, e -> {});
-
-                    try {
-                        for (String write : item.cmd.getCommands()) session.writeLine(write, false);
-                        session.writeLine("echo " + item.cmd.getMarker() + " $?", false);
-                        session.writeLine("echo " + item.cmd.getMarker() + " >&2", true);
-                    } catch (IOException e) {
-                        return Observable.just(item.exitCode(Cmd.ExitCode.SHELL_DIED));
+                    if (!wakeupScheduled) {
+                        // The lane may be backing off for longer than the window
+                        wakeupScheduled = true;
+                        Schedulers.computation().scheduleDirect(lane::wakeup, remaining, TimeUnit.NANOSECONDS);
                     }
+                    return null;
+                }
+            });
+            return;
+        }
 
-                    Observable<QueueCmd> cropWait = Observable.merge(outputs, errors)
-                            .toList().toObservable()
-                            .map(crops -> {
-                                boolean isComplete = true;
-                                for (Harvester.Crop crop : crops) {
-                                    if (crop instanceof OutputHarvester.Crop) {
-                                        item.exitCode(((OutputHarvester.Crop) crop).exitCode);
-                                        item.output(crop.buffer);
-                                    } else {
-                                        item.errors(crop.buffer);
-                                    }
-                                    if (!crop.isComplete) isComplete = false;
-                                }
-                                if (crops.size() != 2 || !isComplete) item.exitCode(Cmd.ExitCode.SHELL_DIED);
-                                return item;
-                            });
-                    if (item.cmd.getTimeout() > 0) {
-                        cropWait = cropWait.timeout(item.cmd.getTimeout(), TimeUnit.MILLISECONDS).onErrorReturn(error -> {
-                            if (error instanceof TimeoutException) {
-                                if (RXSDebug.isDebug()) Timber.tag(TAG).w("Command timed out: %s", item);
-                                return item.exitCode(Cmd.ExitCode.TIMEOUT);
-                            } else throw new RuntimeException(error);
-                        });
+        executionConfig.getDispatchScheduler().scheduleDirect(() -> {
+            final Coalescing.Group group = coalescing != null ? new Coalescing.Group(coalescing) : null;
+            threads.incrementAndGet();
+            try {
+                while (true) {
+                    // Leave commands in the queue until they can be written, later ones may overtake them
+                    pipeline.awaitRoom();
+                    QueueCmd item = cmdQueue.take();
+                    if (item.isPoisonPill()) {
+                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("Poison pill!");
+                        break;
                     }
-                    return cropWait;
-                })
-                .doOnEach(n -> { if (RXSDebug.isDebug()) Timber.tag(TAG).d("Post zip: %s", n); })
-                .subscribe(new Observer<QueueCmd>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
-                        session.waitFor().subscribeOn(Schedulers.io()).subscribe(integer -> {
-                            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Attached session ended!");
-                            cmdQueue.add(QueueCmd.poisonPill());
-                        });
+                    if (unbatch(item)) continue;
+                    if (group != null && group.offer(item)) item = coalesce(group);
+                    idlePub.onNext(false);
+                    pipeline.awaitCapacity(item);
+                    if (item.isCancelled()) continue;
+                    if (item.isExpired()) {
+                        expire(item);
+                        continue;
                     }
+                    pipeline.write(item);
+                }
+            } catch (InterruptedException e) {
+                Timber.tag(TAG).w("Dispatch interrupted.");
+            } finally {
+                threads.decrementAndGet();
+            }
+            shutdown();
+        });
+    }
 
-                    @Override
-                    public void onNext(QueueCmd item) {
-                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("onNext(%s)", item);
-                        if (item.exitCode < 0) {
-                            cmdQueue.addFirst(QueueCmd.poisonPill());
-                            session.cancel().subscribe();
-                        }
-                        item.resultEmitter.onSuccess(item.buildResult());
-                        idlePub.onNext(cmdQueue.isEmpty());
-                    }
+    /**
+     * Blocks until the group's window closed or it's full.
+     *
+     * @return the group's commands.
+     */
+    private QueueCmd coalesce(Coalescing.Group group) throws InterruptedException {
+        while (!group.isFull()) {
+            final long remaining = group.remainingNanos();
+            final QueueCmd next = remaining > 0 ? cmdQueue.poll(remaining) : cmdQueue.poll();
+            if (next == null) break;
+            if (!group.offer(next)) {
+                // Written after this group
+                cmdQueue.pushBack(next);
+                break;
+            }
+        }
+        return group.drain();
+    }
 
-                    @Override
-                    public void onError(Throwable error) {
-                        if (RXSDebug.isDebug()) Timber.tag(TAG).v(error, "onError()");
-                    }
+    /**
+     * Batches with commands that have to run alone are put back into the queue as single commands.
+     *
+     * @return {@code true} if the batch was split up.
+     */
+    private boolean unbatch(QueueCmd item) {
+        if (!item.isBatch()) return false;
+        boolean barrier = false;
+        for (QueueCmd member : item.batch) barrier |= Pipeline.isBarrier(member.cmd);
+        if (!barrier) return false;
+        for (int i = item.batch.size() - 1; i >= 0; i--) cmdQueue.pushBack(item.batch.get(i));
+        return true;
+    }
 
-                    @Override
-                    public void onComplete() {
-                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("onComplete()");
-                    }
-                });
+    private void deliver(RxShell.Session session, QueueCmd item) {
+        if (item.exitCode < 0 && !item.keepSession) {
+            cmdQueue.stop();
+            final Pump.Lane lane = this.lane;
+            if (lane != null) lane.wakeup();
+            session.cancel().subscribe();
+        }
+        item.emit();
+        final Pipeline pipeline = this.pipeline;
+        idlePub.onNext(cmdQueue.isEmpty() && (pipeline == null || pipeline.isEmpty()));
+    }
+
+    /**
+     * Called by the dispatcher, it doesn't touch the queue afterwards.
+     */
+    private void shutdown() {
+        dead = true;
+        drainDead();
+        idlePub.onNext(true);
+        idlePub.onComplete();
+        final Runnable stopped = onStopped;
+        if (stopped != null) stopped.run();
+    }
+
+    /**
+     * Runs once the dispatcher stopped, i.e. it no longer needs its thread. Set it before {@link #attach(RxShell.Session)}.
+     */
+    void onStopped(Runnable action) {
+        this.onStopped = action;
+    }
+
+    /**
+     * Fails everything that is still queued, submitters that raced with {@link #shutdown()} help out.
+     * Only one thread drains at a time, the queue has a single consumer.
+     */
+    private void drainDead() {
+        if (drainWip.getAndIncrement() != 0) return;
+        int missed = 1;
+        while (true) {
+            QueueCmd item;
+            while ((item = cmdQueue.pollItem()) != null) {
+                if (!item.isPoisonPill()) fail(item);
+            }
+            missed = drainWip.addAndGet(-missed);
+            if (missed == 0) break;
+        }
+    }
+
+    private static void fail(QueueCmd item) {
+        complete(item, Cmd.ExitCode.SHELL_DIED);
+    }
+
+    /**
+     * The command's deadline passed before it was written, the session is fine.
+     */
+    private static void expire(QueueCmd item) {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).w("Deadline passed while queued: %s", item);
+        complete(item, Cmd.ExitCode.TIMEOUT);
+    }
+
+    /**
+     * The queue was full, see {@link Admission}.
+     */
+    private void reject(QueueCmd item) {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).w("Queue is full, rejecting: %s", item);
+        if (item.expiry != null) item.expiry.dispose();
+        rejected.addAndGet(item.isBatch() ? item.batch.size() : 1);
+        complete(item, Cmd.ExitCode.REJECTED);
+    }
+
+    private static void complete(QueueCmd item, int exitCode) {
+        for (QueueCmd member : item.isBatch() ? item.batch : Collections.singletonList(item)) {
+            member.exitCode(exitCode);
+            member.emit();
+        }
+    }
+
+    /**
+     * @return {@code 1} while the dispatch loop blocks a thread, {@code 0} if there is none or it runs on a {@link Pump}.
+     */
+    public int getThreadCount() {
+        return threads.get();
+    }
+
+    /**
+     * @return how many commands are waiting to be written to the shell, batches count per command. Only a snapshot.
+     */
+    public int getQueueSize() {
+        return cmdQueue.size();
+    }
+
+    /**
+     * @return how many commands were turned away because the queue was full.
+     * @see Admission
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the stats of each tenant that submitted commands, by tenant. Empty without {@link Fairness}.
+     */
+    public Map<String, TenantStats> getTenantStats() {
+        final Map<String, TenantStats> stats = new TreeMap<>();
+        if (tenantStats != null) {
+            for (TenantStats.Recorder recorder : tenantStats.values()) stats.put(recorder.tenant, recorder.snapshot());
+        }
+        return stats;
     }
 
     public Observable<Boolean> isIdle() {
@@ -171,15 +453,146 @@ public class CmdProcessor {
     }
 
     static class QueueCmd {
+        static final int NEW = 0;
+        static final int QUEUED = 1;
+        static final int CLAIMED = 2;
         final Cmd cmd;
         final SingleEmitter<Cmd.Result> resultEmitter;
+        final FlowableEmitter<Cmd.Result> batchEmitter;
+        final boolean lastOfBatch;
+        final List<QueueCmd> batch;
+        final long queuedAt = System.nanoTime();
+        // Only set if the tenant's stats are kept
+        long writtenAt;
+        TenantStats.Recorder stats;
+        private final int batchPriority;
+        private final long batchDeadline;
+        // Assigned by the queue, keeps the order of equal commands
+        long sequence;
+        // Assigned by the queue, its deadline or when it's due without one, see CmdQueue#NO_DEADLINE_SLACK
+        long due;
+        // NEW until admitted to the queue, CLAIMED by whoever takes it first: the dispatcher, the deadline timer, a cancellation or shedding
+        volatile int state = NEW;
+        Disposable expiry;
         int exitCode = Cmd.ExitCode.INITIAL;
+        // The command failed on its own, e.g. an isolated command that was killed
+        boolean keepSession = false;
+        // The subscriber is gone
+        volatile boolean cancelled = false;
+        volatile boolean emitted = false;
         List<String> output;
         List<String> errors;
 
         QueueCmd(Cmd cmd, SingleEmitter<Cmd.Result> resultEmitter) {
             this.cmd = cmd;
             this.resultEmitter = resultEmitter;
+            this.batchEmitter = null;
+            this.lastOfBatch = false;
+            this.batch = null;
+            this.batchPriority = 0;
+            this.batchDeadline = 0;
+        }
+
+        /**
+         * A command of a batch, results are emitted in order to the batch's emitter.
+         */
+        QueueCmd(Cmd cmd, FlowableEmitter<Cmd.Result> batchEmitter, boolean lastOfBatch) {
+            this.cmd = cmd;
+            this.resultEmitter = null;
+            this.batchEmitter = batchEmitter;
+            this.lastOfBatch = lastOfBatch;
+            this.batch = null;
+            this.batchPriority = 0;
+            this.batchDeadline = 0;
+        }
+
+        /**
+         * The queue entry for a whole batch.
+         * It has the highest priority of its commands and only expires once all of them have a deadline that passed.
+         */
+        QueueCmd(List<QueueCmd> batch) {
+            this.cmd = null;
+            this.resultEmitter = null;
+            this.batchEmitter = null;
+            this.lastOfBatch = false;
+            this.batch = batch;
+            int priority = Integer.MAX_VALUE;
+            long deadline = 0;
+            for (QueueCmd member : batch) {
+                priority = Math.min(priority, member.priority());
+                if (member.deadline() == 0) {
+                    deadline = Long.MAX_VALUE;
+                } else if (deadline != Long.MAX_VALUE) {
+                    deadline = Math.max(deadline, member.deadline());
+                }
+            }
+            this.batchPriority = priority;
+            this.batchDeadline = deadline == Long.MAX_VALUE ? 0 : deadline;
+        }
+
+        /**
+         * @return the {@link Cmd.Priority#ordinal()}, lower goes first.
+         */
+        int priority() {
+            return batch != null ? batchPriority : cmd.getPriority().ordinal();
+        }
+
+        long deadline() {
+            return batch != null ? batchDeadline : cmd.getDeadline();
+        }
+
+        /**
+         * @return a batch's first command's tenant.
+         */
+        String tenant() {
+            return batch != null ? batch.get(0).tenant() : cmd.getTenant();
+        }
+
+        /**
+         * @return {@code true} if there is nobody left to receive the results.
+         */
+        boolean isCancelled() {
+            if (!isBatch() || cancelled) return cancelled;
+            for (QueueCmd member : batch) {
+                if (!member.cancelled) return false;
+            }
+            return true;
+        }
+
+        boolean isExpired() {
+            final long deadline = deadline();
+            return deadline > 0 && deadline <= System.currentTimeMillis();
+        }
+
+        /**
+         * For commands that were never queued, see {@link CmdQueue#claim(QueueCmd)} otherwise.
+         *
+         * @return {@code true} if the caller is the first to take this command.
+         */
+        boolean claim() {
+            return take() != CLAIMED;
+        }
+
+        /**
+         * @return the state before, {@link #CLAIMED} if someone else was first.
+         */
+        int take() {
+            while (true) {
+                final int current = state;
+                if (current == CLAIMED) return CLAIMED;
+                if (STATE.compareAndSet(this, current, CLAIMED)) return current;
+            }
+        }
+
+        /**
+         * @return {@code false} if it was already claimed, e.g. cancelled before it was queued.
+         */
+        boolean admit() {
+            return STATE.compareAndSet(this, NEW, QUEUED);
+        }
+
+        boolean isClaimed() {
+            return state == CLAIMED;
         }
 
         QueueCmd exitCode(int exitCode) {
@@ -206,30 +619,144 @@ public class CmdProcessor {
         }
 
         void emit() {
-            resultEmitter.onSuccess(buildResult());
+            emitted = true;
+            if (stats != null) stats.record(this);
+            if (batchEmitter != null) {
+                batchEmitter.onNext(buildResult());
+                if (lastOfBatch) batchEmitter.onComplete();
+            } else {
+                resultEmitter.onSuccess(buildResult());
+            }
+        }
+
+        boolean isBatch() {
+            return batch != null;
         }
 
         boolean isPoisonPill() {
-            return cmd == null && resultEmitter == null;
+            return cmd == null && resultEmitter == null && batch == null;
         }
 
+        private static final AtomicIntegerFieldUpdater<QueueCmd> STATE = AtomicIntegerFieldUpdater.newUpdater(QueueCmd.class, "state");
+
         static QueueCmd poisonPill() {
             return new QueueCmd(null, null);
         }
 
         @Override
         public String toString() {
+            if (isBatch()) return "QueueCmd(batch.size()=" + batch.size() + ")";
             return "QueueCmd(command=" + cmd + ", exitCode=" + exitCode + ", output.size()=" + (output != null ? output.size() : null) + ", errors.size()=" + (errors != null ? errors.size() : null) + ")";
         }
     }
 
+    /**
+     * How a processor runs its queue, see {@link RxCmdShell.Builder} for the details of each option.
+     */
+    public static class Options {
+        final ExecutionConfig executionConfig;
+        final int pipelineDepth;
+        @Nullable final Coalescing coalescing;
+        @Nullable final Admission admission;
+        @Nullable final Fairness fairness;
+
+        Options(Builder builder) {
+            this.executionConfig = builder.executionConfig;
+            this.pipelineDepth = builder.pipelineDepth;
+            this.coalescing = builder.coalescing;
+            this.admission = builder.admission;
+            this.fairness = builder.fairness;
+        }
+
+        public static Options defaults() {
+            return builder().build();
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        @Override
+        public String toString() {
+            return "CmdProcessor.Options(pipelineDepth=" + pipelineDepth + ", coalescing=" + coalescing + ", admission=" + admission + ", fairness=" + fairness + ")";
+        }
+
+        public static class Builder {
+            ExecutionConfig executionConfig = ExecutionConfig.defaultConfig();
+            int pipelineDepth = 1;
+            Coalescing coalescing;
+            Admission admission;
+            Fairness fairness;
+
+            Builder() {
+
+            }
+
+            /**
+             * @param executionConfig where the command queue is processed and results are delivered.
+             */
+            public Builder executionConfig(ExecutionConfig executionConfig) {
+                this.executionConfig = executionConfig;
+                return this;
+            }
+
+            /**
+             * @param depth how many commands may be written to the shell before the first one finished.
+             *              {@code 1} waits for each command's output before writing the next one.
+             */
+            public Builder pipelineDepth(int depth) {
+                this.pipelineDepth = depth;
+                return this;
+            }
+
+            /**
+             * @param coalescing if set, single commands submitted in quick succession are written to the shell together.
+             *                   The group then runs like a pipelined batch, even if the pipeline depth is {@code 1}.
+             */
+            public Builder coalesce(@Nullable Coalescing coalescing) {
+                this.coalescing = coalescing;
+                return this;
+            }
+
+            /**
+             * @param admission if set, bounds the number of queued commands, see {@link Admission}.
+             */
+            public Builder admission(@Nullable Admission admission) {
+                this.admission = admission;
+                return this;
+            }
+
+            /**
+             * @param fairness if set, the session's time is shared between tenants by weight, see {@link Fairness}.
+             */
+            public Builder fairness(@Nullable Fairness fairness) {
+                this.fairness = fairness;
+                return this;
+            }
+
+            public Options build() {
+                if (executionConfig == null) throw new IllegalArgumentException("Execution config can't be null");
+                if (pipelineDepth < 1) throw new IllegalArgumentException("Pipeline depth needs to be at least 1");
+                return new Options(this);
+            }
+        }
+    }
+
     public static class Factory {
         private final Harvester.Factory harvesterFactory;
+        private final Options options;
+
+        public Factory(Harvester.Factory harvesterFactory) {
+            this(harvesterFactory, Options.defaults());
+        }
 
-        public Factory(Harvester.Factory harvesterFactory) {this.harvesterFactory = harvesterFactory;}
+        public Factory(Harvester.Factory harvesterFactory, Options options) {
+            this.harvesterFactory = harvesterFactory;
+            this.options = options;
+        }
 
         public CmdProcessor create() {
-            return new CmdProcessor(harvesterFactory);
+            return new CmdProcessor(harvesterFactory, options);
         }
     }
 }
@@ -0,0 +1,511 @@
+package eu.darken.rxshell.cmd;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.reactivex.rxjava3.internal.queue.MpscLinkedQueue;
+
+/**
+ * The queue between submitters and the dispatcher.
+ * <p>Any number of threads may {@link #offer(CmdProcessor.QueueCmd)} without locking, unless the {@link Admission} has to block or shed.
+ * Everything else is only called by the single consumer, i.e. the dispatch loop, or by whoever drains the queue after it ended.
+ * <p>The consumer moves offered commands into a heap, ordered by {@link Cmd.Priority}, then deadline, then submission.
+ * A command without a deadline is ordered as if it was due {@link #NO_DEADLINE_SLACK} after its submission.
+ * So only deadlines that are due sooner overtake it, and commands with deadlines can't starve it.
+ * Most commands have the default priority and no deadline, they only need submission order and go into a FIFO next to the heap.
+ * With {@link Fairness}, each tenant has its own heap instead. Tenants are served by start-time fair queueing:
+ * a tenant's next command is tagged with the virtual time at which it may start, the lowest tag goes first.
+ * Commands are {@link #claim(CmdProcessor.QueueCmd) claimed} when they are taken.
+ * Those that were already claimed by their deadline timer are skipped, those whose deadline passed are handed to the {@link Expiry}.
+ * <p>A waiting consumer is parked and unparked directly, which doesn't pin the carrier of a virtual thread.
+ * Submitters that shed commands need the heap too, it's then guarded by a {@link ReentrantLock} for the same reason.
+ */
+class CmdQueue {
+    private static final CmdProcessor.QueueCmd POISON_PILL = CmdProcessor.QueueCmd.poisonPill();
+    /**
+     * In milliseconds, how long after its submission a command without a deadline is due.
+     */
+    static final long NO_DEADLINE_SLACK = 1000;
+    private static final Comparator<CmdProcessor.QueueCmd> ORDER = (a, b) -> {
+        if (a.priority() != b.priority()) return Integer.compare(a.priority(), b.priority());
+        if (a.due != b.due) return Long.compare(a.due, b.due);
+        return Long.compare(a.sequence, b.sequence);
+    };
+    private static final int NORMAL = Cmd.Priority.NORMAL.ordinal();
+    private final Expiry expiry;
+    private final Admission admission;
+    private final Fairness fairness;
+    private final MpscLinkedQueue<CmdProcessor.QueueCmd> queue = new MpscLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only shedding submitters touch these besides the consumer, then they are guarded by the lock
+    private final boolean sharedHeap;
+    private final PriorityQueue<CmdProcessor.QueueCmd> ordered = new PriorityQueue<>(16, ORDER);
+    private final ArrayDeque<CmdProcessor.QueueCmd> plain = new ArrayDeque<>();
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    // Tenants with commands in their heap
+    private final List<Tenant> backlogged = new ArrayList<>();
+    private int tenantsSize = 0;
+    // The start tag of the last command that was taken
+    private long virtualTime = 0;
+    // Offered, but not yet moved into the heap
+    final AtomicInteger unordered = new AtomicInteger();
+    private long sequence = 0;
+    private volatile int orderedSize = 0;
+    // Put back by the consumer, taken before anything else
+    private final ConcurrentLinkedDeque<CmdProcessor.QueueCmd> front = new ConcurrentLinkedDeque<>();
+    // Admitted commands that weren't claimed yet
+    private final AtomicInteger size = new AtomicInteger();
+    private final Condition notFull = lock.newCondition();
+    private volatile int blocked = 0;
+    private volatile Thread waiter;
+    private volatile boolean stopped = false;
+
+    interface Expiry {
+        /**
+         * A claimed command whose deadline passed while it was queued.
+         */
+        void onExpired(CmdProcessor.QueueCmd item);
+    }
+
+    private static class Tenant {
+        // Virtual time per command
+        final long cost;
+        final PriorityQueue<CmdProcessor.QueueCmd> ordered = new PriorityQueue<>(16, ORDER);
+        boolean backlogged = false;
+        long start;
+        long finish;
+
+        Tenant(int weight) {
+            this.cost = Fairness.UNIT / weight;
+        }
+    }
+
+    CmdQueue(Expiry expiry) {
+        this(expiry, null);
+    }
+
+    CmdQueue(Expiry expiry, @Nullable Admission admission) {
+        this(expiry, admission, null);
+    }
+
+    /**
+     * @param admission {@code null} for an unbounded queue.
+     * @param fairness  {@code null} to ignore tenants.
+     */
+    CmdQueue(Expiry expiry, @Nullable Admission admission, @Nullable Fairness fairness) {
+        this.expiry = expiry;
+        this.admission = admission;
+        this.fairness = fairness;
+        this.sharedHeap = admission != null && admission.mode == Admission.Mode.SHED;
+    }
+
+    private static int weight(CmdProcessor.QueueCmd item) {
+        return item.isBatch() ? item.batch.size() : 1;
+    }
+
+    /**
+     * Can be called from any thread.
+     * <p>Nothing is queued if the item was claimed before, e.g. because it was cancelled.
+     *
+     * @return the commands that were turned away by the {@link Admission}, they are already claimed. {@code null} if none.
+     */
+    @Nullable
+    List<CmdProcessor.QueueCmd> offer(CmdProcessor.QueueCmd item) {
+        final int weight = weight(item);
+        if (admission == null || admission.mode == Admission.Mode.SHED) {
+            size.addAndGet(weight);
+        } else if (admission.mode == Admission.Mode.REJECT ? !tryReserve(weight) : !awaitReserve(weight)) {
+            return item.claim() ? Collections.singletonList(item) : null;
+        }
+        if (!item.admit()) {
+            release(weight);
+            return null;
+        }
+        if (!isPlain(item)) unordered.incrementAndGet();
+        queue.offer(item);
+        final Thread waiter = this.waiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+        if (admission != null && admission.mode == Admission.Mode.SHED && size.get() > admission.capacity) return shed();
+        return null;
+    }
+
+    private boolean tryReserve(int weight) {
+        while (true) {
+            final int current = size.get();
+            if (current > 0 && current + weight > admission.capacity) return false;
+            if (size.compareAndSet(current, current + weight)) return true;
+        }
+    }
+
+    /**
+     * Once stopped, the command is let in, the processor then fails it.
+     *
+     * @return {@code false} if the submitter was interrupted.
+     */
+    private boolean awaitReserve(int weight) {
+        if (tryReserve(weight)) return true;
+        lock.lock();
+        try {
+            // Read by release() after it freed room, so either it sees us or we see the room
+            blocked++;
+            while (!tryReserve(weight)) {
+                if (stopped) {
+                    size.addAndGet(weight);
+                    return true;
+                }
+                notFull.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blocked--;
+            lock.unlock();
+        }
+    }
+
+    private void release(int weight) {
+        size.addAndGet(-weight);
+        if (blocked > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rejects the lowest priority, oldest commands until the queue is within its capacity again.
+     * A single command that is larger than the capacity is kept.
+     */
+    @Nullable
+    private List<CmdProcessor.QueueCmd> shed() {
+        List<CmdProcessor.QueueCmd> shed = null;
+        lock.lock();
+        try {
+            transfer();
+            while (size.get() > admission.capacity) {
+                CmdProcessor.QueueCmd victim = null;
+                int live = 0;
+                for (CmdProcessor.QueueCmd candidate : fairness != null ? tenantQueued() : ordered) {
+                    if (candidate.isClaimed()) continue;
+                    live++;
+                    if (victim == null || candidate.priority() > victim.priority()
+                            || (candidate.priority() == victim.priority() && candidate.sequence < victim.sequence)) {
+                        victim = candidate;
+                    }
+                }
+                // Its head is the oldest, it can only lose against LOW commands
+                CmdProcessor.QueueCmd oldestPlain = null;
+                for (CmdProcessor.QueueCmd candidate : plain) {
+                    if (candidate.isClaimed()) continue;
+                    live++;
+                    if (oldestPlain == null) oldestPlain = candidate;
+                }
+                if (oldestPlain != null && (victim == null || oldestPlain.priority() > victim.priority()
+                        || (oldestPlain.priority() == victim.priority() && oldestPlain.sequence < victim.sequence))) {
+                    victim = oldestPlain;
+                }
+                if (victim == null || live == 1) break;
+                if (victim == oldestPlain) plain.remove(victim);
+                else if (fairness != null) removeTenantQueued(victim);
+                else ordered.remove(victim);
+                if (!claim(victim)) continue;
+                if (victim.expiry != null) victim.expiry.dispose();
+                if (shed == null) shed = new ArrayList<>();
+                shed.add(victim);
+            }
+            orderedSize = ordered.size() + plain.size() + tenantsSize;
+        } finally {
+            lock.unlock();
+        }
+        return shed;
+    }
+
+    /**
+     * Takes the command out of the queue, whoever gets there first: the consumer, its deadline timer or its cancellation.
+     *
+     * @return {@code true} if the caller is the first to take this command.
+     */
+    boolean claim(CmdProcessor.QueueCmd item) {
+        final int previous = item.take();
+        if (previous == CmdProcessor.QueueCmd.QUEUED) release(weight(item));
+        return previous != CmdProcessor.QueueCmd.CLAIMED;
+    }
+
+    /**
+     * Lets the consumer take a poison pill next, regardless of what is queued.
+     * Can be called from any thread.
+     */
+    void stop() {
+        stopped = true;
+        final Thread waiter = this.waiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+        if (blocked > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Consumer only, the item is returned by the next poll.
+     */
+    void pushBack(CmdProcessor.QueueCmd item) {
+        front.addFirst(item);
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the next item, a poison pill if stopped, or {@code null} if empty.
+     */
+    CmdProcessor.QueueCmd poll() {
+        if (stopped) return POISON_PILL;
+        return pollItem();
+    }
+
+    /**
+     * Ignores {@link #stop()}, for draining the queue once the consumer is gone.
+     *
+     * @return the next claimed command, or {@code null} if empty.
+     */
+    CmdProcessor.QueueCmd pollItem() {
+        final CmdProcessor.QueueCmd pushed = front.pollFirst();
+        if (pushed != null) return pushed;
+
+        while (true) {
+            final CmdProcessor.QueueCmd item;
+            if (sharedHeap) {
+                lock.lock();
+                try {
+                    item = next();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                item = next();
+            }
+            if (item == null) return null;
+            // Its deadline timer, its cancellation or shedding was faster
+            if (!claim(item)) continue;
+            if (item.expiry != null) item.expiry.dispose();
+            if (item.isExpired()) {
+                expiry.onExpired(item);
+                continue;
+            }
+            return item;
+        }
+    }
+
+    private boolean isPlain(CmdProcessor.QueueCmd item) {
+        return fairness == null && item.priority() == NORMAL && item.deadline() == 0;
+    }
+
+    @Nullable
+    private CmdProcessor.QueueCmd next() {
+        if (fairness != null) return nextFair();
+        if (ordered.isEmpty() && unordered.get() == 0) {
+            // Only plain commands, submission order it is
+            CmdProcessor.QueueCmd item = plain.pollFirst();
+            if (item == null) {
+                item = queue.poll();
+                if (item != null) {
+                    sequence(item);
+                    // Offered after we checked, it has to be ordered like any other
+                    if (!isPlain(item)) {
+                        ordered.add(item);
+                        unordered.decrementAndGet();
+                        item = null;
+                    }
+                }
+            }
+            if (item != null && unordered.get() == 0) {
+                orderedSize = plain.size();
+                return item;
+            }
+            // Something to order was offered meanwhile, it may overtake this one
+            if (item != null) plain.addFirst(item);
+        }
+        transfer();
+        final CmdProcessor.QueueCmd head = ordered.peek();
+        final CmdProcessor.QueueCmd plainHead = plain.peekFirst();
+        final CmdProcessor.QueueCmd item;
+        if (head != null && (plainHead == null || ORDER.compare(head, plainHead) < 0)) item = ordered.poll();
+        else item = plain.pollFirst();
+        orderedSize = ordered.size() + plain.size();
+        return item;
+    }
+
+    private void sequence(CmdProcessor.QueueCmd item) {
+        item.sequence = sequence++;
+        if (item.deadline() > 0) {
+            item.due = item.deadline();
+        } else {
+            final long queuedFor = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - item.queuedAt);
+            item.due = System.currentTimeMillis() - queuedFor + NO_DEADLINE_SLACK;
+        }
+    }
+
+    /**
+     * Moves offered commands into the heap or the FIFO, needs the lock if {@link #sharedHeap}.
+     */
+    private void transfer() {
+        CmdProcessor.QueueCmd offered;
+        while ((offered = queue.poll()) != null) {
+            sequence(offered);
+            if (isPlain(offered)) {
+                plain.add(offered);
+            } else if (fairness != null) {
+                final Tenant tenant = tenantOf(offered);
+                if (!tenant.backlogged) {
+                    // Idle tenants don't save up their share
+                    tenant.backlogged = true;
+                    tenant.start = Math.max(virtualTime, tenant.finish);
+                    backlogged.add(tenant);
+                }
+                tenant.ordered.add(offered);
+                tenantsSize++;
+                unordered.decrementAndGet();
+            } else {
+                ordered.add(offered);
+                unordered.decrementAndGet();
+            }
+        }
+    }
+
+    private Tenant tenantOf(CmdProcessor.QueueCmd item) {
+        final String name = item.tenant();
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant(fairness.weightOf(name));
+            tenants.put(name, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Takes the head of the tenant with the lowest start tag, among those whose head has the highest priority.
+     */
+    @Nullable
+    private CmdProcessor.QueueCmd nextFair() {
+        transfer();
+        Tenant next = null;
+        CmdProcessor.QueueCmd nextHead = null;
+        final Iterator<Tenant> iterator = backlogged.iterator();
+        while (iterator.hasNext()) {
+            final Tenant tenant = iterator.next();
+            CmdProcessor.QueueCmd head;
+            // Don't charge tenants for commands that were cancelled, expired or shed meanwhile
+            while ((head = tenant.ordered.peek()) != null && head.isClaimed()) {
+                tenant.ordered.poll();
+                tenantsSize--;
+            }
+            if (head == null) {
+                tenant.backlogged = false;
+                iterator.remove();
+                continue;
+            }
+            if (next == null || head.priority() < nextHead.priority() || (head.priority() == nextHead.priority()
+                    && (tenant.start < next.start || (tenant.start == next.start && head.sequence < nextHead.sequence)))) {
+                next = tenant;
+                nextHead = head;
+            }
+        }
+        if (next != null) {
+            next.ordered.poll();
+            tenantsSize--;
+            virtualTime = next.start;
+            next.finish = next.start + next.cost * weight(nextHead);
+            next.start = next.finish;
+            if (next.ordered.isEmpty()) {
+                next.backlogged = false;
+                backlogged.remove(next);
+            }
+        }
+        orderedSize = tenantsSize;
+        return nextHead;
+    }
+
+    private List<CmdProcessor.QueueCmd> tenantQueued() {
+        final List<CmdProcessor.QueueCmd> queued = new ArrayList<>(tenantsSize);
+        for (Tenant tenant : backlogged) queued.addAll(tenant.ordered);
+        return queued;
+    }
+
+    private void removeTenantQueued(CmdProcessor.QueueCmd item) {
+        if (tenantOf(item).ordered.remove(item)) tenantsSize--;
+    }
+
+    /**
+     * Consumer only, blocks until there is an item or the queue was stopped.
+     */
+    CmdProcessor.QueueCmd take() throws InterruptedException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Consumer only, blocks for up to {@code timeoutNanos}.
+     *
+     * @return the next item, a poison pill if stopped, or {@code null} if none arrived in time.
+     */
+    CmdProcessor.QueueCmd poll(long timeoutNanos) throws InterruptedException {
+        CmdProcessor.QueueCmd item = poll();
+        if (item != null) return item;
+
+        final long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread();
+        try {
+            while (true) {
+                // Producers check the waiter after offering, so re-check after announcing ourselves
+                item = poll();
+                if (item != null) return item;
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return null;
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Safe from any thread, but only a snapshot.
+     */
+    boolean isEmpty() {
+        return front.isEmpty() && orderedSize == 0 && queue.isEmpty();
+    }
+
+    /**
+     * @return how many admitted commands are waiting, batches count per command. Safe from any thread, but only a snapshot.
+     */
+    int size() {
+        return size.get();
+    }
+}
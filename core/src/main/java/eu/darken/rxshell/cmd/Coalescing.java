@@ -0,0 +1,130 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back single commands for a short window, so that a burst of them is written to the shell at once.
+ * <p>The window starts when the first command of a group is submitted.
+ * The group is written once the window closed or a cap is reached, each command still gets its own {@link Cmd.Result}.
+ * <p>Commands using {@link Cmd.Builder#outputCallback(Cmd.LineCallback)}, {@link Cmd.Builder#errorCallback(Cmd.LineCallback)}
+ * or {@link Cmd.Builder#outputSink(ByteSink)} and batches from {@link CmdProcessor#submitAll(java.util.Collection)} are never held back.
+ *
+ * @see RxCmdShell.Builder#coalesce(Coalescing)
+ */
+public class Coalescing {
+    public static final int DEFAULT_MAX_COMMANDS = 64;
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+    final long windowNanos;
+    final int maxCommands;
+    final int maxBytes;
+
+    Coalescing(long windowNanos, int maxCommands, int maxBytes) {
+        if (windowNanos < 0) throw new IllegalArgumentException("Window can't be negative");
+        if (maxCommands < 1) throw new IllegalArgumentException("Max commands needs to be at least 1");
+        if (maxBytes < 1) throw new IllegalArgumentException("Max bytes needs to be at least 1");
+        this.windowNanos = windowNanos;
+        this.maxCommands = maxCommands;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * {@code window(time, unit, DEFAULT_MAX_COMMANDS, DEFAULT_MAX_BYTES)}
+     */
+    public static Coalescing window(long time, TimeUnit unit) {
+        return window(time, unit, DEFAULT_MAX_COMMANDS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param time        how long the first command of a group may wait for others.
+     * @param maxCommands a group with this many commands is written right away.
+     * @param maxBytes    a group is written before it would grow past this many bytes of shell input.
+     *                    Counted in chars, which matches the bytes for ASCII commands.
+     *                    A single larger command is still written, alone.
+     */
+    public static Coalescing window(long time, TimeUnit unit, int maxCommands, int maxBytes) {
+        return new Coalescing(unit.toNanos(time), maxCommands, maxBytes);
+    }
+
+    boolean accepts(CmdProcessor.QueueCmd item) {
+        return !item.isPoisonPill() && !item.isBatch() && !Pipeline.isBarrier(item.cmd);
+    }
+
+    /**
+     * @return the length of what is written to the shell for this command, including the marker lines.
+     */
+    static int sizeOf(Cmd cmd) {
+        if (Pipeline.isWrapped(cmd)) {
+            final StringBuilder script = new StringBuilder();
+            Pipeline.appendScript(script, cmd, "\n");
+            return script.length();
+        }
+        int size = 0;
+        for (String command : cmd.getCommands()) size += command.length() + 1;
+        // "echo <marker> $?" and "echo <marker> >&2"
+        size += 2 * (cmd.getMarker().length() + 10);
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Coalescing(window=" + TimeUnit.NANOSECONDS.toMillis(windowNanos) + "ms, maxCommands=" + maxCommands + ", maxBytes=" + maxBytes + ")";
+    }
+
+    /**
+     * The commands collected so far, not thread-safe, it's only used by the dispatching thread.
+     */
+    static class Group {
+        private final Coalescing coalescing;
+        private List<CmdProcessor.QueueCmd> members = new ArrayList<>();
+        private int size = 0;
+        private long deadline;
+
+        Group(Coalescing coalescing) {
+            this.coalescing = coalescing;
+        }
+
+        /**
+         * @return {@code false} if the command can't join this group, the group should then be written first.
+         */
+        boolean offer(CmdProcessor.QueueCmd item) {
+            if (!coalescing.accepts(item) || isFull()) return false;
+            final int itemSize = sizeOf(item.cmd);
+            if (!members.isEmpty() && size + itemSize > coalescing.maxBytes) return false;
+            if (members.isEmpty()) deadline = item.queuedAt + coalescing.windowNanos;
+            members.add(item);
+            size += itemSize;
+            return true;
+        }
+
+        boolean isEmpty() {
+            return members.isEmpty();
+        }
+
+        boolean isFull() {
+            return members.size() >= coalescing.maxCommands || size >= coalescing.maxBytes;
+        }
+
+        /**
+         * @return how long until the window of this group closes, {@code <= 0} if it's due.
+         */
+        long remainingNanos() {
+            return deadline - System.nanoTime();
+        }
+
+        /**
+         * Empties the group.
+         *
+         * @return the single command, a batch of all commands or {@code null} if the group was empty.
+         */
+        CmdProcessor.QueueCmd drain() {
+            final List<CmdProcessor.QueueCmd> drained = members;
+            members = new ArrayList<>();
+            size = 0;
+            if (drained.isEmpty()) return null;
+            else if (drained.size() == 1) return drained.get(0);
+            else return new CmdProcessor.QueueCmd(drained);
+        }
+    }
+}
@@ -32,21 +32,15 @@ public class ErrorHarvester extends Harvester<Harvester.Crop> {
         private final Cmd cmd;
 
         ErrorSub(Subscriber<? super ErrorHarvester.Crop> customer, Cmd cmd) {
-            super(TAG, customer, cmd.isErrorBufferEnabled() ? new ArrayList<>() : null, cmd.getErrorProcessor());
+            super(TAG, customer, cmd.isErrorBufferEnabled() ? new ArrayList<>() : null, cmd.getErrorProcessor(), cmd.getErrorCallback());
             this.cmd = cmd;
         }
 
         @Override
         public boolean parse(String line) {
-            String contentPart = line;
-
-            final int markerIndex = line.indexOf(cmd.getMarker());
-            if (markerIndex == 0) contentPart = null;
-            else if (markerIndex > 0) contentPart = line.substring(0, markerIndex - 1);
-
-            if (contentPart != null) {
-                publishParsed(contentPart);
-            }
+            final int markerIndex = cmd.getMarkerMatcher().indexOf(line);
+            if (markerIndex < 0) publishParsed(line);
+            else if (markerIndex > 0) publishParsed(line.substring(0, markerIndex - 1));
 
             return markerIndex >= 0;
         }
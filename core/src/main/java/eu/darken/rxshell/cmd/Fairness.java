@@ -0,0 +1,73 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares a session between the {@link Cmd.Builder#tenant(String) tenants} that submit to it.
+ * <p>Each tenant gets its own queue. The next command is taken from the tenant that received the least service relative to its weight,
+ * i.e. a tenant with weight {@code 4} may run four commands for each command of a tenant with weight {@code 1}, as long as both have commands queued.
+ * A tenant with nothing queued doesn't save up its share, the others get its time.
+ * <p>Service is counted in commands, not in shell time. A long running command of one tenant still delays all others until it finished.
+ * <p>{@link Cmd.Priority} still goes first, across tenants. Within a tenant, commands are ordered as usual.
+ * A batch counts as one command per member and is queued for the tenant of its first command.
+ *
+ * @see RxCmdShell.Builder#fairness(Fairness)
+ * @see RxCmdShell.Session#getTenantStats()
+ */
+public class Fairness {
+    public static final int DEFAULT_WEIGHT = 1;
+    // Virtual time a command of weight 1 costs
+    static final long UNIT = 1_000_000L;
+    final Map<String, Integer> weights;
+    final int defaultWeight;
+
+    Fairness(Builder builder) {
+        this.weights = new HashMap<>(builder.weights);
+        this.defaultWeight = builder.defaultWeight;
+    }
+
+    int weightOf(String tenant) {
+        final Integer weight = weights.get(tenant);
+        return weight != null ? weight : defaultWeight;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "Fairness(weights=" + weights + ", defaultWeight=" + defaultWeight + ")";
+    }
+
+    public static class Builder {
+        final Map<String, Integer> weights = new HashMap<>();
+        int defaultWeight = DEFAULT_WEIGHT;
+
+        /**
+         * @param tenant see {@link Cmd.Builder#tenant(String)}.
+         * @param weight the tenant's share relative to the others, at least {@code 1}.
+         */
+        public Builder weight(String tenant, int weight) {
+            if (weight < 1) throw new IllegalArgumentException("Weight needs to be at least 1");
+            if (weight > UNIT) throw new IllegalArgumentException("Weight can't exceed " + UNIT);
+            this.weights.put(tenant, weight);
+            return this;
+        }
+
+        /**
+         * @param weight for tenants that weren't given one, including {@link Cmd#DEFAULT_TENANT}. Defaults to {@link #DEFAULT_WEIGHT}.
+         */
+        public Builder defaultWeight(int weight) {
+            if (weight < 1) throw new IllegalArgumentException("Weight needs to be at least 1");
+            if (weight > UNIT) throw new IllegalArgumentException("Weight can't exceed " + UNIT);
+            this.defaultWeight = weight;
+            return this;
+        }
+
+        public Fairness build() {
+            return new Fairness(this);
+        }
+    }
+}
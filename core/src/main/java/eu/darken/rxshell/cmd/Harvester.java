@@ -41,14 +41,17 @@ public abstract class Harvester<T extends Harvester.Crop> extends Flowable<T> im
         private final String tag;
         private final Subscriber<? super T> customer;
         private final FlowableProcessor<String> processor;
+        private final Cmd.LineCallback callback;
         private final List<String> buffer;
         private volatile boolean isDone = false;
+        private boolean discard = false;
         Subscription subscription;
 
-        BaseSub(String tag, Subscriber<? super T> customer, @Nullable List<String> buffer, @Nullable FlowableProcessor<String> processor) {
+        BaseSub(String tag, Subscriber<? super T> customer, @Nullable List<String> buffer, @Nullable FlowableProcessor<String> processor, @Nullable Cmd.LineCallback callback) {
             this.tag = tag;
             this.customer = customer;
             this.processor = processor;
+            this.callback = callback;
             this.buffer = buffer;
         }
 
@@ -62,7 +65,20 @@ public abstract class Harvester<T extends Harvester.Crop> extends Flowable<T> im
 
         abstract boolean parse(String line);
 
+        /**
+         * Nobody wants the rest of this command's lines, they are only parsed for the marker.
+         */
+        void discard() {
+            discard = true;
+            if (buffer != null) buffer.clear();
+        }
+
         void publishParsed(String contentPart) {
+            if (discard) return;
+            if (callback != null) {
+                callback.onLine(contentPart);
+                return;
+            }
             if (buffer != null) buffer.add(contentPart);
             if (processor != null) processor.onNext(contentPart);
         }
@@ -125,5 +141,19 @@ public abstract class Harvester<T extends Harvester.Crop> extends Flowable<T> im
         public ErrorHarvester forError(Publisher<String> source, Cmd cmd) {
             return new ErrorHarvester(source, cmd);
         }
+
+        /**
+         * The parser for a command's output, lines are pushed into it directly instead of subscribing it to a source.
+         */
+        OutputHarvester.OutputSub outputSub(Subscriber<? super OutputHarvester.Crop> customer, Cmd cmd) {
+            return new OutputHarvester.OutputSub(customer, cmd);
+        }
+
+        /**
+         * The parser for a command's errors, lines are pushed into it directly instead of subscribing it to a source.
+         */
+        ErrorHarvester.ErrorSub errorSub(Subscriber<? super Harvester.Crop> customer, Cmd cmd) {
+            return new ErrorHarvester.ErrorSub(customer, cmd);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cuts the tail latency of read-only commands, by running a second copy on another session if the first is slow.
+ * <p>If a command marked with {@link Cmd.Builder#idempotent(boolean)} has no result after the hedge delay,
+ * the same command is submitted to another open session. The first result wins and the other copy is cancelled,
+ * i.e. dropped if it's still queued, or its output is discarded if it's already running.
+ * <p>Only commands without {@link Cmd.Builder#outputProcessor(io.reactivex.rxjava3.processors.FlowableProcessor)},
+ * {@link Cmd.Builder#errorProcessor(io.reactivex.rxjava3.processors.FlowableProcessor)}, callbacks or {@link Cmd.Builder#outputSink(ByteSink)} are hedged,
+ * the second copy would emit its output again.
+ * <p>{@link Cmd.Builder#interruptible(boolean) Interruptible} commands aren't hedged either, the losing copy would be killed each time
+ * and they can't share their session with other commands meanwhile.
+ *
+ * @see RxCmdShellPool.Builder#hedge(Hedging)
+ */
+public class Hedging {
+    /**
+     * Until the pool has seen this many results, a percentile based delay isn't meaningful and nothing is hedged.
+     */
+    public static final int MIN_SAMPLES = 20;
+    // NaN for a fixed delay
+    final double percentile;
+    final long delayNanos;
+
+    Hedging(double percentile, long delayNanos) {
+        if (delayNanos < 0) throw new IllegalArgumentException("Delay can't be negative");
+        this.percentile = percentile;
+        this.delayNanos = delayNanos;
+    }
+
+    /**
+     * {@code percentile(percentile, 0, TimeUnit.MILLISECONDS)}
+     */
+    public static Hedging percentile(double percentile) {
+        return percentile(percentile, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hedges commands that take longer than this percentile of the pool's recent results.
+     * With {@code 95}, roughly one in twenty commands runs twice.
+     *
+     * @param percentile between {@code 0} and {@code 100}.
+     * @param minDelay   never hedge earlier than this, so that fast commands aren't doubled because of small variations.
+     */
+    public static Hedging percentile(double percentile, long minDelay, TimeUnit unit) {
+        if (!(percentile >= 0 && percentile <= 100)) throw new IllegalArgumentException("Percentile needs to be between 0 and 100");
+        return new Hedging(percentile, unit.toNanos(minDelay));
+    }
+
+    /**
+     * Hedges commands that take longer than a fixed delay, from the first command on.
+     */
+    public static Hedging after(long delay, TimeUnit unit) {
+        return new Hedging(Double.NaN, unit.toNanos(delay));
+    }
+
+    boolean accepts(Cmd cmd) {
+        return cmd.isRepeatable() && !cmd.isInterruptible();
+    }
+
+    /**
+     * @return how long to wait before hedging, {@code -1} if there is no delay yet.
+     */
+    long delayNanos(LatencyWindow latencies) {
+        if (Double.isNaN(percentile)) return delayNanos;
+        if (latencies.size() < MIN_SAMPLES) return -1;
+        return Math.max(delayNanos, latencies.percentile(percentile));
+    }
+
+    @Override
+    public String toString() {
+        if (Double.isNaN(percentile)) return "Hedging(delay=" + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms)";
+        return "Hedging(percentile=" + percentile + ", minDelay=" + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms)";
+    }
+}
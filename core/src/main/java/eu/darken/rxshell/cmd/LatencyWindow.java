@@ -0,0 +1,53 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latencies, for percentiles that follow the current load instead of the whole lifetime.
+ */
+class LatencyWindow {
+    static final int DEFAULT_SIZE = 256;
+    // Percentiles are sorted again after this many new samples
+    private static final int STALE_AFTER = 16;
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+    private long[] sorted;
+    private int sinceSort = 0;
+
+    LatencyWindow() {
+        this(DEFAULT_SIZE);
+    }
+
+    LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+        sinceSort++;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Nearest rank, over a copy that is sorted again once {@link #STALE_AFTER} samples came in.
+     *
+     * @param percentile between {@code 0} and {@code 100}.
+     * @return nanoseconds, {@code 0} if there are no samples yet.
+     */
+    synchronized long percentile(double percentile) {
+        if (count == 0) return 0;
+        if (sorted == null || sorted.length != count || sinceSort >= STALE_AFTER) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100d * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
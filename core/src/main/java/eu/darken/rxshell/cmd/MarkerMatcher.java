@@ -0,0 +1,127 @@
+package eu.darken.rxshell.cmd;
+
+/**
+ * Finds a {@link Cmd}'s marker in shell output.
+ * <p>Uses a precomputed Boyer-Moore-Horspool skip table, so most positions of a line are never compared.
+ * Lines shorter than the marker are rejected without looking at them.
+ */
+public class MarkerMatcher {
+    private static final int TABLE_SIZE = 128;
+    private final String marker;
+    private final char[] pattern;
+    private final int[] skip = new int[TABLE_SIZE];
+    private final int nonAsciiSkip;
+
+    public MarkerMatcher(String marker) {
+        if (marker.isEmpty()) throw new IllegalArgumentException("Marker can't be empty");
+        this.marker = marker;
+        this.pattern = marker.toCharArray();
+        final int last = pattern.length - 1;
+
+        int nonAscii = pattern.length;
+        for (int i = 0; i < TABLE_SIZE; i++) skip[i] = pattern.length;
+        for (int i = 0; i < last; i++) {
+            final char c = pattern[i];
+            if (c < TABLE_SIZE) skip[c] = last - i;
+            else nonAscii = Math.min(nonAscii, last - i);
+        }
+        this.nonAsciiSkip = nonAscii;
+    }
+
+    public String getMarker() {
+        return marker;
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * @return the index of the first occurrence of the marker or {@code -1}
+     */
+    public int indexOf(CharSequence text) {
+        return indexOf(text, 0);
+    }
+
+    /**
+     * @return the index of the first occurrence of the marker, starting at {@code fromIndex}, or {@code -1}
+     */
+    public int indexOf(CharSequence text, int fromIndex) {
+        final char[] pattern = this.pattern;
+        final int last = pattern.length - 1;
+        final int limit = text.length() - pattern.length;
+        int pos = Math.max(fromIndex, 0);
+        while (pos <= limit) {
+            int i = last;
+            while (text.charAt(pos + i) == pattern[i]) {
+                if (i == 0) return pos;
+                i--;
+            }
+            final char tail = text.charAt(pos + last);
+            pos += tail < TABLE_SIZE ? skip[tail] : nonAsciiSkip;
+        }
+        return -1;
+    }
+
+    /**
+     * Searches raw bytes, the marker is matched as ASCII.
+     *
+     * @return the index (absolute to {@code buffer}) of the first occurrence of the marker or {@code -1}
+     */
+    public int indexOf(byte[] buffer, int offset, int length) {
+        final char[] pattern = this.pattern;
+        final int last = pattern.length - 1;
+        final int limit = offset + length - pattern.length;
+        int pos = offset;
+        while (pos <= limit) {
+            int i = last;
+            while ((buffer[pos + i] & 0xFF) == pattern[i]) {
+                if (i == 0) return pos;
+                i--;
+            }
+            final int tail = buffer[pos + last] & 0xFF;
+            pos += tail < TABLE_SIZE ? skip[tail] : nonAsciiSkip;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the exit code that follows the marker, i.e. {@code MARKER 255}, without creating substrings.
+     * <p>Accepts the same format as {@link Integer#parseInt(String)}.
+     *
+     * @param line        the line containing the marker
+     * @param markerIndex the marker's position, see {@link #indexOf(CharSequence)}
+     * @throws NumberFormatException if there is no valid exit code
+     */
+    public int parseExitCode(CharSequence line, int markerIndex) {
+        int pos = markerIndex + pattern.length + 1;
+        final int end = line.length();
+        if (pos >= end) throw new NumberFormatException("No exitcode after marker: " + line);
+
+        boolean negative = false;
+        final char first = line.charAt(pos);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            pos++;
+            if (pos == end) throw new NumberFormatException("Invalid exitcode: " + line);
+        }
+
+        // Accumulate negatively to be able to represent Integer.MIN_VALUE
+        final int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        final int multMin = limit / 10;
+        int result = 0;
+        while (pos < end) {
+            final int digit = Character.digit(line.charAt(pos++), 10);
+            if (digit < 0 || result < multMin) throw new NumberFormatException("Invalid exitcode: " + line);
+            result *= 10;
+            if (result < limit + digit) throw new NumberFormatException("Invalid exitcode: " + line);
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    @Override
+    public String toString() {
+        return "MarkerMatcher(marker=" + marker + ")";
+    }
+}
@@ -42,39 +42,28 @@ public class OutputHarvester extends Harvester<OutputHarvester.Crop> {
         int exitCode = Cmd.ExitCode.INITIAL;
 
         OutputSub(Subscriber<? super Crop> customer, Cmd cmd) {
-            super(TAG, customer, cmd.isOutputBufferEnabled() ? new ArrayList<>() : null, cmd.getOutputProcessor());
+            super(TAG, customer, cmd.isOutputBufferEnabled() ? new ArrayList<>() : null, cmd.getOutputProcessor(), cmd.getOutputCallback());
             this.cmd = cmd;
         }
 
         @Override
         public boolean parse(String line) {
-            String contentPart = line;
-            String markerPart = null;
-
-            final int markerIndex = line.indexOf(cmd.getMarker());
-            if (markerIndex == 0) {
-                contentPart = null;
-                markerPart = line;
-            } else if (markerIndex > 0) {
-                contentPart = line.substring(0, markerIndex);
-                markerPart = line.substring(markerIndex);
+            final MarkerMatcher matcher = cmd.getMarkerMatcher();
+            final int markerIndex = matcher.indexOf(line);
+            if (markerIndex < 0) {
+                publishParsed(line);
+                return false;
             }
 
-            if (contentPart != null) {
-                publishParsed(contentPart);
-            }
+            if (markerIndex > 0) publishParsed(line.substring(0, markerIndex));
 
-            if (markerPart != null) {
-                try {
-                    exitCode = Integer.valueOf(markerPart.substring(cmd.getMarker().length() + 1), 10);
-                } catch (Exception e) {
-                    Timber.tag(TAG).e(e);
-                    exitCode = Cmd.ExitCode.EXCEPTION;
-                }
-                return true;
-            } else {
-                return false;
+            try {
+                exitCode = matcher.parseExitCode(line, markerIndex);
+            } catch (NumberFormatException e) {
+                Timber.tag(TAG).e(e);
+                exitCode = Cmd.ExitCode.EXCEPTION;
             }
+            return true;
         }
 
         @Override
@@ -0,0 +1,531 @@
+package eu.darken.rxshell.cmd;
+
+import android.support.annotation.Nullable;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.shell.LineReader;
+import eu.darken.rxshell.shell.RxShell;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import timber.log.Timber;
+
+/**
+ * Keeps up to {@code depth} commands in flight in the shell and matches their output by marker.
+ * <p>Subscribes to the session's lines once, each line is routed to the oldest command whose marker wasn't seen yet on that stream.
+ * Since the shell runs commands one after the other, markers show up in the order the commands were written.
+ * <p>Commands that need taps on the session (line callbacks, byte sinks) only run alone, they wait for the pipeline to drain and block it until they are done.
+ * <p>A command's timeout starts once it's the oldest command in flight, i.e. when the shell starts running it.
+ * <p>{@link Cmd#isIsolated() Isolated} commands are killed by a watchdog in the shell, which reports {@link Cmd.ExitCode#TIMEOUT} as their exit code.
+ * Our own timer only fires if that didn't happen within {@link #ISOLATION_GRACE} and then gives up on the session.
+ * <p>{@link Cmd#isInterruptible() Interruptible} commands run the same way, with a reader on the session's stdin that kills them once we write a line,
+ * see {@link #INTERRUPT}. Meanwhile nothing else may be written, so they run alone.
+ */
+class Pipeline {
+    private static final String TAG = CmdProcessor.TAG + ":Pipeline";
+    static final long ISOLATION_GRACE = 2000;
+    /**
+     * Wakes the reader of an interruptible command. If that one is already gone, the shell reads it instead and does nothing.
+     */
+    static final String INTERRUPT = ":";
+    // Markers are random UUIDs, see Cmd#getMarker()
+    private static final Pattern MARKER = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private final RxShell.Session session;
+    private final Harvester.Factory factory;
+    private final int depth;
+    private final Listener listener;
+    private final ArrayDeque<Entry> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<CmdProcessor.QueueCmd> results = new ArrayDeque<>();
+    private final AtomicInteger resultsWip = new AtomicInteger();
+    private final Disposable outputSubscription;
+    private final Disposable errorSubscription;
+    private boolean outputEnded = false;
+    private boolean errorEnded = false;
+
+    interface Listener {
+        /**
+         * Called in submission order, never concurrently.
+         */
+        void onResult(CmdProcessor.QueueCmd item);
+
+        /**
+         * A command finished, there may be room for the next one.
+         */
+        void onCapacity();
+    }
+
+    Pipeline(RxShell.Session session, Harvester.Factory factory, int depth, Listener listener) {
+        if (depth < 1) throw new IllegalArgumentException("Pipeline depth needs to be at least 1");
+        this.session = session;
+        this.factory = factory;
+        this.depth = depth;
+        this.listener = listener;
+        this.outputSubscription = session.outputLines().subscribe(this::onOutput, e -> onOutputEnded(), this::onOutputEnded);
+        this.errorSubscription = session.errorLines().subscribe(this::onError, e -> onErrorEnded(), this::onErrorEnded);
+    }
+
+    /**
+     * Whether the line may carry a command's marker, the {@link eu.darken.rxshell.shell.OverflowPolicy} must not drop those.
+     */
+    static boolean mayCarryMarker(String line) {
+        return line.length() >= 36 && MARKER.matcher(line).find();
+    }
+
+    static boolean isBarrier(Cmd cmd) {
+        return cmd.getOutputCallback() != null || cmd.getErrorCallback() != null || cmd.getOutputSink() != null || cmd.isInterruptible();
+    }
+
+    static boolean isIsolated(Cmd cmd) {
+        return cmd.isIsolated() && cmd.getTimeout() > 0;
+    }
+
+    /**
+     * @return {@code true} if the command runs in a background subshell, see {@link #appendScript(StringBuilder, Cmd, String)}.
+     */
+    static boolean isWrapped(Cmd cmd) {
+        return isIsolated(cmd) || cmd.isInterruptible();
+    }
+
+    /**
+     * Appends the lines written to the shell for this command, each followed by the separator.
+     * It ends by echoing the marker and exit code, then the marker to stderr.
+     */
+    static void appendScript(StringBuilder block, Cmd cmd, String separator) {
+        if (!isWrapped(cmd)) {
+            for (String write : cmd.getCommands()) block.append(write).append(separator);
+            block.append("echo ").append(cmd.getMarker()).append(" $?").append(separator);
+            block.append("echo ").append(cmd.getMarker()).append(" >&2").append(separator);
+            return;
+        }
+        final boolean interruptible = cmd.isInterruptible();
+        // Keeps the session's stdin as fd 8, a background subshell's own stdin is empty
+        if (interruptible) block.append('{').append(separator);
+        block.append('(').append(separator);
+        for (String write : cmd.getCommands()) block.append(write).append(separator);
+        block.append(") & rxs_pid=$!").append(separator);
+        if (isIsolated(cmd)) {
+            final long timeout = cmd.getTimeout();
+            // Once it fired, the watchdog ignores our TERM, so its exit status tells whether it killed the command
+            block.append("( trap 'kill $rxs_sleep; exit 1' TERM; ");
+            // Toolbox (API 21-22) can only sleep whole seconds, it would round down
+            block.append("rxs_t=").append(timeout / 1000).append('.').append(String.format(Locale.ROOT, "%03d", timeout % 1000)).append("; ");
+            block.append("[ \"$(readlink /system/bin/sleep)\" = toolbox ] && rxs_t=").append((timeout + 999) / 1000).append("; ");
+            block.append("sleep $rxs_t & rxs_sleep=$!; wait $rxs_sleep; trap '' TERM; ");
+            appendTreeKill(block);
+            block.append(" ) 2>/dev/null & rxs_dog=$!").append(separator);
+        }
+        if (interruptible) {
+            // A direct child without traps, so our TERM can't get lost while it starts. Like the watchdog, it ignores TERM once it fired.
+            block.append("( read -r rxs_l || exit 1; trap '' TERM; ");
+            appendTreeKill(block);
+            block.append(" ) <&8 2>/dev/null & rxs_int=$!").append(separator);
+        }
+        block.append("wait $rxs_pid; rxs_rc=$?").append(separator);
+        if (interruptible) {
+            block.append("kill $rxs_int 2>/dev/null; wait $rxs_int && rxs_rc=").append(Cmd.ExitCode.TIMEOUT).append(separator);
+        }
+        if (isIsolated(cmd)) {
+            block.append("kill $rxs_dog 2>/dev/null; wait $rxs_dog && rxs_rc=").append(Cmd.ExitCode.TIMEOUT).append(separator);
+        }
+        block.append("echo ").append(cmd.getMarker()).append(" $rxs_rc").append(separator);
+        block.append("echo ").append(cmd.getMarker()).append(" >&2").append(separator);
+        // Nothing may follow in the same write, the reader could get it
+        if (interruptible) block.append("} 8<&0").append(separator);
+    }
+
+    /**
+     * Stops the whole tree of {@code $rxs_pid} level by level before killing it, so nothing forks meanwhile or outlives it and writes into later commands.
+     */
+    private static void appendTreeKill(StringBuilder block) {
+        block.append("rxs_tree=$rxs_pid; rxs_todo=$rxs_pid; ");
+        block.append("while [ -n \"$rxs_todo\" ]; do kill -STOP $rxs_todo; rxs_next=; ");
+        block.append("for rxs_s in /proc/[0-9]*/stat; do read -r rxs_l < $rxs_s || continue; rxs_l=${rxs_l##*) }; rxs_l=${rxs_l#* }; ");
+        block.append("case \" $rxs_todo \" in *\" ${rxs_l%% *} \"*) rxs_s=${rxs_s#/proc/}; rxs_next=\"$rxs_next ${rxs_s%/stat}\";; esac; done; ");
+        block.append("rxs_tree=\"$rxs_tree$rxs_next\"; rxs_todo=$rxs_next; done; kill -9 $rxs_tree");
+    }
+
+    /**
+     * @return {@code true} if a command without taps could be written now.
+     */
+    synchronized boolean hasRoom() {
+        return inFlight.isEmpty() || (inFlight.size() < depth && !inFlight.peekFirst().barrier);
+    }
+
+    /**
+     * Blocks until {@link #hasRoom()}.
+     */
+    synchronized void awaitRoom() throws InterruptedException {
+        while (!hasRoom()) wait();
+    }
+
+    /**
+     * A batch is written as a whole once there is room for at least one command, it must not contain barriers.
+     */
+    synchronized boolean canWrite(CmdProcessor.QueueCmd item) {
+        if (inFlight.isEmpty()) return true;
+        if (inFlight.size() >= depth || inFlight.peekFirst().barrier) return false;
+        return item.isBatch() || !isBarrier(item.cmd);
+    }
+
+    /**
+     * Blocks until {@link #canWrite(CmdProcessor.QueueCmd)}.
+     */
+    synchronized void awaitCapacity(CmdProcessor.QueueCmd item) throws InterruptedException {
+        while (!canWrite(item)) wait();
+    }
+
+    synchronized boolean isEmpty() {
+        return inFlight.isEmpty();
+    }
+
+    synchronized int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Writes the command, or all commands of a batch, to the shell.
+     * If that fails, the commands are completed with {@link Cmd.ExitCode#SHELL_DIED}.
+     */
+    void write(CmdProcessor.QueueCmd item) {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Writing: %s", item);
+        final List<Entry> entries = new ArrayList<>();
+        if (item.isBatch()) {
+            for (CmdProcessor.QueueCmd member : item.batch) {
+                // Coalesced commands are cancelled one by one
+                if (!member.cancelled) entries.add(new Entry(member, factory));
+            }
+        } else {
+            final Entry entry = new Entry(item, factory);
+            if (entry.barrier) {
+                if (item.cmd.getOutputCallback() != null) session.setOutputTap(CallbackTap.forOutput(item.cmd));
+                if (item.cmd.getErrorCallback() != null) session.setErrorTap(CallbackTap.forError(item.cmd));
+                if (entry.binaryTap != null) session.setOutputByteTap(entry.binaryTap);
+            }
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) return;
+        synchronized (this) {
+            for (Entry entry : entries) {
+                inFlight.add(entry);
+                if (inFlight.size() == 1) armTimeout(entry);
+                // The shell is already gone, nothing will arrive for this command
+                if (outputEnded) entry.output.onComplete();
+                if (errorEnded) entry.error.onComplete();
+                // Cancelled while we were writing it
+                if (entry.item.cancelled) discard(entry);
+            }
+            collect();
+        }
+        try {
+            if (item.isBatch()) {
+                // One write and one flush for the whole batch
+                final String separator = LineReader.getLineSeparator();
+                final StringBuilder block = new StringBuilder();
+                for (Entry entry : entries) appendScript(block, entry.item.cmd, separator);
+                block.setLength(block.length() - separator.length());
+                session.writeLine(block.toString(), true);
+            } else if (isWrapped(item.cmd)) {
+                final String separator = LineReader.getLineSeparator();
+                final StringBuilder block = new StringBuilder();
+                appendScript(block, item.cmd, separator);
+                block.setLength(block.length() - separator.length());
+                session.writeLine(block.toString(), true);
+            } else {
+                for (String write : item.cmd.getCommands()) session.writeLine(write, false);
+                session.writeLine("echo " + item.cmd.getMarker() + " $?", false);
+                session.writeLine("echo " + item.cmd.getMarker() + " >&2", true);
+            }
+        } catch (IOException e) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).w("Failed to write %s: %s", item, e.getMessage());
+            synchronized (this) {
+                for (Entry entry : entries) {
+                    if (inFlight.remove(entry)) finish(entry, Cmd.ExitCode.SHELL_DIED);
+                }
+            }
+            emitResults();
+            return;
+        }
+        Entry interrupt = null;
+        synchronized (this) {
+            for (Entry entry : entries) entry.written = true;
+            // Cancelled while we were writing it
+            if (takeInterrupt(entries.get(0))) interrupt = entries.get(0);
+        }
+        if (interrupt != null) interrupt(interrupt);
+        emitResults();
+    }
+
+    /**
+     * Some commands were cancelled, those in flight only have their lines parsed for the marker from now on.
+     * {@link Cmd#isInterruptible() Interruptible} ones are also killed, the session and the other commands are not affected.
+     */
+    void cancelled() {
+        final List<Entry> interrupts = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : inFlight) {
+                if (!entry.item.cancelled) continue;
+                discard(entry);
+                if (takeInterrupt(entry)) interrupts.add(entry);
+            }
+        }
+        for (Entry entry : interrupts) interrupt(entry);
+        emitResults();
+    }
+
+    private void discard(Entry entry) {
+        if (entry.discarded || entry.emitted) return;
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Discarding output of %s", entry.item);
+        entry.discarded = true;
+        entry.output.discard();
+        entry.error.discard();
+    }
+
+    /**
+     * @return {@code true} if the caller should {@link #interrupt(Entry)} this cancelled command, once.
+     * Not before it was written, the reader would get {@link #INTERRUPT} ahead of the command.
+     */
+    private boolean takeInterrupt(Entry entry) {
+        if (!entry.item.cancelled || !entry.item.cmd.isInterruptible()) return false;
+        if (!entry.written || entry.interrupted || entry.emitted) return false;
+        entry.interrupted = true;
+        return true;
+    }
+
+    /**
+     * The killed command still reports its marker, with {@link Cmd.ExitCode#TIMEOUT}, which the processor doesn't hold against the session.
+     */
+    private void interrupt(Entry entry) {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Interrupting %s", entry.item);
+        try {
+            session.writeLine(INTERRUPT, true);
+        } catch (IOException e) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).w("Failed to interrupt %s: %s", entry.item, e.getMessage());
+        }
+    }
+
+    private void onOutput(String line) {
+        synchronized (this) {
+            Entry target = null;
+            for (Entry entry : inFlight) {
+                if (entry.outputCrop.crop == null) {
+                    target = entry;
+                    break;
+                }
+            }
+            if (target != null) {
+                target.output.onNext(line);
+                collect();
+            } else if (RXSDebug.isDebug()) {
+                Timber.tag(TAG).v("Dropping output without command: %s", line);
+            }
+        }
+        emitResults();
+    }
+
+    private void onError(String line) {
+        synchronized (this) {
+            Entry target = null;
+            for (Entry entry : inFlight) {
+                if (entry.errorCrop.crop == null) {
+                    target = entry;
+                    break;
+                }
+            }
+            if (target != null) {
+                target.error.onNext(line);
+                collect();
+            } else if (RXSDebug.isDebug()) {
+                Timber.tag(TAG).v("Dropping error without command: %s", line);
+            }
+        }
+        emitResults();
+    }
+
+    private void onOutputEnded() {
+        synchronized (this) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Output ended, %d commands in flight.", inFlight.size());
+            outputEnded = true;
+            for (Entry entry : inFlight) entry.output.onComplete();
+            collect();
+        }
+        emitResults();
+    }
+
+    private void onErrorEnded() {
+        synchronized (this) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Error ended, %d commands in flight.", inFlight.size());
+            errorEnded = true;
+            for (Entry entry : inFlight) entry.error.onComplete();
+            collect();
+        }
+        emitResults();
+    }
+
+    /**
+     * Completes finished commands from the head of the pipeline.
+     */
+    private void collect() {
+        boolean freed = false;
+        while (!inFlight.isEmpty()) {
+            final Entry head = inFlight.peekFirst();
+            final OutputHarvester.Crop output = head.outputCrop.crop;
+            final Harvester.Crop error = head.errorCrop.crop;
+            if (output == null || error == null) break;
+
+            inFlight.pollFirst();
+            if (!head.emitted) {
+                head.item.output(output.buffer);
+                head.item.errors(error.buffer);
+            }
+            if (output.isComplete && error.isComplete) {
+                // Only our watchdog reports a negative exit code, the shell is still fine
+                if (output.exitCode < 0) head.item.keepSession = true;
+                finish(head, output.exitCode);
+            } else {
+                finish(head, Cmd.ExitCode.SHELL_DIED);
+            }
+            freed = true;
+            if (!inFlight.isEmpty()) armTimeout(inFlight.peekFirst());
+        }
+        if (freed) {
+            notifyAll();
+            listener.onCapacity();
+        }
+    }
+
+    private void finish(Entry entry, int exitCode) {
+        if (entry.timeout != null) entry.timeout.dispose();
+        if (entry.barrier) {
+            if (entry.item.cmd.getOutputCallback() != null) session.setOutputTap(null);
+            if (entry.item.cmd.getErrorCallback() != null) session.setErrorTap(null);
+            if (entry.binaryTap != null) entry.binaryTap.abort();
+        }
+        if (entry.emitted) return;
+        entry.emitted = true;
+        entry.item.exitCode(exitCode);
+        results.add(entry.item);
+    }
+
+    private void armTimeout(Entry entry) {
+        long timeout = entry.item.cmd.getTimeout();
+        if (timeout <= 0 || entry.timeout != null) return;
+        if (isIsolated(entry.item.cmd)) timeout += ISOLATION_GRACE;
+        entry.timeout = Schedulers.computation().scheduleDirect(() -> {
+            synchronized (Pipeline.this) {
+                if (entry.emitted || !inFlight.contains(entry)) return;
+                if (RXSDebug.isDebug()) Timber.tag(TAG).w("Command timed out: %s", entry.item);
+                // Stays in flight to swallow its remaining output, until the session is gone
+                entry.emitted = true;
+                entry.item.exitCode(Cmd.ExitCode.TIMEOUT);
+                results.add(entry.item);
+            }
+            emitResults();
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void emitResults() {
+        if (resultsWip.getAndIncrement() != 0) return;
+        int missed = 1;
+        while (true) {
+            while (true) {
+                final CmdProcessor.QueueCmd item;
+                synchronized (this) {
+                    item = results.poll();
+                }
+                if (item == null) break;
+                listener.onResult(item);
+            }
+            missed = resultsWip.addAndGet(-missed);
+            if (missed == 0) break;
+        }
+    }
+
+    void dispose() {
+        outputSubscription.dispose();
+        errorSubscription.dispose();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Pipeline(depth=" + depth + ", inFlight=" + inFlight.size() + ")";
+    }
+
+    /**
+     * The harvesters' upstream, lines are pushed by us regardless of requests.
+     */
+    private static final Subscription PUSHED = new Subscription() {
+        @Override
+        public void request(long n) {
+
+        }
+
+        @Override
+        public void cancel() {
+
+        }
+    };
+
+    private static class Entry {
+        final CmdProcessor.QueueCmd item;
+        final boolean barrier;
+        final BinaryTap binaryTap;
+        final CropCatcher<OutputHarvester.Crop> outputCrop = new CropCatcher<>();
+        final CropCatcher<Harvester.Crop> errorCrop = new CropCatcher<>();
+        final OutputHarvester.OutputSub output;
+        final ErrorHarvester.ErrorSub error;
+        Disposable timeout;
+        boolean emitted = false;
+        boolean discarded = false;
+        boolean written = false;
+        boolean interrupted = false;
+
+        Entry(CmdProcessor.QueueCmd item, Harvester.Factory factory) {
+            this.item = item;
+            if (item.stats != null) item.writtenAt = System.nanoTime();
+            this.barrier = isBarrier(item.cmd);
+            this.binaryTap = item.cmd.getOutputSink() != null ? BinaryTap.forOutput(item.cmd) : null;
+            this.output = factory.outputSub(outputCrop, item.cmd);
+            this.output.onSubscribe(PUSHED);
+            this.error = factory.errorSub(errorCrop, item.cmd);
+            this.error.onSubscribe(PUSHED);
+        }
+    }
+
+    /**
+     * Takes the place of the downstream of a {@link Harvester}, the lines are pushed by us.
+     */
+    private static class CropCatcher<T> implements Subscriber<T> {
+        @Nullable T crop;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+
+        }
+
+        @Override
+        public void onNext(T crop) {
+            this.crop = crop;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+
+        }
+
+        @Override
+        public void onComplete() {
+
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package eu.darken.rxshell.cmd;
 
+import android.support.annotation.Nullable;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -7,7 +9,12 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.EnvVar;
 import eu.darken.rxshell.extra.HasEnvironmentVariables;
 import eu.darken.rxshell.extra.RXSDebug;
@@ -17,8 +24,11 @@ import eu.darken.rxshell.process.ProcessKiller;
 import eu.darken.rxshell.process.RootKiller;
 import eu.darken.rxshell.process.RxProcess;
 import eu.darken.rxshell.process.UserKiller;
+import eu.darken.rxshell.pump.Pump;
+import eu.darken.rxshell.shell.OverflowPolicy;
 import eu.darken.rxshell.shell.RxShell;
 import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.core.SingleObserver;
 import io.reactivex.rxjava3.core.SingleOnSubscribe;
@@ -32,7 +42,19 @@ public class RxCmdShell {
     final Map<String, String> environment;
     final RxShell rxShell;
     final CmdProcessor.Factory processorFactory;
+    final ExecutionConfig executionConfig;
+    // The pump runs the command queue, it needs no dispatch thread
+    final boolean pumped;
+    final Standby standby;
+    final long lingerMillis;
+    final AtomicLong oneShotSpawns = new AtomicLong();
+    final AtomicLong oneShotReuses = new AtomicLong();
     Single<Session> session;
+    // The session was opened by a one-shot and is closed once they stop coming
+    boolean lingering = false;
+    // Lingering one-shots that are running
+    int oneShots = 0;
+    Disposable reaper;
 
     @SuppressWarnings("unused")
     private RxCmdShell() throws InstantiationException {
@@ -40,9 +62,21 @@ public class RxCmdShell {
     }
 
     RxCmdShell(Builder builder, RxShell rxShell) {
+        this(builder, rxShell, builder.getStandby());
+    }
+
+    /**
+     * @param standby how many sessions to keep open in the background, see {@link Builder#standby(int)}.
+     */
+    RxCmdShell(Builder builder, RxShell rxShell, int standby) {
         environment = builder.getEnvironment();
         processorFactory = builder.getProcessorFactory();
+        executionConfig = builder.getExecutionConfig();
+        pumped = builder.getPump() != null;
         this.rxShell = rxShell;
+        this.lingerMillis = builder.getLingerMillis();
+        this.standby = standby > 0 ? new Standby(builder.snapshot(), standby) : null;
+        if (this.standby != null) this.standby.fill();
     }
 
     /**
@@ -53,56 +87,169 @@ public class RxCmdShell {
      */
     public synchronized Single<Session> open() {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("open()");
-        if (session == null) {
-            session = Single
-                    .create((SingleOnSubscribe<Session>) emitter -> rxShell.open().subscribe(new SingleObserver<RxShell.Session>() {
-                        @Override
-                        public void onSubscribe(Disposable d) {
-
-                        }
-
-                        @Override
-                        public void onSuccess(RxShell.Session shellSession) {
-                            try {
-                                final Iterator<Map.Entry<String, String>> envIterator = environment.entrySet().iterator();
-                                while (envIterator.hasNext()) {
-                                    final Map.Entry<String, String> entry = envIterator.next();
-                                    shellSession.writeLine(entry.getKey() + "=" + entry.getValue(), !envIterator.hasNext());
-                                }
-                            } catch (IOException e) {
-                                emitter.tryOnError(e);
-                                return;
-                            }
-                            CmdProcessor cmdProcessor = processorFactory.create();
-                            cmdProcessor.attach(shellSession);
-                            final Session cmdShellSession = new Session(shellSession, cmdProcessor);
-                            emitter.onSuccess(cmdShellSession);
-                        }
+        // Whoever opens it explicitly, closes it
+        lingering = false;
+        if (reaper != null) reaper.dispose();
+        return openSession();
+    }
 
-                        @Override
-                        public void onError(Throwable e) {
-                            Timber.tag(TAG).w("Failed to open RxShell session!");
-                            synchronized (RxCmdShell.this) {
-                                session = null;
-                            }
-                            emitter.tryOnError(e);
-                        }
-                    }))
-                    .subscribeOn(Schedulers.io())
+    private synchronized Single<Session> openSession() {
+        if (session == null) {
+            final Session spare = standby != null ? standby.take() : null;
+            final Single<Session> source;
+            if (spare != null) source = Single.just(spare);
+            else if (standby != null) source = standby.timed(create());
+            else source = create();
+            final AtomicReference<Single<Session>> opened = new AtomicReference<>();
+            session = source
                     .doOnSuccess(s -> {
                         if (RXSDebug.isDebug()) Timber.tag(TAG).v("open():doOnSuccess %s", s);
-                        s.waitFor().subscribe(integer -> {
-                            synchronized (RxCmdShell.this) {
-                                session = null;
-                            }
-                        }, e -> Timber.tag(TAG).w(e, "Error resetting session."));
+                        s.waitFor().subscribe(integer -> clearSession(opened.get()), e -> Timber.tag(TAG).w(e, "Error resetting session."));
+                    })
+                    .doOnError(t -> {
+                        if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "open():doOnError");
+                        clearSession(opened.get());
                     })
-                    .doOnError(t -> {if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "open():doOnError");})
                     .cache();
+            opened.set(session);
         }
         return session;
     }
 
+    /**
+     * Only if it's still the current one, a late notice must not drop a newer session.
+     */
+    private synchronized void clearSession(Single<Session> ended) {
+        if (session == ended) session = null;
+    }
+
+    /**
+     * @return {@code true} if one-shots should use {@link #submitLingering(Cmd)}.
+     * @see Builder#linger(long, TimeUnit)
+     */
+    boolean lingers() {
+        return lingerMillis > 0;
+    }
+
+    /**
+     * Counts a one-shot without lingering.
+     *
+     * @param reused {@code true} if it runs on a session that was already open.
+     */
+    void countOneShot(boolean reused) {
+        (reused ? oneShotReuses : oneShotSpawns).incrementAndGet();
+    }
+
+    /**
+     * Runs the command on the current session, or on a new one that is kept for further one-shots until none came for the linger time.
+     *
+     * @see Cmd.Builder#submit(RxCmdShell)
+     */
+    Single<Cmd.Result> submitLingering(Cmd cmd) {
+        return Single.defer(() -> {
+            final Single<Session> session;
+            synchronized (this) {
+                if (this.session != null) {
+                    oneShotReuses.incrementAndGet();
+                } else {
+                    oneShotSpawns.incrementAndGet();
+                    lingering = true;
+                }
+                oneShots++;
+                if (reaper != null) reaper.dispose();
+                session = openSession();
+            }
+            return session.flatMap(s -> s.submit(cmd)).doFinally(this::oneShotDone);
+        });
+    }
+
+    private synchronized void oneShotDone() {
+        if (--oneShots > 0 || !lingering) return;
+        reaper = Schedulers.computation().scheduleDirect(this::reap, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void reap() {
+        final Single<Session> lingered;
+        synchronized (this) {
+            if (!lingering || oneShots > 0 || session == null) return;
+            if (RXSDebug.isDebug()) Timber.tag(TAG).d("Closing lingering session.");
+            lingering = false;
+            lingered = session;
+            // One-shots from now on open a new one, instead of running on the closing one
+            session = null;
+            lingered.subscribe(Session::markEnding, e -> { });
+        }
+        lingered.flatMap(Session::close).subscribe(code -> { }, e -> Timber.tag(TAG).w(e, "Failed to close lingering session."));
+    }
+
+    /**
+     * @return how many one-shots had to open a new session.
+     * @see Cmd.Builder#submit(RxCmdShell)
+     * @see Builder#linger(long, TimeUnit)
+     */
+    public long getOneShotSpawnCount() {
+        return oneShotSpawns.get();
+    }
+
+    /**
+     * @return how many one-shots ran on a session that was already open.
+     * @see Cmd.Builder#submit(RxCmdShell)
+     * @see Builder#linger(long, TimeUnit)
+     */
+    public long getOneShotReuseCount() {
+        return oneShotReuses.get();
+    }
+
+    /**
+     * Starts the shell and sets its environment, on subscription.
+     * <p>Fails with a {@link RejectedExecutionException} if there is no dispatch thread left for its command queue.
+     */
+    private Single<Session> create() {
+        final Single<Session> opening = Single
+                .create((SingleOnSubscribe<Session>) emitter -> rxShell.open().subscribe(new SingleObserver<RxShell.Session>() {
+                    @Override
+                    public void onSubscribe(Disposable d) {
+
+                    }
+
+                    @Override
+                    public void onSuccess(RxShell.Session shellSession) {
+                        try {
+                            final Iterator<Map.Entry<String, String>> envIterator = environment.entrySet().iterator();
+                            while (envIterator.hasNext()) {
+                                final Map.Entry<String, String> entry = envIterator.next();
+                                shellSession.writeLine(entry.getKey() + "=" + entry.getValue(), !envIterator.hasNext());
+                            }
+                        } catch (IOException e) {
+                            if (!pumped) executionConfig.releaseDispatch();
+                            emitter.tryOnError(e);
+                            return;
+                        }
+                        CmdProcessor cmdProcessor = processorFactory.create();
+                        if (!pumped) cmdProcessor.onStopped(executionConfig::releaseDispatch);
+                        cmdProcessor.attach(shellSession);
+                        final Session cmdShellSession = new Session(shellSession, cmdProcessor);
+                        emitter.onSuccess(cmdShellSession);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        Timber.tag(TAG).w("Failed to open RxShell session!");
+                        if (!pumped) executionConfig.releaseDispatch();
+                        synchronized (RxCmdShell.this) {
+                            session = null;
+                        }
+                        emitter.tryOnError(e);
+                    }
+                }))
+                .subscribeOn(executionConfig.getDispatchScheduler());
+        return Single.defer(() -> {
+            // Checked before we queue on the dispatch scheduler, a full pool would never get to us
+            if (pumped || executionConfig.reserveDispatch()) return opening;
+            return Single.error(new RejectedExecutionException("No dispatch threads left for another session: " + executionConfig));
+        });
+    }
+
     /**
      * @see Session#isAlive()
      */
@@ -120,7 +267,8 @@ public class RxCmdShell {
     public synchronized Completable cancel() {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("cancel()");
         if (session == null) return Completable.complete();
-        else return session.flatMapCompletable(Session::cancel);
+        final Single<Session> current = session;
+        return current.flatMapCompletable(Session::cancel).doOnComplete(() -> clearSession(current));
     }
 
     /**
@@ -131,7 +279,25 @@ public class RxCmdShell {
     public synchronized Single<Integer> close() {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("close()");
         if (session == null) return Single.just(Cmd.ExitCode.OK);
-        else return session.flatMap(Session::close);
+        final Single<Session> current = session;
+        return current.flatMap(Session::close).doOnSuccess(code -> clearSession(current));
+    }
+
+    /**
+     * @return how often {@link #open()} could use a standby session, or {@code null} without {@link Builder#standby(int)}.
+     */
+    @Nullable
+    public StandbyStats getStandbyStats() {
+        return standby != null ? standby.getStats() : null;
+    }
+
+    /**
+     * Closes the standby sessions and stops opening new ones, the current session is not affected.
+     * <p>Without {@link Builder#standby(int)} this just completes.
+     */
+    public Completable closeStandby() {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).v("closeStandby()");
+        return standby != null ? standby.close() : Completable.complete();
     }
 
     public static class Session {
@@ -167,6 +333,17 @@ public class RxCmdShell {
             return cmdProcessor.submit(cmd);
         }
 
+        /**
+         * Submits many commands at once, e.g. to {@code stat} or {@code chmod} a large set of files.
+         * <p>The whole batch is written to the shell in one go, only commands that need to run alone (e.g. with line callbacks) are written separately.
+         *
+         * @param cmds the commands to execute, in order
+         * @return a {@link Flowable} that when subscribed to will submit the commands and emit their results in order.
+         */
+        public Flowable<Cmd.Result> submitAll(Collection<Cmd> cmds) {
+            return cmdProcessor.submitAll(cmds);
+        }
+
         /**
          * @return {@code true} if the current {@link Session} is alive and usable for command submission.
          */
@@ -204,6 +381,54 @@ public class RxCmdShell {
             return close;
         }
 
+        /**
+         * @see RxShell.Session#markEnding()
+         */
+        void markEnding() {
+            session.markEnding();
+        }
+
+        /**
+         * A session normally blocks five threads: two pipe readers, two process waits and the command dispatcher.
+         * Sessions that run on a {@link Pump} block none, their work is done by the pump's shared threads.
+         *
+         * @return how many threads are currently blocked on behalf of this session.
+         * @see Builder#pump(Pump)
+         */
+        public int getThreadCount() {
+            return session.getThreadCount() + cmdProcessor.getThreadCount();
+        }
+
+        /**
+         * @return how many output lines were dropped so far.
+         * @see Builder#overflowPolicy(OverflowPolicy)
+         */
+        public long getDroppedLines() {
+            return session.getDroppedLines();
+        }
+
+        /**
+         * @return how many commands are waiting to be written to the shell. Only a snapshot.
+         */
+        public int getQueueSize() {
+            return cmdProcessor.getQueueSize();
+        }
+
+        /**
+         * @return how many commands were turned away with {@link Cmd.ExitCode#REJECTED} because the queue was full.
+         * @see Builder#admission(Admission)
+         */
+        public long getRejectedCount() {
+            return cmdProcessor.getRejectedCount();
+        }
+
+        /**
+         * @return how long each tenant's commands waited and took, by tenant. Empty without {@link Fairness}.
+         * @see Builder#fairness(Fairness)
+         */
+        public Map<String, TenantStats> getTenantStats() {
+            return cmdProcessor.getTenantStats();
+        }
     }
 
     public static Builder builder() {
@@ -213,11 +438,43 @@ public class RxCmdShell {
     public static class Builder {
         private final List<HasEnvironmentVariables> envVarSources = new ArrayList<>();
         private final Map<String, String> environment = new HashMap<>();
-        private final CmdProcessor.Factory processorFactory = new CmdProcessor.Factory(new Harvester.Factory());
         private boolean useRoot = false;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.defaultPolicy();
+        private ExecutionConfig executionConfig = ExecutionConfig.defaultConfig();
+        private Pump pump;
+        private int pipelineDepth = 1;
+        private Coalescing coalescing;
+        private Admission admission;
+        private Fairness fairness;
+        private int standby = 0;
+        private long lingerMillis = 0;
 
         CmdProcessor.Factory getProcessorFactory() {
-            return processorFactory;
+            final CmdProcessor.Options options = CmdProcessor.Options.builder()
+                    .executionConfig(executionConfig)
+                    .pipelineDepth(pipelineDepth)
+                    .coalesce(coalescing)
+                    .admission(admission)
+                    .fairness(fairness)
+                    .build();
+            return new CmdProcessor.Factory(new Harvester.Factory(), options);
+        }
+
+        ExecutionConfig getExecutionConfig() {
+            return executionConfig;
+        }
+
+        int getStandby() {
+            return standby;
+        }
+
+        @Nullable
+        Pump getPump() {
+            return pump;
+        }
+
+        long getLingerMillis() {
+            return lingerMillis;
         }
 
         /**
@@ -268,12 +525,161 @@ public class RxCmdShell {
             return this;
         }
 
+        /**
+         * What to do with output lines that the shell produces faster than they are consumed.
+         * <p>A {@link OverflowPolicy#ring(int)} never drops the lines that end commands, see {@link OverflowPolicy#keeping(OverflowPolicy.LineFilter)}.
+         * Other lines are lost, {@link Session#getDroppedLines()} counts them.
+         *
+         * @param overflowPolicy the policy for {@code STDOUT} and {@code STDERR}. Defaults to {@link OverflowPolicy#defaultPolicy()}.
+         */
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Which threads the shell uses to read its output, dispatch commands and deliver results.
+         * <p>Use this to keep shell work off {@link io.reactivex.rxjava3.schedulers.Schedulers#io()}, to cap it or to monitor it.
+         *
+         * @param executionConfig the config to use. Defaults to {@link ExecutionConfig#defaultConfig()}.
+         */
+        public Builder executionConfig(ExecutionConfig executionConfig) {
+            this.executionConfig = executionConfig;
+            return this;
+        }
+
+        /**
+         * Runs the session's pipe reading, exit detection and command dispatch on a {@link Pump} instead of blocking threads.
+         * <p>One pump can be shared by many shells.
+         * <p>The pump polls instead of blocking. Output of a command that runs for a while can arrive up to the pump's longest pause late,
+         * see {@link Pump#Pump(int, long, long, java.util.concurrent.TimeUnit)}, and idle sessions still cost a few wakeups per second.
+         * Before Oreo, the exit of the shell process is noticed a few milliseconds late.
+         * Use blocking threads for the lowest latency, a pump for many sessions on few threads.
+         *
+         * @param pump the pump to use, or {@code null} for blocking threads. Defaults to {@code null}.
+         */
+        public Builder pump(@Nullable Pump pump) {
+            this.pump = pump;
+            return this;
+        }
+
+        /**
+         * Lets up to {@code depth} queued commands be written to the shell while earlier ones are still running.
+         * <p>The shell then runs a burst of short commands back-to-back, instead of waiting on us between each of them.
+         * Results are still matched by their markers and emitted in submission order.
+         * <p>Commands using {@link Cmd.Builder#outputCallback(Cmd.LineCallback)}, {@link Cmd.Builder#errorCallback(Cmd.LineCallback)}
+         * or {@link Cmd.Builder#outputSink(ByteSink)} still run alone.
+         * <p>Timeouts start once the shell gets to the command. If one is hit, all commands in flight fail.
+         *
+         * @param depth how many commands may be in flight, defaults to {@code 1}.
+         */
+        public Builder pipeline(int depth) {
+            if (depth < 1) throw new IllegalArgumentException("Pipeline depth needs to be at least 1");
+            this.pipelineDepth = depth;
+            return this;
+        }
+
+        /**
+         * Collects single commands that are submitted within a short window and writes them to the shell in one go.
+         * <p>Trades a bounded delay for fewer writes and wakeups when many callers submit tiny commands at once.
+         * A group runs like a pipelined batch, each command still gets its own result.
+         *
+         * @param coalescing the window and caps to use, or {@code null} to write each command on its own. Defaults to {@code null}.
+         */
+        public Builder coalesce(@Nullable Coalescing coalescing) {
+            this.coalescing = coalescing;
+            return this;
+        }
+
+        /**
+         * Bounds how many commands may wait for the shell, so a runaway producer can't queue commands until we run out of memory.
+         *
+         * @param admission the capacity and what to do if it's reached, or {@code null} for an unbounded queue. Defaults to {@code null}.
+         */
+        public Builder admission(@Nullable Admission admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        /**
+         * Shares the session between the components that submit to it, so one that floods it can't starve the others.
+         * <p>Commands are tagged with {@link Cmd.Builder#tenant(String)}, each tenant gets a share of the commands run according to its weight.
+         *
+         * @param fairness the tenants' weights, or {@code null} to run commands in order regardless of their tenant. Defaults to {@code null}.
+         */
+        public Builder fairness(@Nullable Fairness fairness) {
+            this.fairness = fairness;
+            return this;
+        }
+
+        /**
+         * Keeps sessions open in the background, so that {@link RxCmdShell#open()} returns one right away.
+         * <p>Opening a shell can take hundreds of milliseconds, e.g. for {@code su}. This happens on the first {@link RxCmdShell#open()}
+         * and again after a session died. With a standby, that time is spent ahead, each session that is taken is replaced right away.
+         * <p>The standby sessions are opened once the shell is built. Each is a separate shell process that counts against the system's limits.
+         * Use {@link RxCmdShell#closeStandby()} to close them when the shell isn't needed anymore.
+         *
+         * @param count how many sessions to keep ready, defaults to {@code 0}.
+         * @see RxCmdShell#getStandbyStats()
+         */
+        public Builder standby(int count) {
+            if (count < 0) throw new IllegalArgumentException("Standby count can't be negative");
+            this.standby = count;
+            return this;
+        }
+
+        /**
+         * Keeps sessions that were opened by one-shots, i.e. {@link Cmd.Builder#execute(RxCmdShell)} or {@link Cmd.Builder#submit(RxCmdShell)}.
+         * <p>Normally, a one-shot that finds no open session opens one and closes it right after its command.
+         * With a linger time, the session is reused by further one-shots and only closed once none came for that long.
+         * A session that is opened via {@link RxCmdShell#open()} is never closed by one-shots.
+         *
+         * @param time defaults to {@code 0}, no lingering.
+         * @see RxCmdShell#getOneShotSpawnCount()
+         * @see RxCmdShell#getOneShotReuseCount()
+         */
+        public Builder linger(long time, TimeUnit unit) {
+            if (time < 0) throw new IllegalArgumentException("Linger time can't be negative");
+            this.lingerMillis = unit.toMillis(time);
+            return this;
+        }
+
+        /**
+         * A copy with the environment providers already called.
+         * <p>Building from it neither reads nor changes this builder, so it can be used from other threads and later changes don't apply to it.
+         */
+        Builder snapshot() {
+            final Builder copy = new Builder();
+            copy.environment.putAll(environment);
+            for (HasEnvironmentVariables envVars : envVarSources) {
+                copy.shellEnvironment(envVars.getEnvironmentVariables(useRoot));
+            }
+            copy.useRoot = useRoot;
+            copy.overflowPolicy = overflowPolicy;
+            copy.executionConfig = executionConfig;
+            copy.pump = pump;
+            copy.pipelineDepth = pipelineDepth;
+            copy.coalescing = coalescing;
+            copy.admission = admission;
+            copy.fairness = fairness;
+            copy.standby = standby;
+            copy.lingerMillis = lingerMillis;
+            return copy;
+        }
+
         /**
          * Each call creates a new instance.
          *
          * @return a new {@link RxCmdShell} instance.
          */
         public RxCmdShell build() {
+            return build(standby);
+        }
+
+        /**
+         * @param standby how many sessions this instance keeps ready, {@code 0} for the standby sessions themselves.
+         */
+        RxCmdShell build(int standby) {
             for (HasEnvironmentVariables envVars : envVarSources) {
                 shellEnvironment(envVars.getEnvironmentVariables(useRoot));
             }
@@ -281,9 +687,9 @@ public class RxCmdShell {
             final ProcessFactory processFactory = new DefaultProcessFactory();
             final ProcessKiller processKiller = useRoot ? new RootKiller(processFactory) : new UserKiller();
             final String command = useRoot ? "su" : "sh";
-            RxShell rxShell = new RxShell(new RxProcess(processFactory, processKiller, command));
+            RxShell rxShell = new RxShell(new RxProcess(processFactory, processKiller, pump, executionConfig, command), overflowPolicy.keeping(Pipeline::mayCarryMarker), executionConfig);
 
-            return new RxCmdShell(this, rxShell);
+            return new RxCmdShell(this, rxShell, standby);
         }
 
         /**
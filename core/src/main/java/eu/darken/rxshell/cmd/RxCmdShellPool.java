@@ -0,0 +1,625 @@
+package eu.darken.rxshell.cmd;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.functions.Action;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import timber.log.Timber;
+
+/**
+ * Runs commands on several sessions of the same shell, so they can run in parallel.
+ * <p>Each session is its own shell process with its own queue. A command is routed to the open session with the fewest outstanding commands.
+ * Commands that depend on each other's shell state, e.g. {@code cd} or variables, need to be submitted together via {@link #submitAll(Collection)}.
+ * <p>The pool opens its minimum number of sessions right away.
+ * Once every session has {@link Builder#growThreshold(int)} commands outstanding, another one is opened, up to the maximum.
+ * Sessions above the minimum are closed after they were idle for {@link Builder#idleTimeout(long, TimeUnit)}.
+ * Sessions that die are dropped and replaced if the pool falls below its minimum.
+ * <p>With {@link Builder#hedge(Hedging)}, slow read-only commands get a second copy on another session.
+ */
+public class RxCmdShellPool {
+    static final String TAG = "RXS:RxCmdShellPool";
+    final RxCmdShell.Builder template;
+    final int minSessions;
+    final int maxSessions;
+    final int growThreshold;
+    final long idleTimeoutNanos;
+    @Nullable final Hedging hedging;
+    final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<>();
+    final AtomicLong submitted = new AtomicLong();
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong hedged = new AtomicLong();
+    final AtomicLong hedgeWins = new AtomicLong();
+    final LatencyWindow latencies = new LatencyWindow();
+    final long createdAt = System.nanoTime();
+    final Disposable maintenance;
+    // Of sessions that left the pool
+    long retiredBusyNanos = 0;
+    long retiredOpenNanos = 0;
+    int opening = 0;
+    volatile boolean closed = false;
+
+    RxCmdShellPool(Builder builder) {
+        // The pool keeps its own sessions ready, each member having spares or lingering too would multiply them
+        this.template = builder.template.snapshot().standby(0).linger(0, TimeUnit.MILLISECONDS);
+        this.minSessions = builder.minSessions;
+        this.maxSessions = builder.maxSessions;
+        this.growThreshold = builder.growThreshold;
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+        this.hedging = builder.hedging;
+        ensureMinimum();
+        this.maintenance = Schedulers.computation().schedulePeriodicallyDirect(
+                this::maintain, builder.healthCheckMillis, builder.healthCheckMillis, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Same as {@link RxCmdShell.Session#submit(Cmd)}, on the session with the least outstanding work.
+     * <p>If no session is open yet, the command waits for one, errors while opening it are passed on.
+     * Once the pool is closed, commands return {@link Cmd.ExitCode#SHELL_DIED}.
+     * <p>The command may be hedged, see {@link Hedging}.
+     */
+    public Single<Cmd.Result> submit(Cmd cmd) {
+        return Single.defer(() -> {
+            final Member member = acquire(1);
+            if (member == null) return Single.just(new Cmd.Result(cmd, Cmd.ExitCode.SHELL_DIED));
+            final long start = System.nanoTime();
+            Single<Cmd.Result> result = run(member, cmd);
+            if (hedging != null && hedging.accepts(cmd)) {
+                final long delay = hedging.delayNanos(latencies);
+                if (delay >= 0) result = hedge(member, cmd, result, delay);
+            }
+            return result.doOnSuccess(r -> latencies.record(System.nanoTime() - start));
+        });
+    }
+
+    private Single<Cmd.Result> run(Member member, Cmd cmd) {
+        final Action release = releaseOnce(member, 1);
+        return member.open
+                .flatMap(session -> session.submit(cmd))
+                .doOnSuccess(result -> completed.incrementAndGet())
+                .doOnEvent((result, error) -> release.run())
+                .doOnDispose(release);
+    }
+
+    /**
+     * Races the command against a copy on another open session, started after the delay if there is still no result.
+     * Disposing the loser cancels it, see {@link RxCmdShell.Session#submit(Cmd)}.
+     * If there is no other open session, there is no copy, but the pool may grow for the next time.
+     */
+    private Single<Cmd.Result> hedge(Member primary, Cmd cmd, Single<Cmd.Result> first, long delayNanos) {
+        final AtomicBoolean won = new AtomicBoolean(false);
+        final Single<Cmd.Result> second = Single.timer(delayNanos, TimeUnit.NANOSECONDS).flatMap(tick -> {
+            final Member other = acquireOther(primary);
+            if (other == null) {
+                grow(false);
+                return Single.never();
+            }
+            hedged.incrementAndGet();
+            if (RXSDebug.isDebug()) Timber.tag(TAG).d("Hedging %s on %s", cmd, other);
+            return run(other, cmd).doOnSuccess(result -> won.set(true));
+        });
+        return Single.ambArray(first, second).doOnSuccess(result -> {
+            if (won.get()) hedgeWins.incrementAndGet();
+        });
+    }
+
+    /**
+     * Same as {@link RxCmdShell.Session#submitAll(Collection)}, all commands run on the same session.
+     */
+    public Flowable<Cmd.Result> submitAll(Collection<Cmd> cmds) {
+        return Flowable.defer(() -> {
+            if (cmds.isEmpty()) return Flowable.empty();
+            final Member member = acquire(cmds.size());
+            if (member == null) {
+                final List<Cmd.Result> results = new ArrayList<>(cmds.size());
+                for (Cmd cmd : cmds) results.add(new Cmd.Result(cmd, Cmd.ExitCode.SHELL_DIED));
+                return Flowable.fromIterable(results);
+            }
+            final Action release = releaseOnce(member, cmds.size());
+            return member.open
+                    .flatMapPublisher(session -> session.submitAll(cmds))
+                    .doOnNext(result -> completed.incrementAndGet())
+                    .doOnTerminate(release)
+                    .doOnCancel(release);
+        });
+    }
+
+    /**
+     * Before the result is delivered, so it's not counted as outstanding anymore once it arrived.
+     */
+    private static Action releaseOnce(Member member, int count) {
+        final AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if (released.compareAndSet(false, true)) member.release(count);
+        };
+    }
+
+    /**
+     * Picks the open session with the fewest outstanding commands, sessions that are still opening only if there is no other.
+     * Lock-free unless the pool has to grow.
+     *
+     * @return {@code null} if the pool is closed.
+     */
+    private Member acquire(int count) {
+        while (!closed) {
+            Member best = null;
+            for (Member member : members) {
+                if (member.isRetired()) continue;
+                if (best == null || (member.isOpen() && !best.isOpen())
+                        || (member.isOpen() == best.isOpen() && member.outstanding < best.outstanding)) {
+                    best = member;
+                }
+            }
+            if (best == null || !best.isOpen() || best.outstanding >= growThreshold) {
+                final Member grown = grow(best == null);
+                if (best == null) best = grown;
+            }
+            // Closed meanwhile or evicted since we looked, it's skipped next time
+            if (best != null && best.tryAcquire(count)) {
+                submitted.addAndGet(count);
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * For hedging, only sessions that are open, waiting for a new one would rarely be faster.
+     *
+     * @return the open session with the fewest outstanding commands except the given one, {@code null} if there is none.
+     */
+    private Member acquireOther(Member except) {
+        while (!closed) {
+            Member best = null;
+            for (Member member : members) {
+                if (member == except || !member.isOpen() || member.isRetired()) continue;
+                if (best == null || member.outstanding < best.outstanding) best = member;
+            }
+            if (best == null) return null;
+            if (best.tryAcquire(1)) return best;
+        }
+        return null;
+    }
+
+    /**
+     * @param force open one even if another one is already opening.
+     * @return the new member, {@code null} if the pool is at its maximum or closed.
+     */
+    private synchronized Member grow(boolean force) {
+        if (closed || members.size() >= maxSessions || (opening > 0 && !force)) return null;
+        final Member member = new Member(template.build());
+        members.add(member);
+        opening++;
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Opening session %d of at most %d", members.size(), maxSessions);
+        member.open.subscribe(session -> onOpened(member, session), error -> onOpenFailed(member, error));
+        return member;
+    }
+
+    private synchronized void ensureMinimum() {
+        while (!closed && members.size() < minSessions) grow(true);
+    }
+
+    private void onOpened(Member member, RxCmdShell.Session session) {
+        synchronized (this) {
+            opening--;
+            member.opened(session);
+        }
+        session.waitFor().subscribe(code -> onEnded(member), error -> onEnded(member));
+    }
+
+    /**
+     * Not replaced right away, e.g. if root was denied, another attempt would likely fail too.
+     * The next health check tries again if the pool is below its minimum.
+     */
+    private void onOpenFailed(Member member, Throwable error) {
+        Timber.tag(TAG).w(error, "Failed to open session.");
+        synchronized (this) {
+            opening--;
+        }
+        remove(member);
+    }
+
+    private void onEnded(Member member) {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Session ended: %s", member);
+        if (remove(member)) ensureMinimum();
+    }
+
+    private synchronized boolean remove(Member member) {
+        if (!members.remove(member)) return false;
+        final long now = System.nanoTime();
+        member.retire();
+        retiredBusyNanos += member.busyNanos(now);
+        retiredOpenNanos += member.openNanos(now);
+        return true;
+    }
+
+    /**
+     * Runs periodically, closes idle sessions above the minimum and drops those that aren't alive anymore.
+     */
+    private void maintain() {
+        final long now = System.nanoTime();
+        for (Member member : members) {
+            final RxCmdShell.Session session = member.session;
+            if (session == null) continue;
+            final boolean evict;
+            synchronized (this) {
+                evict = members.size() > minSessions && member.retireIfIdle(now, idleTimeoutNanos) && remove(member);
+            }
+            if (evict) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).d("Closing idle session: %s", member);
+                session.close().subscribe(code -> { }, error -> { });
+                continue;
+            }
+            session.isAlive().subscribe(alive -> {
+                if (alive) return;
+                Timber.tag(TAG).w("Dropping dead session: %s", member);
+                session.cancel().subscribe(() -> { }, error -> { });
+                onEnded(member);
+            }, error -> Timber.tag(TAG).w(error, "Health check failed for %s", member));
+        }
+        ensureMinimum();
+    }
+
+    /**
+     * Closes all sessions once their commands finished.
+     */
+    public Completable close() {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).v("close()");
+        return end(session -> session.close().ignoreElement());
+    }
+
+    /**
+     * Cancels all sessions, see {@link RxCmdShell.Session#cancel()}.
+     */
+    public Completable cancel() {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).v("cancel()");
+        return end(RxCmdShell.Session::cancel);
+    }
+
+    private interface Ending {
+        Completable end(RxCmdShell.Session session);
+    }
+
+    private Completable end(Ending ending) {
+        final List<Member> ended;
+        synchronized (this) {
+            closed = true;
+            maintenance.dispose();
+            ended = new ArrayList<>(members);
+        }
+        final List<Completable> completables = new ArrayList<>(ended.size());
+        for (Member member : ended) {
+            completables.add(member.open.flatMapCompletable(ending::end).onErrorComplete());
+        }
+        return Completable.merge(completables);
+    }
+
+    /**
+     * @return how many sessions are open or opening.
+     */
+    public int getSessionCount() {
+        return members.size();
+    }
+
+    /**
+     * Counted since the pool was created.
+     */
+    public synchronized Stats getStats() {
+        final long now = System.nanoTime();
+        long busyNanos = retiredBusyNanos;
+        long openNanos = retiredOpenNanos;
+        int busy = 0;
+        int outstanding = 0;
+        for (Member member : members) {
+            busyNanos += member.busyNanos(now);
+            openNanos += member.openNanos(now);
+            final int memberOutstanding = member.outstanding;
+            if (memberOutstanding > 0) busy++;
+            outstanding += memberOutstanding;
+        }
+        return new Stats(members.size(), busy, outstanding, submitted.get(), completed.get(), now - createdAt, busyNanos, openNanos,
+                hedged.get(), hedgeWins.get(), latencies.percentile(50), latencies.percentile(99));
+    }
+
+    @Override
+    public String toString() {
+        return "RxCmdShellPool(sessions=" + members.size() + ", min=" + minSessions + ", max=" + maxSessions + ")";
+    }
+
+    static class Member {
+        final RxCmdShell shell;
+        final Single<RxCmdShell.Session> open;
+        volatile RxCmdShell.Session session;
+        // Guarded by this, but read without it for routing
+        volatile int outstanding = 0;
+        // Guarded by this, but read without it for routing
+        private volatile boolean retired = false;
+        private long openedAt;
+        private long retiredAt;
+        private long busySince;
+        private long busyNanos = 0;
+        private long lastActive;
+
+        Member(RxCmdShell shell) {
+            this.shell = shell;
+            this.open = shell.open();
+        }
+
+        boolean isOpen() {
+            return session != null;
+        }
+
+        boolean isRetired() {
+            return retired;
+        }
+
+        synchronized void opened(RxCmdShell.Session session) {
+            this.session = session;
+            this.openedAt = System.nanoTime();
+            this.lastActive = openedAt;
+        }
+
+        /**
+         * @return {@code false} if it left the pool, the caller has to pick another one.
+         */
+        synchronized boolean tryAcquire(int count) {
+            if (retired) return false;
+            if (outstanding == 0) busySince = System.nanoTime();
+            outstanding += count;
+            return true;
+        }
+
+        synchronized void release(int count) {
+            outstanding -= count;
+            lastActive = System.nanoTime();
+            if (outstanding == 0) busyNanos += lastActive - busySince;
+        }
+
+        synchronized boolean retireIfIdle(long now, long idleTimeoutNanos) {
+            if (retired || outstanding > 0 || now - lastActive < idleTimeoutNanos) return false;
+            retired = true;
+            return true;
+        }
+
+        synchronized void retire() {
+            if (retiredAt == 0) retiredAt = System.nanoTime();
+            retired = true;
+        }
+
+        synchronized long busyNanos(long now) {
+            return busyNanos + (outstanding > 0 ? now - busySince : 0);
+        }
+
+        synchronized long openNanos(long now) {
+            if (session == null) return 0;
+            return (retiredAt != 0 ? retiredAt : now) - openedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Member(open=" + isOpen() + ", outstanding=" + outstanding + ")";
+        }
+    }
+
+    public static class Stats {
+        private final int sessions;
+        private final int busySessions;
+        private final int outstanding;
+        private final long submitted;
+        private final long completed;
+        private final long uptimeNanos;
+        private final long busyNanos;
+        private final long openNanos;
+        private final long hedged;
+        private final long hedgeWins;
+        private final long p50Nanos;
+        private final long p99Nanos;
+
+        Stats(int sessions, int busySessions, int outstanding, long submitted, long completed, long uptimeNanos, long busyNanos, long openNanos,
+              long hedged, long hedgeWins, long p50Nanos, long p99Nanos) {
+            this.sessions = sessions;
+            this.busySessions = busySessions;
+            this.outstanding = outstanding;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.uptimeNanos = uptimeNanos;
+            this.busyNanos = busyNanos;
+            this.openNanos = openNanos;
+            this.hedged = hedged;
+            this.hedgeWins = hedgeWins;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        /**
+         * @return sessions that are open or opening.
+         */
+        public int getSessions() {
+            return sessions;
+        }
+
+        /**
+         * @return sessions with outstanding commands.
+         */
+        public int getBusySessions() {
+            return busySessions;
+        }
+
+        /**
+         * @return commands that were submitted and have no result yet, queued or running.
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return completed commands per second.
+         */
+        public double getThroughput() {
+            return uptimeNanos > 0 ? completed * (double) TimeUnit.SECONDS.toNanos(1) / uptimeNanos : 0;
+        }
+
+        /**
+         * @return the share of the sessions' open time during which they had commands outstanding, between {@code 0} and {@code 1}.
+         */
+        public double getUtilization() {
+            return openNanos > 0 ? Math.min(1, busyNanos / (double) openNanos) : 0;
+        }
+
+        /**
+         * @return copies that were started on a second session, see {@link Hedging}.
+         */
+        public long getHedged() {
+            return hedged;
+        }
+
+        /**
+         * @return copies that delivered the result, i.e. the first attempt was slower.
+         */
+        public long getHedgeWins() {
+            return hedgeWins;
+        }
+
+        /**
+         * Median latency of recent {@link #submit(Cmd)} results, from submission to result, including hedging.
+         */
+        public long getLatencyP50(TimeUnit unit) {
+            return unit.convert(p50Nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @see #getLatencyP50(TimeUnit)
+         */
+        public long getLatencyP99(TimeUnit unit) {
+            return unit.convert(p99Nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "RxCmdShellPool.Stats(sessions=" + sessions + ", busySessions=" + busySessions + ", outstanding=" + outstanding
+                    + ", submitted=" + submitted + ", completed=" + completed
+                    + ", throughput=" + String.format(Locale.ROOT, "%.1f", getThroughput()) + "/s"
+                    + ", utilization=" + String.format(Locale.ROOT, "%.2f", getUtilization())
+                    + ", hedged=" + hedged + ", hedgeWins=" + hedgeWins
+                    + ", p50=" + getLatencyP50(TimeUnit.MILLISECONDS) + "ms, p99=" + getLatencyP99(TimeUnit.MILLISECONDS) + "ms)";
+        }
+    }
+
+    /**
+     * @param template used to build each session. It's copied when the pool is built, later changes don't apply.
+     *                 {@link RxCmdShell.Builder#standby(int)} and {@link RxCmdShell.Builder#linger(long, TimeUnit)} are ignored,
+     *                 the pool keeps its own minimum of sessions open instead.
+     */
+    public static Builder builder(RxCmdShell.Builder template) {
+        return new Builder(template);
+    }
+
+    public static class Builder {
+        final RxCmdShell.Builder template;
+        int minSessions = 1;
+        int maxSessions = 4;
+        int growThreshold = 2;
+        long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+        long healthCheckMillis = TimeUnit.SECONDS.toMillis(10);
+        Hedging hedging;
+
+        Builder(RxCmdShell.Builder template) {
+            this.template = template;
+        }
+
+        /**
+         * Sessions that are kept open, even if idle.
+         *
+         * @param count defaults to {@code 1}.
+         */
+        public Builder minSessions(int count) {
+            this.minSessions = count;
+            return this;
+        }
+
+        /**
+         * @param count defaults to {@code 4}.
+         */
+        public Builder maxSessions(int count) {
+            this.maxSessions = count;
+            return this;
+        }
+
+        /**
+         * The pool grows once each session has this many outstanding commands, i.e. submitted commands without a result.
+         * {@code 1} opens another session as soon as all are running something.
+         *
+         * @param outstanding defaults to {@code 2}.
+         */
+        public Builder growThreshold(int outstanding) {
+            this.growThreshold = outstanding;
+            return this;
+        }
+
+        /**
+         * How long a session above the minimum may be idle before it's closed.
+         * It's checked every {@link #healthCheckInterval(long, TimeUnit)}.
+         *
+         * @param time defaults to 60 seconds.
+         */
+        public Builder idleTimeout(long time, TimeUnit unit) {
+            this.idleTimeoutNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * How often sessions are checked whether they are alive or idle.
+         * Sessions that end are noticed right away, this also catches those that are stuck.
+         *
+         * @param time defaults to 10 seconds.
+         */
+        public Builder healthCheckInterval(long time, TimeUnit unit) {
+            this.healthCheckMillis = unit.toMillis(time);
+            return this;
+        }
+
+        /**
+         * Runs a second copy of slow commands marked with {@link Cmd.Builder#idempotent(boolean)} on another session.
+         *
+         * @param hedging defaults to {@code null}, nothing is hedged.
+         */
+        public Builder hedge(@Nullable Hedging hedging) {
+            this.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * Builds the pool and opens its minimum number of sessions.
+         */
+        public RxCmdShellPool build() {
+            if (minSessions < 0) throw new IllegalArgumentException("Min sessions can't be negative");
+            if (maxSessions < 1) throw new IllegalArgumentException("Max sessions needs to be at least 1");
+            if (minSessions > maxSessions) throw new IllegalArgumentException("Min sessions can't exceed max sessions");
+            if (growThreshold < 1) throw new IllegalArgumentException("Grow threshold needs to be at least 1");
+            if (healthCheckMillis < 1) throw new IllegalArgumentException("Health check interval needs to be positive");
+            return new RxCmdShellPool(this);
+        }
+    }
+}
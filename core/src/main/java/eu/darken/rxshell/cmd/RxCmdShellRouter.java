@@ -0,0 +1,252 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import timber.log.Timber;
+
+/**
+ * Sends each command either to a user shell or to a root shell, behind one submit API.
+ * <p>Commands that don't need root run on the user shell, which takes load off the root shell and doesn't contend for {@code su}.
+ * Where a command goes, depends on {@link Cmd.Builder#privilege(Cmd.Privilege)}:
+ * <ul>
+ * <li>{@link Cmd.Privilege#ROOT} and {@link Cmd.Privilege#USER} go where they are told, failures are not retried.</li>
+ * <li>{@link Cmd.Privilege#UNKNOWN} commands that can safely run twice, see {@link Cmd.Builder#idempotent(boolean)}, are tried on the user shell first.
+ * If that fails with a permission error, see {@link Builder#deniedPattern(Pattern)}, they are run again on the root shell.
+ * The router remembers that they needed root and sends them there right away next time.
+ * They are also run on root if the user shell died or couldn't be opened.</li>
+ * <li>Other {@link Cmd.Privilege#UNKNOWN} commands go to the root shell, like they would without the router.</li>
+ * </ul>
+ * <p>Commands are remembered by their command lines, the least recently used are forgotten beyond {@link Builder#historySize(int)}.
+ */
+public class RxCmdShellRouter {
+    static final String TAG = "RXS:RxCmdShellRouter";
+    /**
+     * What shells and common tools print when they lack the permissions.
+     */
+    public static final Pattern DEFAULT_DENIED_PATTERN = Pattern.compile(
+            "permission denied|operation not permitted|EACCES|EPERM|SecurityException|must be root",
+            Pattern.CASE_INSENSITIVE
+    );
+    /**
+     * Exit code of a shell that found a command but wasn't allowed to execute it.
+     */
+    static final int EXIT_NOT_EXECUTABLE = 126;
+    final RxCmdShell user;
+    final RxCmdShell root;
+    final Pattern denied;
+    // Commands that needed root, only the keys matter
+    final Map<String, Boolean> needsRoot;
+    final AtomicLong userRuns = new AtomicLong();
+    final AtomicLong rootRuns = new AtomicLong();
+    final AtomicLong escalations = new AtomicLong();
+
+    RxCmdShellRouter(Builder builder) {
+        this.user = builder.user;
+        this.root = builder.root;
+        this.denied = builder.denied;
+        final int historySize = builder.historySize;
+        this.needsRoot = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > historySize;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link RxCmdShell.Session#submit(Cmd)}, on the user or the root shell.
+     * The shells are opened when needed, and kept open until {@link #close()}.
+     */
+    public Single<Cmd.Result> submit(Cmd cmd) {
+        return Single.defer(() -> {
+            switch (cmd.getPrivilege()) {
+                case USER:
+                    return run(user, cmd);
+                case ROOT:
+                    return run(root, cmd);
+                default:
+                    if (!cmd.isRepeatable() || needsRoot.get(key(cmd)) != null) return run(root, cmd);
+                    return run(user, cmd)
+                            .onErrorReturn(error -> {
+                                Timber.tag(TAG).w(error, "User shell failed for %s", cmd);
+                                return new Cmd.Result(cmd, Cmd.ExitCode.SHELL_DIED);
+                            })
+                            .flatMap(result -> {
+                                final boolean denied = isDenied(result);
+                                if (!denied && result.getExitCode() != Cmd.ExitCode.SHELL_DIED) return Single.just(result);
+                                if (denied) needsRoot.put(key(cmd), Boolean.TRUE);
+                                escalations.incrementAndGet();
+                                if (RXSDebug.isDebug()) Timber.tag(TAG).d("Retrying on root: %s", cmd);
+                                return run(root, cmd);
+                            });
+            }
+        });
+    }
+
+    private Single<Cmd.Result> run(RxCmdShell shell, Cmd cmd) {
+        (shell == root ? rootRuns : userRuns).incrementAndGet();
+        return shell.open().flatMap(session -> session.submit(cmd));
+    }
+
+    static String key(Cmd cmd) {
+        final StringBuilder key = new StringBuilder();
+        for (String command : cmd.getCommands()) key.append(command).append('\n');
+        return key.toString();
+    }
+
+    /**
+     * @return {@code true} if the command failed for a lack of permissions.
+     */
+    boolean isDenied(Cmd.Result result) {
+        final int exitCode = result.getExitCode();
+        // Ours, e.g. a timeout or a dead shell, or success
+        if (exitCode <= Cmd.ExitCode.OK) return false;
+        if (exitCode == EXIT_NOT_EXECUTABLE) return true;
+        if (result.getErrors() == null) return false;
+        for (String line : result.getErrors()) {
+            if (denied.matcher(line).find()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes both shells once their commands finished.
+     */
+    public Completable close() {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).v("close()");
+        return Completable.mergeArray(user.close().ignoreElement(), root.close().ignoreElement());
+    }
+
+    /**
+     * Cancels both shells, see {@link RxCmdShell#cancel()}.
+     */
+    public Completable cancel() {
+        if (RXSDebug.isDebug()) Timber.tag(TAG).v("cancel()");
+        return Completable.mergeArray(user.cancel(), root.cancel());
+    }
+
+    /**
+     * Counted since the router was created.
+     */
+    public Stats getStats() {
+        return new Stats(userRuns.get(), rootRuns.get(), escalations.get(), needsRoot.size());
+    }
+
+    @Override
+    public String toString() {
+        return "RxCmdShellRouter(user=" + user + ", root=" + root + ")";
+    }
+
+    public static class Stats {
+        private final long userRuns;
+        private final long rootRuns;
+        private final long escalations;
+        private final int learned;
+
+        Stats(long userRuns, long rootRuns, long escalations, int learned) {
+            this.userRuns = userRuns;
+            this.rootRuns = rootRuns;
+            this.escalations = escalations;
+            this.learned = learned;
+        }
+
+        /**
+         * @return commands submitted to the user shell, including attempts that were retried on root.
+         */
+        public long getUserRuns() {
+            return userRuns;
+        }
+
+        /**
+         * @return commands submitted to the root shell, including retries.
+         */
+        public long getRootRuns() {
+            return rootRuns;
+        }
+
+        /**
+         * @return commands that failed on the user shell and were retried on root.
+         */
+        public long getEscalations() {
+            return escalations;
+        }
+
+        /**
+         * @return commands that are remembered to need root.
+         */
+        public int getLearned() {
+            return learned;
+        }
+
+        @Override
+        public String toString() {
+            return "RxCmdShellRouter.Stats(userRuns=" + userRuns + ", rootRuns=" + rootRuns + ", escalations=" + escalations + ", learned=" + learned + ")";
+        }
+    }
+
+    /**
+     * Both shells default to new ones.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        public static final int DEFAULT_HISTORY_SIZE = 256;
+        RxCmdShell user;
+        RxCmdShell root;
+        Pattern denied = DEFAULT_DENIED_PATTERN;
+        int historySize = DEFAULT_HISTORY_SIZE;
+
+        /**
+         * @param shell defaults to {@code RxCmdShell.builder().build()}.
+         */
+        public Builder user(RxCmdShell shell) {
+            this.user = shell;
+            return this;
+        }
+
+        /**
+         * @param shell defaults to {@code RxCmdShell.builder().root(true).build()}.
+         */
+        public Builder root(RxCmdShell shell) {
+            this.root = shell;
+            return this;
+        }
+
+        /**
+         * A command that failed on the user shell is retried on root if one of its error lines matches this.
+         * Exit code {@code 126} always counts as denied.
+         *
+         * @param pattern defaults to {@link RxCmdShellRouter#DEFAULT_DENIED_PATTERN}, searched, not fully matched.
+         */
+        public Builder deniedPattern(Pattern pattern) {
+            this.denied = pattern;
+            return this;
+        }
+
+        /**
+         * @param size how many commands that needed root are remembered, defaults to {@link #DEFAULT_HISTORY_SIZE}.
+         */
+        public Builder historySize(int size) {
+            this.historySize = size;
+            return this;
+        }
+
+        public RxCmdShellRouter build() {
+            if (denied == null) throw new IllegalArgumentException("Denied pattern can't be null");
+            if (historySize < 0) throw new IllegalArgumentException("History size can't be negative");
+            if (user == null) user = RxCmdShell.builder().build();
+            if (root == null) root = RxCmdShell.builder().root(true).build();
+            if (user == root) throw new IllegalArgumentException("User and root shell need to be different");
+            return new RxCmdShellRouter(this);
+        }
+    }
+}
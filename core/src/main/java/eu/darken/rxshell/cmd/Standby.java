@@ -0,0 +1,132 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import timber.log.Timber;
+
+/**
+ * Keeps sessions open in the background, so that {@link RxCmdShell#open()} doesn't wait for the shell to start, e.g. for {@code su}.
+ * <p>Each spare is its own shell with its environment already set.
+ * They are all built from a snapshot of the {@link RxCmdShell.Builder}, taken when the shell was built, later changes to the builder don't apply.
+ * A spare that is taken is replaced right away. Spares that die while waiting are replaced too.
+ * Those that fail to open are not, e.g. if root was denied, another attempt would likely fail too.
+ *
+ * @see RxCmdShell.Builder#standby(int)
+ */
+class Standby {
+    static final String TAG = "RXS:Standby";
+    private final RxCmdShell.Builder template;
+    private final int size;
+    private final ConcurrentLinkedQueue<RxCmdShell.Session> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong opens = new AtomicLong();
+    private final AtomicLong totalOpenNanos = new AtomicLong();
+    private final AtomicLong maxOpenNanos = new AtomicLong();
+    private int opening = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    /**
+     * @param template a {@link RxCmdShell.Builder#snapshot()}, it's built from on other threads.
+     */
+    Standby(RxCmdShell.Builder template, int size) {
+        this.template = template;
+        this.size = size;
+    }
+
+    /**
+     * Opens spares until there are enough ready or opening.
+     */
+    synchronized void fill() {
+        while (!closed && !failed && ready.size() + opening < size) {
+            opening++;
+            final RxCmdShell spare = template.build(0);
+            timed(spare.open()).subscribe(this::onOpened, this::onOpenFailed);
+        }
+    }
+
+    private void onOpened(RxCmdShell.Session session) {
+        final boolean keep;
+        synchronized (this) {
+            opening--;
+            keep = !closed;
+            if (keep) ready.add(session);
+        }
+        if (!keep) {
+            session.close().subscribe(code -> { }, error -> { });
+            return;
+        }
+        if (RXSDebug.isDebug()) Timber.tag(TAG).d("Spare ready: %s", session);
+        session.waitFor().subscribe(code -> {
+            // Died while waiting
+            if (ready.remove(session)) fill();
+        }, error -> Timber.tag(TAG).w(error, "Error while waiting on spare."));
+    }
+
+    private void onOpenFailed(Throwable error) {
+        Timber.tag(TAG).w(error, "Failed to open spare.");
+        synchronized (this) {
+            opening--;
+            failed = true;
+        }
+    }
+
+    /**
+     * Counts a hit or a miss and starts a replacement.
+     *
+     * @return a spare, or {@code null} if none is ready.
+     */
+    RxCmdShell.Session take() {
+        final RxCmdShell.Session spare = ready.poll();
+        if (spare != null) hits.incrementAndGet();
+        else misses.incrementAndGet();
+        synchronized (this) {
+            // Someone needs a shell, let's try again
+            failed = false;
+        }
+        fill();
+        return spare;
+    }
+
+    /**
+     * Records how long the shell took to open.
+     */
+    Single<RxCmdShell.Session> timed(Single<RxCmdShell.Session> open) {
+        return Single.defer(() -> {
+            final long start = System.nanoTime();
+            return open.doOnSuccess(session -> {
+                final long duration = System.nanoTime() - start;
+                opens.incrementAndGet();
+                totalOpenNanos.addAndGet(duration);
+                long max;
+                while (duration > (max = maxOpenNanos.get())) {
+                    if (maxOpenNanos.compareAndSet(max, duration)) break;
+                }
+            });
+        });
+    }
+
+    /**
+     * Closes the spares and stops replacing them.
+     */
+    Completable close() {
+        final List<Completable> closing = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            RxCmdShell.Session spare;
+            while ((spare = ready.poll()) != null) closing.add(spare.close().ignoreElement().onErrorComplete());
+        }
+        return Completable.merge(closing);
+    }
+
+    StandbyStats getStats() {
+        return new StandbyStats(ready.size(), hits.get(), misses.get(), opens.get(), totalOpenNanos.get(), maxOpenNanos.get());
+    }
+}
@@ -0,0 +1,71 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of how well the standby sessions hid the time it takes to open a shell.
+ *
+ * @see RxCmdShell#getStandbyStats()
+ */
+public class StandbyStats {
+    private final int ready;
+    private final long hits;
+    private final long misses;
+    private final long opens;
+    private final long totalOpenNanos;
+    private final long maxOpenNanos;
+
+    StandbyStats(int ready, long hits, long misses, long opens, long totalOpenNanos, long maxOpenNanos) {
+        this.ready = ready;
+        this.hits = hits;
+        this.misses = misses;
+        this.opens = opens;
+        this.totalOpenNanos = totalOpenNanos;
+        this.maxOpenNanos = maxOpenNanos;
+    }
+
+    /**
+     * @return spares that are open and waiting.
+     */
+    public int getReady() {
+        return ready;
+    }
+
+    /**
+     * @return how often {@link RxCmdShell#open()} got a spare.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return how often {@link RxCmdShell#open()} had to wait for a new shell.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return how many shells were opened, spares and misses.
+     */
+    public long getOpens() {
+        return opens;
+    }
+
+    /**
+     * @return how long opening a shell took on average, which is what a miss costs.
+     */
+    public long getAverageOpenLatency(TimeUnit unit) {
+        return opens > 0 ? unit.convert(totalOpenNanos / opens, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxOpenLatency(TimeUnit unit) {
+        return unit.convert(maxOpenNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "StandbyStats(ready=" + ready + ", hits=" + hits + ", misses=" + misses + ", opens=" + opens
+                + ", averageOpenLatency=" + getAverageOpenLatency(TimeUnit.MILLISECONDS) + "ms, maxOpenLatency=" + getMaxOpenLatency(TimeUnit.MILLISECONDS) + "ms)";
+    }
+}
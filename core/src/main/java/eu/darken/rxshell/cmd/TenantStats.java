@@ -0,0 +1,110 @@
+package eu.darken.rxshell.cmd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A snapshot of how long a tenant's commands took, counted since the session was opened.
+ * <p>The wait is the time from submission until the command was written to the shell, which is what {@link Fairness} controls.
+ * The latency is the time until its result was emitted.
+ * Commands that were never written, e.g. because they were rejected, count with their full latency as wait.
+ *
+ * @see RxCmdShell.Session#getTenantStats()
+ */
+public class TenantStats {
+    private final String tenant;
+    private final int weight;
+    private final long count;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+
+    TenantStats(String tenant, int weight, long count, long totalWaitNanos, long maxWaitNanos, long totalLatencyNanos, long maxLatencyNanos) {
+        this.tenant = tenant;
+        this.weight = weight;
+        this.count = count;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return how many of the tenant's commands have a result.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getAverageWait(TimeUnit unit) {
+        return count > 0 ? unit.convert(totalWaitNanos / count, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getAverageLatency(TimeUnit unit) {
+        return count > 0 ? unit.convert(totalLatencyNanos / count, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "TenantStats(tenant=" + tenant + ", weight=" + weight + ", count=" + count
+                + ", averageWait=" + getAverageWait(TimeUnit.MILLISECONDS) + "ms, maxWait=" + getMaxWait(TimeUnit.MILLISECONDS)
+                + "ms, averageLatency=" + getAverageLatency(TimeUnit.MILLISECONDS) + "ms, maxLatency=" + getMaxLatency(TimeUnit.MILLISECONDS) + "ms)";
+    }
+
+    /**
+     * Collects the numbers of one tenant, called by whichever thread emits a result.
+     */
+    static class Recorder {
+        final String tenant;
+        final int weight;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalWait = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        Recorder(String tenant, int weight) {
+            this.tenant = tenant;
+            this.weight = weight;
+        }
+
+        void record(CmdProcessor.QueueCmd item) {
+            final long now = System.nanoTime();
+            final long latency = now - item.queuedAt;
+            final long wait = (item.writtenAt != 0 ? item.writtenAt : now) - item.queuedAt;
+            totalWait.addAndGet(wait);
+            max(maxWait, wait);
+            totalLatency.addAndGet(latency);
+            max(maxLatency, latency);
+            count.incrementAndGet();
+        }
+
+        private static void max(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) return;
+            }
+        }
+
+        TenantStats snapshot() {
+            return new TenantStats(tenant, weight, count.get(), totalWait.get(), maxWait.get(), totalLatency.get(), maxLatency.get());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package eu.darken.rxshell.exec;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * Decides which threads a shell session uses.
+ * <ul>
+ * <li>Reader: Long running blocking work, reading {@code STDOUT}/{@code STDERR} and waiting for the process to exit.
+ * Each session keeps up to four of these busy for its whole lifetime, see {@link Builder#readerThreads(int)}.</li>
+ * <li>Dispatch: The command queue of each session (busy for the session's lifetime) and short session operations.
+ * See {@link Builder#dispatchThreads(int)}.</li>
+ * <li>Delivery: Where {@link eu.darken.rxshell.cmd.Cmd.Result}s are emitted.
+ * If not set, results are emitted on the thread that read the command's last line.</li>
+ * </ul>
+ * By default reader and dispatch use {@link Schedulers#io()}.
+ * <p>On Java 21+ VMs, {@link Builder#virtualThreads()} runs reader and dispatch work on virtual threads.
+ */
+public class ExecutionConfig {
+    /**
+     * Output, errors, the exit wait and the process itself.
+     */
+    static final int SESSION_READERS = 4;
+    /**
+     * Kept free for short operations, e.g. closing a session, while every other thread runs a command queue.
+     */
+    static final int DISPATCH_HEADROOM = 1;
+    private final Scheduler readerScheduler;
+    @Nullable private final ShellExecutor readerExecutor;
+    private final Scheduler dispatchScheduler;
+    @Nullable private final ShellExecutor dispatchExecutor;
+    private final Scheduler deliveryScheduler;
+    private final List<ShellExecutor> executors;
+
+    ExecutionConfig(Builder builder) {
+        this.readerScheduler = builder.readerScheduler;
+        this.readerExecutor = builder.readerExecutor;
+        this.dispatchScheduler = builder.dispatchScheduler;
+        this.dispatchExecutor = builder.dispatchExecutor;
+        this.deliveryScheduler = builder.deliveryScheduler;
+        this.executors = Collections.unmodifiableList(new ArrayList<>(builder.executors));
+    }
+
+    public static ExecutionConfig defaultConfig() {
+        return builder().build();
+    }
+
+    public Scheduler getReaderScheduler() {
+        return readerScheduler;
+    }
+
+    /**
+     * Claims the reader threads a blocking session needs for its lifetime.
+     * Only pools created via {@link Builder#readerThreads(int)} are bounded, for other schedulers this always succeeds.
+     *
+     * @return {@code false} if the reader pool has no threads left for another session.
+     */
+    public boolean reserveReaders() {
+        return readerExecutor == null || readerExecutor.tryReserve(SESSION_READERS);
+    }
+
+    /**
+     * Returns the threads claimed via {@link #reserveReaders()} once the session ended.
+     */
+    public void releaseReaders() {
+        if (readerExecutor != null) readerExecutor.release(SESSION_READERS);
+    }
+
+    public Scheduler getDispatchScheduler() {
+        return dispatchScheduler;
+    }
+
+    /**
+     * Claims the dispatch thread a blocking session's command queue needs for its lifetime.
+     * Only pools created via {@link Builder#dispatchThreads(int)} are bounded, for other schedulers this always succeeds.
+     *
+     * @return {@code false} if the dispatch pool has no threads left for another session.
+     */
+    public boolean reserveDispatch() {
+        return dispatchExecutor == null || dispatchExecutor.tryReserve(1);
+    }
+
+    /**
+     * Returns the thread claimed via {@link #reserveDispatch()} once the session's command queue ended.
+     */
+    public void releaseDispatch() {
+        if (dispatchExecutor != null) dispatchExecutor.release(1);
+    }
+
+    @Nullable
+    public Scheduler getDeliveryScheduler() {
+        return deliveryScheduler;
+    }
+
+    /**
+     * @return the pools that were created via this config's builder.
+     */
+    public List<ShellExecutor> getExecutors() {
+        return executors;
+    }
+
+    /**
+     * @return utilization stats for each pool created via this config's builder.
+     */
+    public List<ShellExecutor.Stats> getStats() {
+        final List<ShellExecutor.Stats> stats = new ArrayList<>(executors.size());
+        for (ShellExecutor executor : executors) stats.add(executor.getStats());
+        return stats;
+    }
+
+    /**
+     * Shuts down pools that were created via this config's builder.
+     * Sessions still using them won't be able to schedule further work.
+     */
+    public void shutdown() {
+        for (ShellExecutor executor : executors) executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionConfig(reader=" + readerScheduler + ", dispatch=" + dispatchScheduler + ", delivery=" + deliveryScheduler + ")";
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<ShellExecutor> executors = new ArrayList<>();
+        private Scheduler readerScheduler = Schedulers.io();
+        private ShellExecutor readerExecutor;
+        private Scheduler dispatchScheduler = Schedulers.io();
+        private ShellExecutor dispatchExecutor;
+        private Scheduler deliveryScheduler;
+
+        public Builder readerScheduler(Scheduler scheduler) {
+            this.readerScheduler = scheduler;
+            this.readerExecutor = null;
+            return this;
+        }
+
+        /**
+         * Creates a bounded pool of threads named {@code rxshell-reader-N} for reading.
+         * <p>Each session needs four reader threads while it's open, unless it runs on a {@link eu.darken.rxshell.pump.Pump}.
+         * Opening more than {@code maxThreads / 4} sessions at the same time fails with a
+         * {@link java.util.concurrent.RejectedExecutionException}, they would otherwise wait for a free thread forever.
+         */
+        public Builder readerThreads(int maxThreads) {
+            final ShellExecutor executor = new ShellExecutor("rxshell-reader", maxThreads);
+            executors.add(executor);
+            readerScheduler(executor.getScheduler());
+            this.readerExecutor = executor;
+            return this;
+        }
+
+        public Builder dispatchScheduler(Scheduler scheduler) {
+            this.dispatchScheduler = scheduler;
+            this.dispatchExecutor = null;
+            return this;
+        }
+
+        /**
+         * Creates a bounded pool of threads named {@code rxshell-dispatch-N} for command dispatch.
+         * <p>Each session needs one dispatch thread while it's open, unless it runs on a {@link eu.darken.rxshell.pump.Pump}.
+         * One thread is kept free for short operations, e.g. opening and closing sessions.
+         * Opening more than {@code maxThreads - 1} sessions at the same time fails with a
+         * {@link java.util.concurrent.RejectedExecutionException}, their commands would otherwise never run.
+         *
+         * @param maxThreads at least {@code 2}.
+         */
+        public Builder dispatchThreads(int maxThreads) {
+            if (maxThreads < 1 + DISPATCH_HEADROOM) throw new IllegalArgumentException("Needs at least " + (1 + DISPATCH_HEADROOM) + " dispatch threads");
+            final ShellExecutor executor = new ShellExecutor("rxshell-dispatch", maxThreads);
+            executors.add(executor);
+            dispatchScheduler(executor.getScheduler());
+            // Never claimed by a session
+            executor.tryReserve(DISPATCH_HEADROOM);
+            this.dispatchExecutor = executor;
+            return this;
+        }
+
+        /**
+         * @param scheduler where results are emitted, {@code null} for the thread that completed the command.
+         */
+        public Builder deliveryScheduler(@Nullable Scheduler scheduler) {
+            this.deliveryScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Creates a bounded pool of threads named {@code rxshell-delivery-N} where results are emitted.
+         */
+        public Builder deliveryThreads(int maxThreads) {
+            return deliveryScheduler(pool("rxshell-delivery", maxThreads));
+        }
+
+        /**
+         * Runs reader and dispatch work on virtual threads named {@code rxshell-virtual-N}.
+         * <p>Each blocking loop (pipe reads, process waits, the command queue) gets its own virtual thread,
+         * while blocked they don't hold on to a platform thread.
+         *
+         * @throws UnsupportedOperationException if the VM has no virtual threads, see {@link ShellExecutor#isVirtualSupported()}.
+         */
+        public Builder virtualThreads() {
+            final ShellExecutor executor = ShellExecutor.virtual("rxshell-virtual");
+            executors.add(executor);
+            readerScheduler(executor.getScheduler());
+            return dispatchScheduler(executor.getScheduler());
+        }
+
+        private Scheduler pool(String name, int maxThreads) {
+            final ShellExecutor executor = new ShellExecutor(name, maxThreads);
+            executors.add(executor);
+            return executor.getScheduler();
+        }
+
+        public ExecutionConfig build() {
+            return new ExecutionConfig(this);
+        }
+    }
+}
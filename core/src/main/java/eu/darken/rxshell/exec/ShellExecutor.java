@@ -0,0 +1,268 @@
+package eu.darken.rxshell.exec;
+
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * A pool of named daemon threads that reports how busy it is.
+ * <p>Bounded pools queue further work until a thread becomes free.
+ * Virtual thread pools, see {@link #virtual(String)}, start a new virtual thread for each task.
+ *
+ * @see ExecutionConfig
+ */
+public class ShellExecutor implements Executor {
+    static final long KEEP_ALIVE_SECONDS = 60;
+    private final String name;
+    private final int maxThreads;
+    private final ExecutorService executor;
+    private final Scheduler scheduler;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger largest = new AtomicInteger();
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    /**
+     * @param name       thread name prefix, i.e. {@code rxshell-reader} creates {@code rxshell-reader-1}, {@code rxshell-reader-2}...
+     * @param maxThreads the upper limit of concurrently running threads, idle threads are released after a while.
+     */
+    public ShellExecutor(String name, int maxThreads) {
+        this(name, maxThreads, makePool(name, maxThreads));
+    }
+
+    ShellExecutor(String name, int maxThreads, ExecutorService executor) {
+        this.name = name;
+        this.maxThreads = maxThreads;
+        this.executor = executor;
+        this.scheduler = Schedulers.from(this);
+    }
+
+    private static ExecutorService makePool(String name, int maxThreads) {
+        if (maxThreads < 1) throw new IllegalArgumentException("Needs at least one thread");
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                maxThreads, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamedThreadFactory(name)
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Runs each task on its own virtual thread (Java 21+), blocking I/O then doesn't hold on to a platform thread.
+     *
+     * @param name thread name prefix
+     * @throws UnsupportedOperationException if the JVM has no virtual threads, see {@link #isVirtualSupported()}.
+     */
+    public static ShellExecutor virtual(String name) {
+        final ExecutorService executor = makeVirtual(name);
+        if (executor == null) throw new UnsupportedOperationException("Virtual threads are not supported on this VM");
+        return new ShellExecutor(name, Integer.MAX_VALUE, executor);
+    }
+
+    /**
+     * @return {@code true} if this VM has virtual threads, which is never the case on Android.
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reflection, because we compile against Java 8.
+     */
+    @Nullable
+    private static ExecutorService makeVirtual(String name) {
+        if (!isVirtualSupported()) return null;
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            final Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        executor.execute(() -> {
+            started.incrementAndGet();
+            final int current = active.incrementAndGet();
+            int max = largest.get();
+            while (current > max && !largest.compareAndSet(max, current)) max = largest.get();
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Claims threads for work that blocks them for a long time, so that a caller can fail instead of queueing behind it forever.
+     *
+     * @return {@code false} if that would exceed the thread limit, nothing is claimed then. Always {@code true} for virtual threads.
+     */
+    public boolean tryReserve(int threads) {
+        if (isVirtual()) return true;
+        int current;
+        do {
+            current = reserved.get();
+            if (current + threads > maxThreads) return false;
+        } while (!reserved.compareAndSet(current, current + threads));
+        return true;
+    }
+
+    /**
+     * Returns threads claimed via {@link #tryReserve(int)}.
+     */
+    public void release(int threads) {
+        if (!isVirtual()) reserved.addAndGet(-threads);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return {@code true} if this runs each task on a virtual thread.
+     */
+    public boolean isVirtual() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    public Stats getStats() {
+        return new Stats(
+                name,
+                maxThreads,
+                executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : active.get(),
+                active.get(),
+                largest.get(),
+                (int) (submitted.get() - started.get()),
+                completed.get()
+        );
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A snapshot of a {@link ShellExecutor}'s state.
+     */
+    public static class Stats {
+        private final String name;
+        private final int maxThreads;
+        private final int threads;
+        private final int activeThreads;
+        private final int largestThreads;
+        private final int queuedTasks;
+        private final long completedTasks;
+
+        Stats(String name, int maxThreads, int threads, int activeThreads, int largestThreads, int queuedTasks, long completedTasks) {
+            this.name = name;
+            this.maxThreads = maxThreads;
+            this.threads = threads;
+            this.activeThreads = activeThreads;
+            this.largestThreads = largestThreads;
+            this.queuedTasks = queuedTasks;
+            this.completedTasks = completedTasks;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the thread limit, {@link Integer#MAX_VALUE} for virtual threads.
+         */
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        /**
+         * @return threads that currently exist, busy or idle.
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getActiveThreads() {
+            return activeThreads;
+        }
+
+        /**
+         * @return the most threads that were busy at the same time.
+         */
+        public int getLargestThreads() {
+            return largestThreads;
+        }
+
+        /**
+         * @return tasks waiting for a free thread, anything above {@code 0} means the pool is saturated.
+         */
+        public int getQueuedTasks() {
+            return queuedTasks;
+        }
+
+        public long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        /**
+         * @return active threads relative to the limit, from {@code 0} to {@code 1}.
+         */
+        public float getUtilization() {
+            return (float) activeThreads / maxThreads;
+        }
+
+        @Override
+        public String toString() {
+            return "ShellExecutor.Stats(name=" + name + ", active=" + activeThreads + "/" + maxThreads + ", threads=" + threads + ", largest=" + largestThreads + ", queued=" + queuedTasks + ", completed=" + completedTasks + ")";
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package eu.darken.rxshell.process;
 
 import android.annotation.SuppressLint;
 
+import java.util.concurrent.TimeUnit;
+
 import eu.darken.rxshell.extra.ApiWrap;
 
 
@@ -19,4 +21,31 @@ public class ProcessHelper {
             }
         }
     }
+
+    /**
+     * For loops that poll whether a process exited, e.g. {@link eu.darken.rxshell.pump.Pump} tasks.
+     * <p>Before Oreo, {@link #isAlive(Process)} throws and catches an exception for each check of a running process.
+     * There, the process is checked at most every {@link #LEGACY_INTERVAL_NANOS}, an exit is noticed that much later.
+     */
+    public static class ExitWatch {
+        static final long LEGACY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+        private final Process process;
+        private volatile boolean exited = false;
+        private volatile long nextCheck = 0;
+
+        public ExitWatch(Process process) {
+            this.process = process;
+        }
+
+        public boolean hasExited() {
+            if (exited) return true;
+            if (!ApiWrap.hasOreo()) {
+                final long now = System.nanoTime();
+                if (now - nextCheck < 0) return false;
+                nextCheck = now + LEGACY_INTERVAL_NANOS;
+            }
+            exited = !isAlive(process);
+            return exited;
+        }
+    }
 }
@@ -2,7 +2,6 @@ package eu.darken.rxshell.process;
 
 import android.support.annotation.Nullable;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -13,6 +12,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.shell.ChunkedLineReader;
 import eu.darken.rxshell.shell.LineReader;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.ObservableOnSubscribe;
@@ -59,11 +59,10 @@ public class RootKiller implements ProcessKiller {
     static Single<List<String>> makeMiniHarvester(InputStream inputStream) {
         return Observable
                 .create((ObservableOnSubscribe<String>) emitter -> {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                    LineReader lineReader = new LineReader();
+                    ChunkedLineReader reader = new ChunkedLineReader(new InputStreamReader(inputStream));
                     String line;
                     try {
-                        while ((line = lineReader.readLine(reader)) != null && !emitter.isDisposed()) {
+                        while ((line = reader.readLine()) != null && !emitter.isDisposed()) {
                             emitter.onNext(line);
                         }
                     } catch (IOException e) {
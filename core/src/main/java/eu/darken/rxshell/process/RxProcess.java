@@ -1,13 +1,19 @@
 package eu.darken.rxshell.process;
 
 import android.annotation.SuppressLint;
+import android.support.annotation.Nullable;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.ApiWrap;
 import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.pump.Pump;
 import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Observer;
@@ -16,7 +22,6 @@ import io.reactivex.rxjava3.core.SingleEmitter;
 import io.reactivex.rxjava3.core.SingleOnSubscribe;
 import io.reactivex.rxjava3.disposables.Disposable;
 import io.reactivex.rxjava3.functions.Action;
-import io.reactivex.rxjava3.schedulers.Schedulers;
 import timber.log.Timber;
 
 
@@ -28,37 +33,87 @@ public class RxProcess {
     }
 
     private static final String TAG = "RXS:RxProcess";
-    private final Observable<? extends Process> processCreator;
+    private final ProcessFactory processFactory;
+    private final ProcessKiller processKiller;
+    private final Pump pump;
+    private final ExecutionConfig executionConfig;
+    private final String[] commands;
     private Single<Session> session;
+    // Once known, so open() doesn't hand out a session that is ending before 'session' was cleared
+    private Session opened;
 
     public RxProcess(ProcessFactory processFactory, ProcessKiller processKiller, String... commands) {
-        this.processCreator = Observable.create(e -> {
+        this(processFactory, processKiller, null, ExecutionConfig.defaultConfig(), commands);
+    }
+
+    /**
+     * @param pump            if not {@code null}, sessions don't block threads, they are driven by a lane of this {@link Pump}.
+     * @param executionConfig where blocking waits and short operations run.
+     */
+    public RxProcess(ProcessFactory processFactory, ProcessKiller processKiller, @Nullable Pump pump, ExecutionConfig executionConfig, String... commands) {
+        this.processFactory = processFactory;
+        this.processKiller = processKiller;
+        this.pump = pump;
+        this.executionConfig = executionConfig;
+        this.commands = commands;
+    }
+
+    private Observable<Process> processCreator(@Nullable Pump.Lane lane, AtomicInteger threads) {
+        return Observable.create(e -> {
             final Process process = processFactory.start(commands);
             e.setCancellable(() -> {
                 if (RXSDebug.isDebug()) Timber.tag(TAG).v("cancel()");
                 processKiller.kill(process);
             });
             e.onNext(process);
-            process.waitFor();
-            e.onComplete();
+            if (lane != null) {
+                final ProcessHelper.ExitWatch exitWatch = new ProcessHelper.ExitWatch(process);
+                lane.add(() -> {
+                    if (e.isDisposed()) return Pump.Task.DONE;
+                    if (!exitWatch.hasExited()) return Pump.Task.IDLE;
+                    e.onComplete();
+                    return Pump.Task.DONE;
+                });
+            } else {
+                threads.incrementAndGet();
+                try {
+                    process.waitFor();
+                } finally {
+                    threads.decrementAndGet();
+                }
+                e.onComplete();
+            }
         });
     }
 
     public synchronized Single<Session> open() {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("open()");
+        if (opened != null && opened.isEnding()) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Previous process is ending, opening a new one.");
+            session = null;
+            opened = null;
+        }
         if (session == null) {
-            this.session = Single
+            final AtomicReference<Single<Session>> self = new AtomicReference<>();
+            final Single<Session> opening = Single
                     .create(new SingleOnSubscribe<Session>() {
                         WeakReference<Process> debugRef;
 
                         @Override
                         public void subscribe(SingleEmitter<Session> emitter) {
-                            processCreator
+                            final Pump.Lane lane = pump != null ? pump.lane() : null;
+                            final AtomicInteger threads = new AtomicInteger();
+                            processCreator(lane, threads)
                                     .doFinally((Action) () -> {
+                                        if (lane == null) executionConfig.releaseReaders();
                                         synchronized (RxProcess.this) {
                                             RXSDebug.notifyOnProcessEnd(debugRef != null ? debugRef.get() : null);
                                             if (RXSDebug.isDebug()) Timber.tag(TAG).v("Process finished, clearing session");
-                                            session = null;
+                                            // Unless open() already replaced it
+                                            if (session == self.get()) {
+                                                session = null;
+                                                opened = null;
+                                            }
                                         }
                                     })
                                     .subscribe(new Observer<Process>() {
@@ -74,7 +129,11 @@ public class RxProcess {
                                             debugRef = new WeakReference<>(process);
                                             RXSDebug.notifyOnProcessStart(process);
                                             if (RXSDebug.isDebug()) Timber.tag(TAG).v("processCreator:onNext(%s)", process);
-                                            emitter.onSuccess(new Session(process, disposable));
+                                            final Session session = new Session(process, disposable, lane, threads, executionConfig);
+                                            synchronized (RxProcess.this) {
+                                                opened = session;
+                                            }
+                                            emitter.onSuccess(session);
                                         }
 
                                         @Override
@@ -91,10 +150,20 @@ public class RxProcess {
                                     });
                         }
                     })
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(executionConfig.getReaderScheduler());
+            this.session = Single
+                    .defer(() -> {
+                        // Checked before we queue on the reader scheduler, a full pool would never get to us
+                        if (pump != null || executionConfig.reserveReaders()) return opening;
+                        synchronized (RxProcess.this) {
+                            if (session == self.get()) session = null;
+                        }
+                        return Single.<Session>error(new RejectedExecutionException("No reader threads left for another session: " + executionConfig));
+                    })
                     .doOnSuccess(s -> { if (RXSDebug.isDebug()) Timber.tag(TAG).d("open():doOnSuccess %s", s);})
                     .doOnError(t -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "open():doOnError");})
                     .cache();
+            self.set(session);
         }
         return session;
     }
@@ -114,28 +183,63 @@ public class RxProcess {
     public static class Session {
         private static final String TAG = RxProcess.TAG + ":Session";
         final Process process;
+        private final Pump.Lane lane;
+        private final AtomicInteger threads;
+        private final ExecutionConfig executionConfig;
         private final Single<Integer> waitFor;
         private final Completable destroy;
+        private final ProcessHelper.ExitWatch exitWatch;
+        private volatile boolean ending;
 
         public Session(Process process, Disposable processDisposable) {
+            this(process, processDisposable, null, new AtomicInteger(), ExecutionConfig.defaultConfig());
+        }
+
+        /**
+         * @param lane            the lane that drives this session, or {@code null} if blocking threads are used.
+         * @param threads         counts threads that are blocked waiting for this process.
+         * @param executionConfig where blocking waits and short operations run.
+         */
+        public Session(Process process, Disposable processDisposable, @Nullable Pump.Lane lane, AtomicInteger threads, ExecutionConfig executionConfig) {
             this.process = process;
+            this.exitWatch = new ProcessHelper.ExitWatch(process);
+            this.lane = lane;
+            this.threads = threads;
+            this.executionConfig = executionConfig;
             this.destroy = Completable
                     .create(e -> {
+                        ending = true;
                         processDisposable.dispose();
                         e.onComplete();
                     })
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(executionConfig.getDispatchScheduler())
                     .doOnComplete(() -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v("destroy():doOnComplete");})
                     .doOnError(t -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "destroy():doOnError");})
                     .cache();
             this.waitFor = Single
                     .create((SingleOnSubscribe<Integer>) e -> {
                         if (RXSDebug.isDebug()) Timber.tag(TAG).d("Waiting for %s to exit.", process);
-                        int exitCode = process.waitFor();
+                        if (lane != null) {
+                            lane.add(() -> {
+                                if (e.isDisposed()) return Pump.Task.DONE;
+                                if (!exitWatch.hasExited()) return Pump.Task.IDLE;
+                                if (RXSDebug.isDebug()) Timber.tag(TAG).d("Exitcode: %d, Process: %s", process.exitValue(), process);
+                                e.onSuccess(process.exitValue());
+                                return Pump.Task.DONE;
+                            });
+                            return;
+                        }
+                        threads.incrementAndGet();
+                        int exitCode;
+                        try {
+                            exitCode = process.waitFor();
+                        } finally {
+                            threads.decrementAndGet();
+                        }
                         if (RXSDebug.isDebug()) Timber.tag(TAG).d("Exitcode: %d, Process: %s", exitCode, process);
                         e.onSuccess(exitCode);
                     })
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(executionConfig.getReaderScheduler())
                     .doOnSuccess(s -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v("waitFor():doOnSuccess %s", s);})
                     .doOnError(t -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "waitFor():doOnError");})
                     .cache();
@@ -157,7 +261,7 @@ public class RxProcess {
                             }
                         }
                     })
-                    .subscribeOn(Schedulers.io());
+                    .subscribeOn(executionConfig.getDispatchScheduler());
         }
 
         public Single<Integer> waitFor() {
@@ -165,6 +269,43 @@ public class RxProcess {
             return waitFor;
         }
 
+        /**
+         * Unlike {@link #isAlive()} this checks directly on the calling thread.
+         * <p>Meant for polling, before Oreo an exit is noticed a few milliseconds late, see {@link ProcessHelper.ExitWatch}.
+         */
+        public boolean hasExited() {
+            return exitWatch.hasExited();
+        }
+
+        /**
+         * Marks this session as ending, e.g. because the shell was told to exit, so {@link RxProcess#open()} opens a new one instead.
+         */
+        public void markEnding() {
+            ending = true;
+        }
+
+        /**
+         * @return {@code true} if the process exited, is being destroyed or {@link #markEnding()} was called.
+         */
+        public boolean isEnding() {
+            return ending || hasExited();
+        }
+
+        /**
+         * @return the lane that drives this session, {@code null} if it uses blocking threads.
+         */
+        @Nullable
+        public Pump.Lane getPumpLane() {
+            return lane;
+        }
+
+        /**
+         * @return how many threads are currently blocked waiting for this process.
+         */
+        public int getThreadCount() {
+            return threads.get();
+        }
+
         public Completable destroy() {
             if (RXSDebug.isDebug()) Timber.tag(TAG).v("destroy()");
             return destroy;
@@ -0,0 +1,205 @@
+package eu.darken.rxshell.pump;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import timber.log.Timber;
+
+/**
+ * A small pool of threads that drives shell sessions without blocking.
+ * <p>Instead of parking one thread per pipe, process and command queue, each session gets a {@link Lane}.
+ * All {@link Task}s of a lane run on the same pump thread and are polled in turns.
+ * If no task made progress, the thread backs off with increasing pauses until it is woken up via {@link Lane#wakeup()}.
+ * Writing a command counts as progress, so polling for its output starts again with the shortest pause.
+ * After a second without progress, the pauses grow further up to the idle pause, so quiet sessions rarely wake the CPU.
+ * A thread without any tasks doesn't poll at all, it sleeps until a task is added.
+ * <p>One pump can be shared by many sessions, lanes are assigned to the least busy thread.
+ */
+public class Pump {
+    private static final String TAG = "RXS:Pump";
+    static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    public static final long DEFAULT_MAX_PAUSE_MILLIS = 2;
+    public static final long DEFAULT_IDLE_PAUSE_MILLIS = 100;
+    static final long IDLE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+    private final Worker[] workers;
+    private final long maxParkNanos;
+    private final long idleParkNanos;
+    private volatile boolean shutdown = false;
+
+    public interface Task {
+        int IDLE = 0;
+        int BUSY = 1;
+        int DONE = 2;
+
+        /**
+         * Does a slice of work without blocking.
+         *
+         * @return {@link #BUSY} if there was progress, {@link #IDLE} if there was nothing to do or {@link #DONE} to be removed.
+         */
+        int pump();
+    }
+
+    /**
+     * @param threads how many pump threads to start, sessions are spread across them.
+     */
+    public Pump(int threads) {
+        this(threads, DEFAULT_MAX_PAUSE_MILLIS, DEFAULT_IDLE_PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Uses {@link #DEFAULT_IDLE_PAUSE_MILLIS}, or {@code maxPause} if that is longer.
+     *
+     * @see #Pump(int, long, long, TimeUnit)
+     */
+    public Pump(int threads, long maxPause, TimeUnit unit) {
+        this(threads, maxPause, Math.max(maxPause, unit.convert(DEFAULT_IDLE_PAUSE_MILLIS, TimeUnit.MILLISECONDS)), unit);
+    }
+
+    /**
+     * Output that arrives while a lane is idle, e.g. of a command that ran for a while, is noticed up to {@code maxPause} late.
+     * Once none of the thread's lanes made progress for a second, up to {@code idlePause} late.
+     * Shorter pauses lower that latency, but idle pump threads wake up more often.
+     *
+     * @param threads   how many pump threads to start, sessions are spread across them.
+     * @param maxPause  the longest pause between polls, defaults to {@link #DEFAULT_MAX_PAUSE_MILLIS} milliseconds.
+     * @param idlePause the longest pause between polls once idle, defaults to {@link #DEFAULT_IDLE_PAUSE_MILLIS} milliseconds.
+     */
+    public Pump(int threads, long maxPause, long idlePause, TimeUnit unit) {
+        if (threads < 1) throw new IllegalArgumentException("Needs at least one thread");
+        if (maxPause <= 0) throw new IllegalArgumentException("Max pause needs to be positive");
+        if (idlePause < maxPause) throw new IllegalArgumentException("Idle pause can't be shorter than the max pause");
+        this.maxParkNanos = Math.max(MIN_PARK_NANOS, unit.toNanos(maxPause));
+        this.idleParkNanos = Math.max(maxParkNanos, unit.toNanos(idlePause));
+        final int poolId = POOL_COUNT.incrementAndGet();
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("rxshell-pump-" + poolId + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return a new lane on the thread with the fewest tasks.
+     */
+    public Lane lane() {
+        if (shutdown) throw new IllegalStateException("Pump was shut down");
+        Worker target = workers[0];
+        for (Worker worker : workers) {
+            if (worker.load.get() < target.load.get()) target = worker;
+        }
+        return new Lane(target);
+    }
+
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return how many tasks are currently registered across all threads.
+     */
+    public int getTaskCount() {
+        int count = 0;
+        for (Worker worker : workers) count += worker.load.get();
+        return count;
+    }
+
+    /**
+     * Stops all pump threads, tasks that are still registered won't run anymore.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) LockSupport.unpark(worker);
+    }
+
+    public static class Lane {
+        private final Worker worker;
+
+        Lane(Worker worker) {
+            this.worker = worker;
+        }
+
+        public void add(Task task) {
+            worker.load.incrementAndGet();
+            worker.incoming.add(task);
+            wakeup();
+        }
+
+        /**
+         * Tells the lane's thread that there might be work, e.g. a new command or new demand.
+         */
+        public void wakeup() {
+            worker.woken = true;
+            LockSupport.unpark(worker);
+        }
+
+        public String getThreadName() {
+            return worker.getName();
+        }
+
+        @Override
+        public String toString() {
+            return "Pump.Lane(thread=" + worker.getName() + ")";
+        }
+    }
+
+    class Worker extends Thread {
+        final ConcurrentLinkedQueue<Task> incoming = new ConcurrentLinkedQueue<>();
+        final AtomicInteger load = new AtomicInteger();
+        private final List<Task> tasks = new ArrayList<>();
+        volatile boolean woken = false;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long parkNanos = MIN_PARK_NANOS;
+            long lastProgress = System.nanoTime();
+            while (!shutdown) {
+                woken = false;
+                Task added;
+                while ((added = incoming.poll()) != null) tasks.add(added);
+
+                boolean progress = false;
+                final Iterator<Task> iterator = tasks.iterator();
+                while (iterator.hasNext()) {
+                    final Task task = iterator.next();
+                    int result;
+                    try {
+                        result = task.pump();
+                    } catch (Throwable e) {
+                        Timber.tag(TAG).e(e, "Task failed, removing it: %s", task);
+                        result = Task.DONE;
+                    }
+                    if (result == Task.DONE) {
+                        iterator.remove();
+                        load.decrementAndGet();
+                    }
+                    if (result != Task.IDLE) progress = true;
+                }
+
+                if (progress || woken) {
+                    parkNanos = MIN_PARK_NANOS;
+                    lastProgress = System.nanoTime();
+                } else if (tasks.isEmpty()) {
+                    // Nothing to poll, adding a task wakes us up
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, parkNanos);
+                    final boolean idle = System.nanoTime() - lastProgress > IDLE_AFTER_NANOS;
+                    parkNanos = Math.min(parkNanos * 2, idle ? idleParkNanos : maxParkNanos);
+                }
+            }
+            if (RXSDebug.isDebug()) Timber.tag(TAG).d("%s stopped with %d tasks left.", getName(), tasks.size());
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package eu.darken.rxshell.shell;
+
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits an {@link InputStream} into UTF-8 lines without decoding bytes that are only scanned.
+ * <p>The line separator is searched for directly in the raw bytes.
+ * Lines that are pure ASCII are turned into Strings via ISO-8859-1, which is a plain copy.
+ * Only lines that contain bytes &gt;0x7F go through a (reused) UTF-8 {@link CharsetDecoder}.
+ * <p>{@link #readLineView()} skips the {@link String} creation completely.
+ * <p>Malformed input is replaced, like {@link java.io.InputStreamReader} does.
+ * <p>A {@link ByteTap} can take over the raw bytes in between lines, see {@link #setByteTaps(AtomicReference)}.
+ */
+public class ByteLineReader implements Closeable {
+    static final int DEFAULT_WINDOW_SIZE = 8192;
+    private final InputStream stream;
+    private final byte[] separator;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final LineView view = new LineView();
+    private CharBuffer decodeBuffer;
+    private byte[] window;
+    private int start = 0;
+    private int end = 0;
+    private int scan = 0;
+    private int highBits = 0;
+    private AtomicReference<ByteTap> byteTaps;
+    private long diverted = 0;
+
+    public ByteLineReader(InputStream stream) {
+        this(stream, LineReader.getLineSeparator());
+    }
+
+    public ByteLineReader(InputStream stream, String lineSeparator) {
+        this(stream, lineSeparator, DEFAULT_WINDOW_SIZE);
+    }
+
+    public ByteLineReader(InputStream stream, String lineSeparator, int windowSize) {
+        if (lineSeparator.isEmpty() || lineSeparator.length() > 2) {
+            throw new IllegalArgumentException("Unsupported line separator: " + lineSeparator);
+        }
+        if (windowSize < 2) throw new IllegalArgumentException("Window size needs to be at least 2");
+        this.stream = stream;
+        this.separator = new byte[lineSeparator.length()];
+        for (int i = 0; i < separator.length; i++) {
+            final char c = lineSeparator.charAt(i);
+            if (c > 0x7F) throw new IllegalArgumentException("Line separator needs to be ASCII: " + lineSeparator);
+            separator[i] = (byte) c;
+        }
+        this.window = new byte[windowSize];
+    }
+
+    /**
+     * If the referenced tap is set, unread bytes are passed to it instead of being split into lines.
+     * It is checked before each line and after each read, and removed once it {@link ByteTap#isDone()}.
+     */
+    public void setByteTaps(@Nullable AtomicReference<ByteTap> byteTaps) {
+        this.byteTaps = byteTaps;
+    }
+
+    /**
+     * @return how many bytes were consumed by taps so far.
+     */
+    public long getDivertedBytes() {
+        return diverted;
+    }
+
+    /**
+     * @return the next line without the separator, or {@code null} if the end of the stream was reached.
+     */
+    public String readLine() throws IOException {
+        final LineView line = readLineView();
+        return line != null ? line.toString() : null;
+    }
+
+    /**
+     * Like {@link #readLine()} but without creating a {@link String}.
+     *
+     * @return a view on the next line, only valid until the next read, or {@code null} if the end of the stream was reached.
+     */
+    public LineView readLineView() throws IOException {
+        while (true) {
+            if (divert()) {
+                if (!fill()) return flushLineView();
+                continue;
+            }
+
+            final int hit = findSeparator();
+            if (hit >= 0) {
+                setView(start, hit - start);
+                start = hit + separator.length;
+                scan = start;
+                return view;
+            }
+
+            if (!fill()) return flushLineView();
+        }
+    }
+
+    /**
+     * Like {@link #readLineView()} but never blocks, only bytes that are {@link InputStream#available()} are read.
+     *
+     * @return a view on the next complete line, or {@code null} if there is none yet.
+     * @see #flushLineView()
+     */
+    public LineView pollLineView() throws IOException {
+        while (true) {
+            if (divert()) {
+                final int available = stream.available();
+                if (available <= 0 || !fill(available)) return null;
+                continue;
+            }
+
+            final int hit = findSeparator();
+            if (hit >= 0) {
+                setView(start, hit - start);
+                start = hit + separator.length;
+                scan = start;
+                return view;
+            }
+
+            final int available = stream.available();
+            if (available <= 0 || !fill(available)) return null;
+        }
+    }
+
+    /**
+     * For use with {@link #pollLineView()} once the stream is known to be exhausted.
+     *
+     * @return a view on the unterminated last line, or {@code null} if there is none.
+     */
+    public LineView flushLineView() {
+        if (end == start) return null;
+        // A held back byte that could have started a two byte separator is part of the last line
+        for (int i = scan; i < end; i++) highBits |= window[i];
+        scan = end;
+        setView(start, end - start);
+        start = end;
+        return view;
+    }
+
+    /**
+     * @return {@code true} if a tap is active and wants more bytes.
+     */
+    private boolean divert() {
+        if (byteTaps == null) return false;
+        final ByteTap tap = byteTaps.get();
+        if (tap == null) return false;
+
+        if (end > start) {
+            final int consumed = tap.onBytes(window, start, end - start);
+            start += consumed;
+            diverted += consumed;
+            scan = start;
+            highBits = 0;
+        }
+        if (tap.isDone()) {
+            byteTaps.compareAndSet(tap, null);
+            return false;
+        }
+        return true;
+    }
+
+    private int findSeparator() {
+        final byte first = separator[0];
+        final byte[] window = this.window;
+        int high = highBits;
+        if (separator.length == 1) {
+            for (int i = scan; i < end; i++) {
+                final byte b = window[i];
+                if (b == first) {
+                    highBits = high;
+                    return i;
+                }
+                high |= b;
+            }
+            scan = end;
+        } else {
+            final byte second = separator[1];
+            for (int i = scan; i < end - 1; i++) {
+                final byte b = window[i];
+                if (b == first && window[i + 1] == second) {
+                    highBits = high;
+                    return i;
+                }
+                high |= b;
+            }
+            // The last byte could be the start of a separator spread over two reads
+            scan = Math.max(start, end - 1);
+        }
+        highBits = high;
+        return -1;
+    }
+
+    private void setView(int offset, int length) {
+        final boolean ascii = (highBits & 0x80) == 0;
+        highBits = 0;
+        if (ascii) {
+            view.set(window, offset, length);
+            return;
+        }
+
+        if (decodeBuffer == null || decodeBuffer.capacity() < length) {
+            // UTF-8 never yields more chars than bytes
+            decodeBuffer = CharBuffer.allocate(Math.max(length, 128));
+        }
+        decodeBuffer.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(window, offset, length), decodeBuffer, true);
+        decoder.flush(decodeBuffer);
+        view.set(decodeBuffer.array(), 0, decodeBuffer.position());
+    }
+
+    private boolean fill() throws IOException {
+        return fill(Integer.MAX_VALUE);
+    }
+
+    private boolean fill(int maxRead) throws IOException {
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scan = 0;
+        } else if (end == window.length) {
+            if (start > 0) {
+                // Carry the partial line over to the front of the window
+                final int carry = end - start;
+                System.arraycopy(window, start, window, 0, carry);
+                scan -= start;
+                start = 0;
+                end = carry;
+            } else {
+                // Line longer than the window, grow
+                final byte[] grown = new byte[window.length * 2];
+                System.arraycopy(window, 0, grown, 0, end);
+                window = grown;
+            }
+        }
+        final int read = stream.read(window, end, Math.min(window.length - end, maxRead));
+        if (read < 0) return false;
+        end += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
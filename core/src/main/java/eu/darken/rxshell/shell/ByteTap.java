@@ -0,0 +1,21 @@
+package eu.darken.rxshell.shell;
+
+/**
+ * Gets to see raw {@code STDOUT} bytes on the reader's thread, before they are split into lines.
+ * <p>While a tap is installed and not {@link #isDone()}, nothing is emitted as lines.
+ *
+ * @see RxShell.Session#setOutputByteTap(ByteTap)
+ */
+public interface ByteTap {
+    /**
+     * @param buffer only valid for the duration of this call.
+     * @return how many bytes, starting at {@code offset}, were consumed.
+     * Bytes that were not consumed are offered again once more data arrived, or parsed as lines once the tap {@link #isDone()}.
+     */
+    int onBytes(byte[] buffer, int offset, int length);
+
+    /**
+     * @return {@code true} if the tap wants no more bytes, it is then removed.
+     */
+    boolean isDone();
+}
@@ -0,0 +1,111 @@
+package eu.darken.rxshell.shell;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a {@link Reader} into lines by reading it in bulk.
+ * <p>Characters are read into a reusable window that is scanned for the line separator,
+ * partial lines are carried over into the next read.
+ * <p>Behaves like {@link LineReader#readLine(Reader)} but avoids the per character {@link Reader#read()} calls.
+ */
+public class ChunkedLineReader implements Closeable {
+    static final int DEFAULT_WINDOW_SIZE = 8192;
+    private final Reader reader;
+    private final char[] separator;
+    private char[] window;
+    private int start = 0;
+    private int end = 0;
+    private int scan = 0;
+
+    public ChunkedLineReader(Reader reader) {
+        this(reader, LineReader.getLineSeparator());
+    }
+
+    public ChunkedLineReader(Reader reader, String lineSeparator) {
+        this(reader, lineSeparator, DEFAULT_WINDOW_SIZE);
+    }
+
+    public ChunkedLineReader(Reader reader, String lineSeparator, int windowSize) {
+        if (lineSeparator.isEmpty() || lineSeparator.length() > 2) {
+            throw new IllegalArgumentException("Unsupported line separator: " + lineSeparator);
+        }
+        if (windowSize < 2) throw new IllegalArgumentException("Window size needs to be at least 2");
+        this.reader = reader;
+        this.separator = lineSeparator.toCharArray();
+        this.window = new char[windowSize];
+    }
+
+    /**
+     * @return the next line without the separator, or {@code null} if the end of the stream was reached.
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            final int hit = findSeparator();
+            if (hit >= 0) {
+                final String line = new String(window, start, hit - start);
+                start = hit + separator.length;
+                scan = start;
+                return line;
+            }
+
+            if (!fill()) {
+                if (end == start) return null;
+                final String line = new String(window, start, end - start);
+                start = end;
+                scan = end;
+                return line;
+            }
+        }
+    }
+
+    private int findSeparator() {
+        final char first = separator[0];
+        if (separator.length == 1) {
+            for (int i = scan; i < end; i++) {
+                if (window[i] == first) return i;
+            }
+            scan = end;
+        } else {
+            final char second = separator[1];
+            for (int i = scan; i < end - 1; i++) {
+                if (window[i] == first && window[i + 1] == second) return i;
+            }
+            // The last char could be the start of a separator spread over two reads
+            scan = Math.max(start, end - 1);
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scan = 0;
+        } else if (end == window.length) {
+            if (start > 0) {
+                // Carry the partial line over to the front of the window
+                final int carry = end - start;
+                System.arraycopy(window, start, window, 0, carry);
+                scan -= start;
+                start = 0;
+                end = carry;
+            } else {
+                // Line longer than the window, grow
+                final char[] grown = new char[window.length * 2];
+                System.arraycopy(window, 0, grown, 0, end);
+                window = grown;
+            }
+        }
+        final int read = reader.read(window, end, window.length - end);
+        if (read < 0) return false;
+        end += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
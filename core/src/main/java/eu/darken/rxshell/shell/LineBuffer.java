@@ -0,0 +1,33 @@
+package eu.darken.rxshell.shell;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Buffers lines between a pipe reader and its subscriber.
+ * <p>One thread offers, one (possibly different) thread polls.
+ *
+ * @see OverflowPolicy
+ */
+interface LineBuffer {
+    /**
+     * May block, depending on the {@link OverflowPolicy}.
+     */
+    void offer(String line) throws IOException, InterruptedException;
+
+    @Nullable
+    String poll() throws IOException;
+
+    boolean isEmpty();
+
+    /**
+     * @return {@code true} if {@link #offer(String)} would block.
+     */
+    boolean isFull();
+
+    /**
+     * Releases resources and wakes up blocked readers.
+     */
+    void close();
+}
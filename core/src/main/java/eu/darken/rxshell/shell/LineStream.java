@@ -0,0 +1,245 @@
+package eu.darken.rxshell.shell;
+
+import android.support.annotation.Nullable;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.pump.Pump;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.functions.BooleanSupplier;
+import io.reactivex.rxjava3.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.rxjava3.internal.util.BackpressureHelper;
+import timber.log.Timber;
+
+/**
+ * Reads lines from a pipe and only emits as many as were requested.
+ * <p>Subscribing blocks the subscribing thread with the read loop.
+ * Lines that were read but not yet requested are kept in a {@link LineBuffer} created by the {@link OverflowPolicy}.
+ * <p>Use {@code subscribeOn(scheduler, false)}, requests have to reach the buffer while the read loop is running.
+ * <p>If a {@link Pump.Lane} is set, subscribing doesn't block. The pipe is polled by the pump instead
+ * and the stream ends once the process has exited and the pipe is empty.
+ */
+class LineStream extends Flowable<String> {
+    private static final String TAG = "RXS:LineStream";
+    private final InputStream stream;
+    private final String tag;
+    private final AtomicReference<LineTap> tapRef;
+    private final AtomicReference<ByteTap> byteTapRef;
+    private final OverflowPolicy policy;
+    private final Pump.Lane lane;
+    private final BooleanSupplier hasExited;
+    private final AtomicInteger threads;
+    private final AtomicLong dropped;
+
+    LineStream(InputStream stream, String tag, AtomicReference<LineTap> tapRef, OverflowPolicy policy) {
+        this(stream, tag, tapRef, null, policy, null, null, new AtomicInteger(), new AtomicLong());
+    }
+
+    /**
+     * @param byteTapRef if it holds a tap, raw bytes are diverted to it instead of being split into lines.
+     * @param lane      the lane to poll the pipe on, or {@code null} to block the subscribing thread.
+     * @param hasExited required if there is a {@code lane}, tells us whether the writing process is gone.
+     * @param threads   counts the threads blocked by read loops.
+     * @param dropped   counts the lines the {@link OverflowPolicy} dropped.
+     */
+    LineStream(InputStream stream, String tag, AtomicReference<LineTap> tapRef, @Nullable AtomicReference<ByteTap> byteTapRef,
+               OverflowPolicy policy, @Nullable Pump.Lane lane, @Nullable BooleanSupplier hasExited, AtomicInteger threads, AtomicLong dropped) {
+        this.stream = stream;
+        this.tag = tag;
+        this.tapRef = tapRef;
+        this.byteTapRef = byteTapRef;
+        this.policy = policy;
+        this.lane = lane;
+        this.hasExited = hasExited;
+        this.threads = threads;
+        this.dropped = dropped;
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super String> subscriber) {
+        final ReaderSubscription subscription = new ReaderSubscription(subscriber, policy.createBuffer(tag, dropped));
+        subscriber.onSubscribe(subscription);
+        if (lane != null) {
+            lane.add(subscription);
+        } else {
+            threads.incrementAndGet();
+            try {
+                subscription.run();
+            } finally {
+                threads.decrementAndGet();
+            }
+        }
+    }
+
+    class ReaderSubscription implements Subscription, Pump.Task {
+        private static final int MAX_LINES_PER_PUMP = 256;
+        private final Subscriber<? super String> downstream;
+        private final LineBuffer buffer;
+        private final ByteLineReader reader = new ByteLineReader(stream);
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Throwable error;
+        private boolean terminated;
+        private boolean exited;
+
+        ReaderSubscription(Subscriber<? super String> downstream, LineBuffer buffer) {
+            this.downstream = downstream;
+            this.buffer = buffer;
+            reader.setByteTaps(byteTapRef);
+        }
+
+        void run() {
+            LineView line;
+            try {
+                while (!cancelled && (line = reader.readLineView()) != null) {
+                    deliver(line);
+                    drain();
+                }
+            } catch (IOException e) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: Read error: %s", tag, e.getMessage());
+            } catch (InterruptedException e) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: Interrupted while waiting for demand.", tag);
+                Thread.currentThread().interrupt();
+            } finally {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: Reading done.", tag);
+                done = true;
+                drain();
+            }
+        }
+
+        @Override
+        public int pump() {
+            if (cancelled || done) return DONE;
+            final long divertedBefore = reader.getDivertedBytes();
+            int lines = 0;
+            try {
+                while (lines < MAX_LINES_PER_PUMP && !cancelled && !buffer.isFull()) {
+                    final boolean exitedBefore = exited;
+                    LineView line = reader.pollLineView();
+                    if (line == null) {
+                        if (exitedBefore) {
+                            // The process is gone and the pipe is empty.
+                            line = reader.flushLineView();
+                            if (line != null) deliver(line);
+                            finish();
+                            return DONE;
+                        }
+                        exited = hasExited.getAsBoolean();
+                        if (!exited) break;
+                        continue;
+                    }
+                    deliver(line);
+                    lines++;
+                }
+            } catch (Throwable e) {
+                if (e instanceof IOException) {
+                    if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: Read error: %s", tag, e.getMessage());
+                } else {
+                    Timber.tag(TAG).e(e, "%s: Failed to pump lines.", tag);
+                    error = e;
+                }
+                finish();
+                return DONE;
+            }
+            if (lines > 0) {
+                drain();
+                return BUSY;
+            }
+            return reader.getDivertedBytes() != divertedBefore ? BUSY : IDLE;
+        }
+
+        private void deliver(LineView line) throws IOException, InterruptedException {
+            final LineTap tap = tapRef.get();
+            if (tap != null && tap.onLine(line)) return;
+            try {
+                buffer.offer(line.toString());
+            } catch (IOException e) {
+                Timber.tag(TAG).e(e, "%s: Failed to buffer line.", tag);
+                error = e;
+                throw e;
+            }
+        }
+
+        private void finish() {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: Reading done.", tag);
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (SubscriptionHelper.validate(n)) {
+                BackpressureHelper.add(requested, n);
+                drain();
+                if (lane != null) lane.wakeup();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("%s: cancel()", tag);
+            try {
+                // https://stackoverflow.com/questions/3595926/how-to-interrupt-bufferedreaders-readline
+                stream.close();
+                reader.close();
+            } catch (IOException e) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).w("%s: Cancel error: %s", tag, e.getMessage());
+            }
+            buffer.close();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                final long r = requested.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled || terminated) return;
+                    final boolean d = done;
+                    final String line = poll();
+                    if (line == null) {
+                        if (d) terminate();
+                        break;
+                    }
+                    downstream.onNext(line);
+                    e++;
+                }
+                if (e == r && !cancelled && !terminated && done && buffer.isEmpty()) terminate();
+                if (e != 0) BackpressureHelper.produced(requested, e);
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private String poll() {
+            try {
+                return buffer.poll();
+            } catch (IOException e) {
+                Timber.tag(TAG).e(e, "%s: Failed to read buffered lines.", tag);
+                error = e;
+                done = true;
+                buffer.close();
+                return null;
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            buffer.close();
+            if (error != null) downstream.onError(error);
+            else downstream.onComplete();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package eu.darken.rxshell.shell;
+
+/**
+ * Gets to see each line on the reader's thread, before a {@link String} is created for it.
+ *
+ * @see RxShell.Session#setOutputTap(LineTap)
+ */
+public interface LineTap {
+    /**
+     * @param line only valid for the duration of this call. May be narrowed via {@link LineView#narrow(int, int)}.
+     * @return {@code true} if the line was consumed, {@code false} to emit the (possibly narrowed) line as usual.
+     */
+    boolean onLine(LineView line);
+}
@@ -0,0 +1,82 @@
+package eu.darken.rxshell.shell;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable, mutable view on a line inside a reader's buffer.
+ * <p>The content is only valid until the reader reads the next line, don't keep references to it.
+ * Use {@link #toString()} to get a copy.
+ */
+public final class LineView implements CharSequence {
+    private byte[] bytes;
+    private char[] chars;
+    private int offset;
+    private int length;
+
+    /**
+     * @param bytes ASCII/ISO-8859-1 content
+     */
+    void set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.chars = null;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    void set(char[] chars, int offset, int length) {
+        this.bytes = null;
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Narrows this view in-place to the given range.
+     *
+     * @param start inclusive, relative to the current view
+     * @param end   exclusive, relative to the current view
+     * @return this view
+     */
+    public LineView narrow(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + length);
+        }
+        offset += start;
+        length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index=" + index + ", length=" + length);
+        if (bytes != null) return (char) (bytes[offset + index] & 0xFF);
+        else return chars[offset + index];
+    }
+
+    /**
+     * @return a copy of the given range
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + length);
+        }
+        if (bytes != null) return new String(bytes, offset + start, end - start, StandardCharsets.ISO_8859_1);
+        else return new String(chars, offset + start, end - start);
+    }
+
+    /**
+     * @return a copy of the current content
+     */
+    @Override
+    public String toString() {
+        if (bytes != null) return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        else if (chars != null) return new String(chars, offset, length);
+        else return "";
+    }
+}
@@ -0,0 +1,362 @@
+package eu.darken.rxshell.shell;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import timber.log.Timber;
+
+/**
+ * Decides what happens to {@code STDOUT}/{@code STDERR} lines that are read faster than they are requested.
+ *
+ * @see RxShell.Session#outputLines()
+ */
+public abstract class OverflowPolicy {
+    private static final String TAG = "RXS:OverflowPolicy";
+    public static final int DEFAULT_CAPACITY = 1024;
+    final int capacity;
+
+    OverflowPolicy(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity needs to be at least 1");
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param dropped counts the lines this buffer drops.
+     */
+    abstract LineBuffer createBuffer(String tag, AtomicLong dropped);
+
+    /**
+     * Lines that must never be dropped, e.g. because their reader waits for them.
+     */
+    public interface LineFilter {
+        boolean matches(String line);
+    }
+
+    /**
+     * @return a policy that never drops lines matching {@code keep}, in addition to what this policy keeps.
+     * Only matters for {@link #ring(int, LineFilter)}, the other policies never drop lines.
+     */
+    public OverflowPolicy keeping(LineFilter keep) {
+        return this;
+    }
+
+    /**
+     * The default policy: {@code block(DEFAULT_CAPACITY)}
+     */
+    public static OverflowPolicy defaultPolicy() {
+        return block(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * If {@code capacity} lines are buffered, the pipe reader stops reading until lines are requested.
+     * <p>The shell process blocks once the pipe itself is full, no lines are lost and memory stays bounded.
+     */
+    public static OverflowPolicy block(int capacity) {
+        return new OverflowPolicy(capacity) {
+            @Override
+            LineBuffer createBuffer(String tag, AtomicLong dropped) {
+                return new BlockingBuffer(capacity);
+            }
+
+            @Override
+            public String toString() {
+                return "OverflowPolicy.block(capacity=" + capacity + ")";
+            }
+        };
+    }
+
+    /**
+     * Equal to {@code ring(capacity, null)}
+     */
+    public static OverflowPolicy ring(int capacity) {
+        return ring(capacity, null);
+    }
+
+    /**
+     * Keeps at most {@code capacity} lines, if full the oldest line is dropped.
+     * <p>The shell process never blocks, but slow subscribers lose lines. Dropped lines are counted, see {@link RxShell.Session#getDroppedLines()}.
+     * <p>Lines matching {@code keep} are never dropped, the oldest other line goes instead.
+     * If only those are left, the buffer grows beyond {@code capacity}.
+     * {@code RxCmdShell} keeps its command markers this way, a command whose marker was dropped would never complete.
+     *
+     * @param keep lines to never drop, or {@code null} to drop any line.
+     */
+    public static OverflowPolicy ring(int capacity, @Nullable LineFilter keep) {
+        return new OverflowPolicy(capacity) {
+            @Override
+            LineBuffer createBuffer(String tag, AtomicLong dropped) {
+                return new RingBuffer(tag, capacity, keep, dropped);
+            }
+
+            @Override
+            public OverflowPolicy keeping(LineFilter more) {
+                if (keep == null) return ring(capacity, more);
+                return ring(capacity, line -> keep.matches(line) || more.matches(line));
+            }
+
+            @Override
+            public String toString() {
+                return "OverflowPolicy.ring(capacity=" + capacity + ", keep=" + keep + ")";
+            }
+        };
+    }
+
+    /**
+     * Keeps up to {@code capacity} lines in memory, further lines are appended to a temporary file in {@code directory}.
+     * <p>Spilled lines are replayed in order once the subscriber catches up and the file is deleted afterwards.
+     * The shell process never blocks, no lines are lost and memory stays bounded.
+     *
+     * @param directory where to create the temporary file, {@code null} for the default temp directory.
+     */
+    public static OverflowPolicy spill(int capacity, @Nullable File directory) {
+        return new OverflowPolicy(capacity) {
+            @Override
+            LineBuffer createBuffer(String tag, AtomicLong dropped) {
+                return new SpillBuffer(tag, capacity, directory);
+            }
+
+            @Override
+            public String toString() {
+                return "OverflowPolicy.spill(capacity=" + capacity + ", directory=" + directory + ")";
+            }
+        };
+    }
+
+    /**
+     * Uses a {@link ReentrantLock} instead of {@code synchronized}, so a waiting virtual thread doesn't pin its carrier.
+     */
+    static class BlockingBuffer implements LineBuffer {
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final int capacity;
+        private boolean closed = false;
+
+        BlockingBuffer(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void offer(String line) throws InterruptedException {
+            lock.lock();
+            try {
+                while (queue.size() >= capacity && !closed) notFull.await();
+                if (!closed) queue.add(line);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String poll() {
+            lock.lock();
+            try {
+                final String line = queue.poll();
+                if (line != null) notFull.signal();
+                return line;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            lock.lock();
+            try {
+                return queue.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isFull() {
+            lock.lock();
+            try {
+                return queue.size() >= capacity && !closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                queue.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    static class RingBuffer implements LineBuffer {
+        private final String tag;
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private final int capacity;
+        private final LineFilter keep;
+        private final AtomicLong dropped;
+
+        RingBuffer(String tag, int capacity, @Nullable LineFilter keep, AtomicLong dropped) {
+            this.tag = tag;
+            this.capacity = capacity;
+            this.keep = keep;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public synchronized void offer(String line) {
+            if (queue.size() >= capacity && dropOldest()) {
+                final long count = dropped.incrementAndGet();
+                if (RXSDebug.isDebug()) Timber.tag(TAG).w("%s: Buffer full, dropped %d lines so far.", tag, count);
+            }
+            queue.add(line);
+        }
+
+        private boolean dropOldest() {
+            if (keep == null) return queue.poll() != null;
+            final Iterator<String> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (keep.matches(iterator.next())) continue;
+                iterator.remove();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized String poll() {
+            return queue.poll();
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        public boolean isFull() {
+            return false;
+        }
+
+        @Override
+        public synchronized void close() {
+            queue.clear();
+        }
+
+        long getDropped() {
+            return dropped.get();
+        }
+    }
+
+    static class SpillBuffer implements LineBuffer {
+        private final String tag;
+        private final ArrayDeque<String> memory = new ArrayDeque<>();
+        private final int capacity;
+        private final File directory;
+        private File spillFile;
+        private DataOutputStream spillOut;
+        private DataInputStream spillIn;
+        private long spilled = 0;
+        private long flushed = 0;
+        private long replayed = 0;
+
+        SpillBuffer(String tag, int capacity, @Nullable File directory) {
+            this.tag = tag;
+            this.capacity = capacity;
+            this.directory = directory;
+        }
+
+        @Override
+        public synchronized void offer(String line) throws IOException {
+            // Once we spill, everything goes to the file until it's replayed, otherwise we lose the order.
+            if (spilled == replayed && memory.size() < capacity) {
+                memory.add(line);
+                return;
+            }
+            if (spillOut == null) {
+                spillFile = File.createTempFile("rxshell-", ".spill", directory);
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                if (RXSDebug.isDebug()) Timber.tag(TAG).d("%s: Spilling to %s", tag, spillFile);
+            }
+            final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            spillOut.writeInt(bytes.length);
+            spillOut.write(bytes);
+            spilled++;
+        }
+
+        @Override
+        public synchronized String poll() throws IOException {
+            final String line = memory.poll();
+            if (line != null) return line;
+            if (replayed == spilled) return null;
+
+            if (replayed == flushed) {
+                spillOut.flush();
+                flushed = spilled;
+            }
+            if (spillIn == null) spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+
+            final byte[] bytes = new byte[spillIn.readInt()];
+            spillIn.readFully(bytes);
+            replayed++;
+
+            if (replayed == spilled) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).d("%s: Replayed %d spilled lines.", tag, replayed);
+                releaseFile();
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return memory.isEmpty() && replayed == spilled;
+        }
+
+        @Override
+        public boolean isFull() {
+            return false;
+        }
+
+        @Override
+        public synchronized void close() {
+            memory.clear();
+            releaseFile();
+        }
+
+        private void releaseFile() {
+            try {
+                if (spillOut != null) spillOut.close();
+                if (spillIn != null) spillIn.close();
+            } catch (IOException e) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).w("%s: Failed to close spill file: %s", tag, e.getMessage());
+            }
+            if (spillFile != null && !spillFile.delete() && spillFile.exists()) {
+                Timber.tag(TAG).w("%s: Failed to delete %s", tag, spillFile);
+            }
+            spillOut = null;
+            spillIn = null;
+            spillFile = null;
+            spilled = 0;
+            flushed = 0;
+            replayed = 0;
+        }
+    }
+}
@@ -1,51 +1,82 @@
 package eu.darken.rxshell.shell;
 
-import java.io.BufferedReader;
+import android.support.annotation.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.RXSDebug;
 import eu.darken.rxshell.process.RxProcess;
-import io.reactivex.rxjava3.core.BackpressureStrategy;
+import eu.darken.rxshell.pump.Pump;
 import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Flowable;
-import io.reactivex.rxjava3.core.FlowableEmitter;
+import io.reactivex.rxjava3.core.Scheduler;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.disposables.Disposable;
-import io.reactivex.rxjava3.schedulers.Schedulers;
 import timber.log.Timber;
 
 public class RxShell {
     private static final String TAG = "RXS:RxShell";
     private RxProcess rxProcess;
+    private final OverflowPolicy overflowPolicy;
+    private final ExecutionConfig executionConfig;
     private Single<Session> session;
+    // Once known, so open() doesn't hand out a session that is ending before 'session' was cleared
+    private Session opened;
 
     public RxShell(RxProcess rxProcess) {
+        this(rxProcess, OverflowPolicy.defaultPolicy(), ExecutionConfig.defaultConfig());
+    }
+
+    /**
+     * @param overflowPolicy  what to do with output lines that are read faster than they are consumed.
+     * @param executionConfig where pipes are read and the session is written to.
+     */
+    public RxShell(RxProcess rxProcess, OverflowPolicy overflowPolicy, ExecutionConfig executionConfig) {
         this.rxProcess = rxProcess;
+        this.overflowPolicy = overflowPolicy;
+        this.executionConfig = executionConfig;
     }
 
     public synchronized Single<Session> open() {
         if (RXSDebug.isDebug()) Timber.tag(TAG).v("open()");
+        if (opened != null && opened.processSession.isEnding()) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Previous session is ending, opening a new one.");
+            session = null;
+            opened = null;
+        }
         if (session == null) {
+            final AtomicReference<Single<Session>> self = new AtomicReference<>();
             session = rxProcess.open()
                     .map(session -> {
                         OutputStreamWriter writer = new OutputStreamWriter(session.input(), StandardCharsets.UTF_8);
-                        return new Session(session, writer);
+                        return new Session(session, writer, overflowPolicy, executionConfig);
                     })
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(executionConfig.getDispatchScheduler())
                     .doOnSuccess(s -> {
                         if (RXSDebug.isDebug()) Timber.tag(TAG).v("open():doOnSuccess %s", s);
+                        synchronized (RxShell.this) {
+                            if (session == self.get()) opened = s;
+                        }
                         s.waitFor().subscribe(integer -> {
                             synchronized (RxShell.this) {
-                                session = null;
+                                // Unless open() already replaced it
+                                if (session == self.get()) {
+                                    session = null;
+                                    opened = null;
+                                }
                             }
                         }, e -> Timber.tag(TAG).w(e, "Error resetting session."));
                     })
                     .doOnError(t -> { if (RXSDebug.isDebug()) Timber.tag(TAG).v(t, "open():doOnError");})
                     .cache();
+            self.set(session);
         }
         return session;
     }
@@ -79,15 +110,24 @@ public class RxShell {
         private final Disposable errorKeepAlive;
         private final Disposable outputKeepAlive;
         private final Completable cancel;
+        private final AtomicReference<LineTap> outputTap = new AtomicReference<>();
+        private final AtomicReference<LineTap> errorTap = new AtomicReference<>();
+        private final AtomicReference<ByteTap> outputByteTap = new AtomicReference<>();
+        private final AtomicInteger readerThreads = new AtomicInteger();
+        private final AtomicLong droppedLines = new AtomicLong();
 
         public Session(RxProcess.Session processSession, OutputStreamWriter writer) {
+            this(processSession, writer, OverflowPolicy.defaultPolicy(), ExecutionConfig.defaultConfig());
+        }
+
+        public Session(RxProcess.Session processSession, OutputStreamWriter writer, OverflowPolicy overflowPolicy, ExecutionConfig executionConfig) {
             this.processSession = processSession;
             this.writer = writer;
 
-            this.outputLines = makeLineStream(processSession.output(), "output");
+            this.outputLines = makeLineStream(processSession, processSession.output(), "output", outputTap, outputByteTap, overflowPolicy, readerThreads, droppedLines, executionConfig.getReaderScheduler());
             this.outputKeepAlive = this.outputLines.subscribe(s -> { }, t -> Timber.w(t, "OutputLines KeepAlive"));
 
-            this.errorLines = makeLineStream(processSession.error(), "error");
+            this.errorLines = makeLineStream(processSession, processSession.error(), "error", errorTap, null, overflowPolicy, readerThreads, droppedLines, executionConfig.getReaderScheduler());
             this.errorKeepAlive = this.errorLines().subscribe(s -> { }, t -> Timber.w("ErrorLines KeepAlive"));
 
             this.cancel = processSession.destroy()
@@ -100,6 +140,7 @@ public class RxShell {
                     .cache();
             this.close = Completable
                     .create(emitter -> {
+                        processSession.markEnding();
                         try {
                             writeLine("exit", true);
                             writer.close();
@@ -110,7 +151,7 @@ public class RxShell {
                             emitter.onComplete();
                         }
                     })
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(executionConfig.getDispatchScheduler())
                     .andThen(waitFor())
                     .doFinally(() -> {
                         outputKeepAlive.dispose();
@@ -147,6 +188,14 @@ public class RxShell {
             return close;
         }
 
+        /**
+         * Marks this session as ending, so {@link RxShell#open()} opens a new one instead of handing it out.
+         * <p>{@link #close()} and {@link #cancel()} do this too, but only once they run.
+         */
+        public void markEnding() {
+            processSession.markEnding();
+        }
+
         public Flowable<String> outputLines() {
             if (RXSDebug.isDebug()) Timber.tag(TAG).v("outputLines()");
             return outputLines;
@@ -157,41 +206,69 @@ public class RxShell {
             return errorLines;
         }
 
+        /**
+         * Installs a tap that sees {@code STDOUT} lines before they are turned into Strings and emitted by {@link #outputLines()}.
+         *
+         * @param tap the tap to use, or {@code null} to remove the current one.
+         */
+        public void setOutputTap(@Nullable LineTap tap) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("setOutputTap(%s)", tap);
+            outputTap.set(tap);
+        }
+
+        /**
+         * @see #setOutputTap(LineTap)
+         */
+        public void setErrorTap(@Nullable LineTap tap) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("setErrorTap(%s)", tap);
+            errorTap.set(tap);
+        }
+
+        /**
+         * Installs a tap that gets the raw {@code STDOUT} bytes instead of {@link #outputLines()}, until it is done.
+         * <p>Bytes that the tap does not consume are split into lines as usual once it is done.
+         *
+         * @param tap the tap to use, or {@code null} to remove the current one.
+         */
+        public void setOutputByteTap(@Nullable ByteTap tap) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("setOutputByteTap(%s)", tap);
+            outputByteTap.set(tap);
+        }
+
+        /**
+         * @return the lane that drives this session, {@code null} if it uses blocking threads.
+         */
+        @Nullable
+        public Pump.Lane getPumpLane() {
+            return processSession.getPumpLane();
+        }
+
+        /**
+         * @return how many threads are currently blocked on behalf of this session, i.e. pipe readers and process waits.
+         */
+        public int getThreadCount() {
+            return processSession.getThreadCount() + readerThreads.get();
+        }
+
+        /**
+         * @return how many {@code STDOUT} and {@code STDERR} lines were dropped so far, only {@link OverflowPolicy#ring(int, OverflowPolicy.LineFilter)} drops lines.
+         */
+        public long getDroppedLines() {
+            return droppedLines.get();
+        }
+
         @Override
         public String toString() {
             return "RxShell.Session(processSession=" + processSession + ")";
         }
     }
 
-    static Flowable<String> makeLineStream(InputStream stream, String tag) {
-        return Flowable
-                .create((FlowableEmitter<String> emitter) -> {
-                    final InputStreamReader inputStreamReader = new InputStreamReader(stream, StandardCharsets.UTF_8);
-                    final BufferedReader reader = new BufferedReader(inputStreamReader);
-                    emitter.setCancellable(() -> {
-                        try {
-                            if (RXSDebug.isDebug()) Timber.tag(TAG).v("LineStream:%s onCancel()", tag);
-                            // https://stackoverflow.com/questions/3595926/how-to-interrupt-bufferedreaders-readline
-                            stream.close();
-                            reader.close();
-                        } catch (IOException e) {
-                            if (RXSDebug.isDebug()) Timber.tag(TAG).w("LineStream:%s Cancel error: %s", tag, e.getMessage());
-                        }
-                    });
-                    LineReader lineReader = new LineReader();
-                    String line;
-                    try {
-                        while ((line = lineReader.readLine(reader)) != null && !emitter.isCancelled()) {
-                            emitter.onNext(line);
-                        }
-                    } catch (IOException e) {
-                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("LineStream:%s Read error: %s", tag, e.getMessage());
-                    } finally {
-                        if (RXSDebug.isDebug()) Timber.tag(TAG).v("LineStream:%s onComplete()", tag);
-                        emitter.onComplete();
-                    }
-                }, BackpressureStrategy.MISSING)
-                .subscribeOn(Schedulers.io())
+    static Flowable<String> makeLineStream(RxProcess.Session processSession, InputStream stream, String tag,
+                                           AtomicReference<LineTap> tapRef, @Nullable AtomicReference<ByteTap> byteTapRef,
+                                           OverflowPolicy policy, AtomicInteger threads, AtomicLong dropped, Scheduler scheduler) {
+        final Pump.Lane lane = processSession.getPumpLane();
+        return new LineStream(stream, tag, tapRef, byteTapRef, policy, lane, processSession::hasExited, threads, dropped)
+                .subscribeOn(scheduler, false)
                 .share();
     }
 }
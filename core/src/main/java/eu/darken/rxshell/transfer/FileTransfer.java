@@ -0,0 +1,439 @@
+package eu.darken.rxshell.transfer;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eu.darken.rxshell.cmd.ByteSink;
+import eu.darken.rxshell.cmd.Cmd;
+import eu.darken.rxshell.cmd.RxCmdShell;
+import eu.darken.rxshell.extra.RXSDebug;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.core.SingleEmitter;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import timber.log.Timber;
+
+import static eu.darken.rxshell.extra.CmdHelper.san;
+
+/**
+ * Copies files between this process and a {@link RxCmdShell.Session}, e.g. to access files only root can see.
+ * <p>Reads run a single {@code cat}, its output is streamed as raw bytes (see {@link Cmd.Builder#outputSink(ByteSink)})
+ * and split into chunks of {@link Builder#chunkSize(int)} bytes on our side.
+ * <p>Writes go through a named pipe in {@link Builder#stagingDir(File)}, the shell {@code cat}s it into the target while we write chunks into it.
+ * <p>Progress is reported after each chunk and disposing a transfer stops it at the next chunk.
+ * The rest of a cancelled read is discarded while the shell finishes its {@code cat}.
+ * Once all bytes were copied, the file's checksum is computed by the shell and compared to the one of the copied bytes.
+ */
+public class FileTransfer {
+    private static final String TAG = "RXS:FileTransfer";
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    public enum Checksum {
+        MD5("MD5", "md5sum"),
+        SHA1("SHA-1", "sha1sum"),
+        SHA256("SHA-256", "sha256sum");
+
+        final String algorithm;
+        final String tool;
+
+        Checksum(String algorithm, String tool) {
+            this.algorithm = algorithm;
+            this.tool = tool;
+        }
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called on the transfer's thread after each chunk.
+         *
+         * @param total the file's size or {@code -1} if it is unknown.
+         */
+        void onProgress(long transferred, long total);
+    }
+
+    /**
+     * The file's checksum in the shell doesn't match the transferred bytes.
+     */
+    public static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    private final int chunkSize;
+    private final Checksum checksum;
+    private final File stagingDir;
+    private final Scheduler scheduler;
+
+    FileTransfer(Builder builder) {
+        this.chunkSize = builder.chunkSize;
+        this.checksum = builder.checksum;
+        this.stagingDir = builder.stagingDir;
+        this.scheduler = builder.scheduler;
+    }
+
+    /**
+     * @see #read(RxCmdShell.Session, String, WritableByteChannel, ProgressListener)
+     */
+    public Single<Stats> read(RxCmdShell.Session session, String path, WritableByteChannel target) {
+        return read(session, path, target, null);
+    }
+
+    /**
+     * Copies the file at {@code path} in the shell to {@code target}, the channel is not closed.
+     *
+     * @return a {@link Single} emitting the transfer's {@link Stats}, or an {@link IOException} if the file couldn't be read or verified.
+     */
+    public Single<Stats> read(RxCmdShell.Session session, String path, WritableByteChannel target, @Nullable ProgressListener listener) {
+        return schedule(cancelled -> {
+            final long startTime = System.nanoTime();
+            final MessageDigest digest = newDigest();
+            final long total = querySize(session, path);
+
+            final ByteSink.PipeSink sink = ByteSink.pipe();
+            final Single<Cmd.Result> copy = Cmd.builder("cat " + san(path)).outputSink(sink).submit(session).cache();
+            copy.subscribe(result -> { }, error -> { });
+
+            long transferred = 0;
+            long chunks = 0;
+            // Closing it early makes the shell's output go nowhere, instead of blocking the shell
+            try (InputStream pipeIn = sink.getInputStream()) {
+                final byte[] buffer = new byte[chunkSize];
+                boolean eof = false;
+                while (!eof && !cancelled.get()) {
+                    int length = 0;
+                    while (length < chunkSize) {
+                        final int read = pipeIn.read(buffer, length, chunkSize - length);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        length += read;
+                    }
+                    if (length == 0 || cancelled.get()) break;
+
+                    if (digest != null) digest.update(buffer, 0, length);
+                    final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                    while (chunk.hasRemaining()) target.write(chunk);
+                    transferred += length;
+                    chunks++;
+                    if (listener != null) listener.onProgress(transferred, total);
+                }
+            }
+
+            final Cmd.Result result = copy.blockingGet();
+            if (cancelled.get()) return null;
+            if (result.getExitCode() != Cmd.ExitCode.OK) {
+                throw new IOException("Failed to read " + path + " (exitcode=" + result.getExitCode() + "): " + result.getErrors());
+            }
+
+            final long duration = System.nanoTime() - startTime;
+            final String localChecksum = digest != null ? toHex(digest.digest()) : null;
+            if (localChecksum != null) verify(session, path, localChecksum);
+            return new Stats(path, transferred, chunks, duration, localChecksum);
+        });
+    }
+
+    /**
+     * @see #write(RxCmdShell.Session, ReadableByteChannel, String, ProgressListener)
+     */
+    public Single<Stats> write(RxCmdShell.Session session, ReadableByteChannel source, String path) {
+        return write(session, source, path, null);
+    }
+
+    /**
+     * Copies everything from {@code source} into the file at {@code path} in the shell, replacing it.
+     * The channel is read until its end but not closed.
+     * <p>If the transfer is disposed, the partially written file is removed.
+     *
+     * @return a {@link Single} emitting the transfer's {@link Stats}, or an {@link IOException} if the file couldn't be written or verified.
+     */
+    public Single<Stats> write(RxCmdShell.Session session, ReadableByteChannel source, String path, @Nullable ProgressListener listener) {
+        return schedule(cancelled -> {
+            final long startTime = System.nanoTime();
+            final MessageDigest digest = newDigest();
+            final long total = source instanceof FileChannel ? ((FileChannel) source).size() : -1;
+
+            checkStagingDir(session);
+            final File fifo = new File(stagingDir, "rxshell-" + UUID.randomUUID() + ".fifo");
+            final Cmd.Result mkfifo = Cmd.builder("mkfifo " + san(fifo.getPath()) + " && chmod 666 " + san(fifo.getPath())).execute(session);
+            if (mkfifo.getExitCode() != Cmd.ExitCode.OK) {
+                throw new IOException("Failed to create staging pipe " + fifo + ": " + mkfifo.getErrors());
+            }
+
+            long transferred = 0;
+            long chunks = 0;
+            final Single<Cmd.Result> copy;
+            try {
+                // Open the pipe before the target, a failing redirect would otherwise leave us blocked on the pipe.
+                copy = Cmd.builder("cat < " + san(fifo.getPath()) + " > " + san(path)).submit(session).cache();
+                final AtomicBoolean opened = new AtomicBoolean(false);
+                copy.subscribe(result -> {
+                    if (!opened.get()) unblock(fifo);
+                }, error -> unblock(fifo));
+
+                try (FileOutputStream pipeOut = new FileOutputStream(fifo)) {
+                    opened.set(true);
+                    final FileChannel pipe = pipeOut.getChannel();
+                    final ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                    boolean eof = false;
+                    while (!eof && !cancelled.get()) {
+                        buffer.clear();
+                        while (buffer.hasRemaining()) {
+                            if (source.read(buffer) < 0) {
+                                eof = true;
+                                break;
+                            }
+                        }
+                        buffer.flip();
+                        if (!buffer.hasRemaining()) break;
+
+                        if (digest != null) digest.update(buffer.duplicate());
+                        transferred += buffer.remaining();
+                        while (buffer.hasRemaining()) pipe.write(buffer);
+                        chunks++;
+                        if (listener != null) listener.onProgress(transferred, total);
+                    }
+                }
+
+                final Cmd.Result result = copy.blockingGet();
+                if (!cancelled.get() && result.getExitCode() != Cmd.ExitCode.OK) {
+                    throw new IOException("Failed to write " + path + " (exitcode=" + result.getExitCode() + "): " + result.getErrors());
+                }
+            } finally {
+                Cmd.builder("rm -f " + san(fifo.getPath())).execute(session);
+            }
+
+            if (cancelled.get()) {
+                if (RXSDebug.isDebug()) Timber.tag(TAG).d("Write to %s cancelled, removing it.", path);
+                Cmd.builder("rm -f " + san(path)).execute(session);
+                return null;
+            }
+
+            final long duration = System.nanoTime() - startTime;
+            final String localChecksum = digest != null ? toHex(digest.digest()) : null;
+            if (localChecksum != null) verify(session, path, localChecksum);
+            return new Stats(path, transferred, chunks, duration, localChecksum);
+        });
+    }
+
+    private interface Job {
+        /**
+         * @return {@code null} if the transfer was cancelled.
+         */
+        @Nullable
+        Stats run(AtomicBoolean cancelled) throws Exception;
+    }
+
+    private Single<Stats> schedule(Job job) {
+        return Single.create((SingleEmitter<Stats> emitter) -> {
+            final AtomicBoolean cancelled = new AtomicBoolean(false);
+            emitter.setCancellable(() -> cancelled.set(true));
+            // Not subscribeOn(), disposing would interrupt us while the shell is still busy with our commands.
+            scheduler.scheduleDirect(() -> {
+                try {
+                    final Stats stats = job.run(cancelled);
+                    if (stats != null) emitter.onSuccess(stats);
+                } catch (Throwable e) {
+                    if (!emitter.tryOnError(e)) Timber.tag(TAG).w(e, "Error after the transfer was cancelled.");
+                }
+            });
+        });
+    }
+
+    private long querySize(RxCmdShell.Session session, String path) throws IOException {
+        final Cmd.Result result = Cmd.builder("stat -c %s " + san(path) + " 2>/dev/null || wc -c < " + san(path)).execute(session);
+        final List<String> output = result.getOutput();
+        if (result.getExitCode() != Cmd.ExitCode.OK || output == null || output.isEmpty()) {
+            throw new IOException("Can't access " + path + ": " + result.getErrors());
+        }
+        try {
+            return Long.parseLong(output.get(0).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected size of " + path + ": " + output, e);
+        }
+    }
+
+    /**
+     * Whoever can write to the staging pipe, writes to the target, with the shell's permissions.
+     * So we only accept a directory that others can't write to, i.e. not a symlink and not world-writable.
+     */
+    private void checkStagingDir(RxCmdShell.Session session) throws IOException {
+        final Cmd.Result result = Cmd.builder("ls -ld " + san(stagingDir.getPath())).execute(session);
+        final List<String> output = result.getOutput();
+        if (result.getExitCode() != Cmd.ExitCode.OK || output == null || output.isEmpty()) {
+            throw new IOException("Can't access staging dir " + stagingDir + ": " + result.getErrors());
+        }
+        final String mode = output.get(0).trim().split("\\s+")[0];
+        if (mode.length() < 10 || mode.charAt(0) != 'd') {
+            throw new IOException("Staging dir " + stagingDir + " is not a directory: " + mode);
+        }
+        if (mode.charAt(8) == 'w') {
+            throw new IOException("Staging dir " + stagingDir + " is world-writable (" + mode + "), use an app-private one, see FileTransfer.Builder#stagingDir(File)");
+        }
+    }
+
+    private void verify(RxCmdShell.Session session, String path, String localChecksum) throws IOException {
+        final Cmd.Result result = Cmd.builder(checksum.tool + " " + san(path)).execute(session);
+        final List<String> output = result.getOutput();
+        if (result.getExitCode() != Cmd.ExitCode.OK || output == null || output.isEmpty()) {
+            throw new IOException("Can't compute " + checksum + " of " + path + ": " + result.getErrors());
+        }
+        final String remoteChecksum = output.get(0).trim().split("\\s+")[0].toLowerCase(Locale.ROOT);
+        if (!remoteChecksum.equals(localChecksum)) {
+            throw new ChecksumException(checksum + " mismatch for " + path + ": local=" + localChecksum + ", shell=" + remoteChecksum);
+        }
+    }
+
+    @Nullable
+    private MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return checksum != null ? MessageDigest.getInstance(checksum.algorithm) : null;
+    }
+
+    /**
+     * Opening the pipe's other end releases a writer that is still waiting for the shell.
+     */
+    private static void unblock(File fifo) {
+        try {
+            new FileInputStream(fifo).close();
+        } catch (IOException e) {
+            if (RXSDebug.isDebug()) Timber.tag(TAG).v("Staging pipe already gone: %s", e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    public static class Stats {
+        private final String path;
+        private final long bytes;
+        private final long chunks;
+        private final long durationNanos;
+        private final String checksum;
+
+        Stats(String path, long bytes, long chunks, long durationNanos, @Nullable String checksum) {
+            this.path = path;
+            this.bytes = bytes;
+            this.chunks = chunks;
+            this.durationNanos = durationNanos;
+            this.checksum = checksum;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getChunks() {
+            return chunks;
+        }
+
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Excludes the time spent on the checksum verification.
+         */
+        public double getBytesPerSecond() {
+            return durationNanos > 0 ? bytes * 1e9 / durationNanos : 0;
+        }
+
+        /**
+         * @return the verified checksum as lowercase hex, {@code null} if verification was disabled.
+         */
+        @Nullable
+        public String getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "FileTransfer.Stats(path=%s, bytes=%d, chunks=%d, duration=%dms, speed=%.1fKiB/s, checksum=%s)",
+                    path, bytes, chunks, getDuration(TimeUnit.MILLISECONDS), getBytesPerSecond() / 1024, checksum);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        Checksum checksum = Checksum.MD5;
+        File stagingDir = new File(System.getProperty("java.io.tmpdir"));
+        Scheduler scheduler = Schedulers.io();
+
+        /**
+         * How many bytes are copied between progress updates and cancellation checks.
+         *
+         * @param chunkSize defaults to {@link #DEFAULT_CHUNK_SIZE}
+         */
+        public Builder chunkSize(int chunkSize) {
+            if (chunkSize < 1) throw new IllegalArgumentException("Chunk size needs to be at least 1");
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * @param checksum defaults to {@link Checksum#MD5}, {@code null} skips verification.
+         */
+        public Builder checksum(@Nullable Checksum checksum) {
+            this.checksum = checksum;
+            return this;
+        }
+
+        /**
+         * Where named pipes for writes are created, both this process and the shell need access to it.
+         * <p>It has to be private to the app, writes fail if it's world-writable, e.g. {@code /tmp} or {@code /data/local/tmp}.
+         *
+         * @param stagingDir defaults to {@code java.io.tmpdir}, the app's cache directory on Android.
+         */
+        public Builder stagingDir(File stagingDir) {
+            this.stagingDir = stagingDir;
+            return this;
+        }
+
+        /**
+         * Transfers block a thread of this scheduler while they run.
+         *
+         * @param scheduler defaults to {@link Schedulers#io()}
+         */
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public FileTransfer build() {
+            return new FileTransfer(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.darken.rxshell.shell.ByteLineReader;
+import eu.darken.rxshell.shell.ByteTap;
+import io.reactivex.rxjava3.processors.ReplayProcessor;
+import io.reactivex.rxjava3.subscribers.TestSubscriber;
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BinaryTapTest extends BaseTest {
+
+    private static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) payload[i] = (byte) (i * 31);
+        return payload;
+    }
+
+    private static List<String> run(BinaryTap tap, byte[] data, int windowSize) throws IOException {
+        final ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(data), "\n", windowSize);
+        final AtomicReference<ByteTap> taps = new AtomicReference<>(tap);
+        reader.setByteTaps(taps);
+        final List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        return lines;
+    }
+
+    private static byte[] concat(byte[] payload, String suffix) {
+        final byte[] tail = suffix.getBytes(StandardCharsets.UTF_8);
+        final byte[] data = new byte[payload.length + tail.length];
+        System.arraycopy(payload, 0, data, 0, payload.length);
+        System.arraycopy(tail, 0, data, payload.length, tail.length);
+        return data;
+    }
+
+    @Test
+    public void testPayload() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Cmd cmd = Cmd.builder("").outputChannel(Channels.newChannel(out)).build();
+        final byte[] payload = payload(100000);
+
+        final List<String> lines = run(BinaryTap.forOutput(cmd), concat(payload, cmd.getMarker() + " 0\nafter\n"), 64);
+        assertThat(out.toByteArray(), is(payload));
+        assertThat(lines, contains(cmd.getMarker() + " 0", "after"));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Cmd cmd = Cmd.builder("").outputChannel(Channels.newChannel(out)).build();
+
+        final List<String> lines = run(BinaryTap.forOutput(cmd), concat(new byte[0], cmd.getMarker() + " 1\n"), 8);
+        assertThat(out.size(), is(0));
+        assertThat(lines, contains(cmd.getMarker() + " 1"));
+    }
+
+    @Test
+    public void testProcessor() throws IOException {
+        final ReplayProcessor<ByteBuffer> processor = ReplayProcessor.create();
+        final TestSubscriber<ByteBuffer> subscriber = processor.test();
+        final Cmd cmd = Cmd.builder("").outputBytes(processor).build();
+        final byte[] payload = payload(1000);
+
+        run(BinaryTap.forOutput(cmd), concat(payload, cmd.getMarker() + " 0\n"), 128);
+        subscriber.assertComplete();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : subscriber.values()) out.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+        assertThat(out.toByteArray(), is(payload));
+    }
+
+    @Test
+    public void testAbort() {
+        final ReplayProcessor<ByteBuffer> processor = ReplayProcessor.create();
+        final TestSubscriber<ByteBuffer> subscriber = processor.test();
+        final Cmd cmd = Cmd.builder("").outputBytes(processor).build();
+        final BinaryTap tap = BinaryTap.forOutput(cmd);
+
+        tap.abort();
+        assertThat(tap.isDone(), is(true));
+        subscriber.assertError(IOException.class);
+    }
+
+    @Test
+    public void testFailingSink_staysInSync() throws IOException {
+        final List<Throwable> errors = new ArrayList<>();
+        final Cmd cmd = Cmd.builder("").outputSink(new ByteSink() {
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                errors.add(error);
+            }
+        }).build();
+
+        final List<String> lines = run(BinaryTap.forOutput(cmd), concat(payload(500), cmd.getMarker() + " 0\n"), 16);
+        assertThat(lines, contains(cmd.getMarker() + " 0"));
+        assertThat(errors.size(), is(1));
+    }
+}
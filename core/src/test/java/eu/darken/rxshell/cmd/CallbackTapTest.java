@@ -0,0 +1,65 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.darken.rxshell.shell.ByteLineReader;
+import eu.darken.rxshell.shell.LineView;
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CallbackTapTest extends BaseTest {
+
+    private static List<String> run(CallbackTap tap, String data) throws IOException {
+        final ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), "\n");
+        final List<String> passed = new ArrayList<>();
+        LineView line;
+        while ((line = reader.readLineView()) != null) {
+            if (!tap.onLine(line)) passed.add(line.toString());
+        }
+        return passed;
+    }
+
+    @Test
+    public void testOutput() throws IOException {
+        final Cmd cmd = Cmd.builder("").build();
+        final List<String> lines = new ArrayList<>();
+        final Cmd cmdWithCallback = Cmd.from(cmd).outputCallback(line -> lines.add(line.toString())).build();
+        final String marker = cmdWithCallback.getMarker();
+
+        final List<String> passed = run(CallbackTap.forOutput(cmdWithCallback), "1\n2\n3" + marker + " 0\nafter\n");
+        assertThat(lines, contains("1", "2", "3"));
+        assertThat(passed, contains(marker + " 0", "after"));
+    }
+
+    @Test
+    public void testError() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final Cmd cmd = Cmd.builder("").errorCallback(line -> lines.add(line.toString())).build();
+        final String marker = cmd.getMarker();
+
+        final List<String> passed = run(CallbackTap.forError(cmd), "1\n2 " + marker + "\n");
+        assertThat(lines, contains("1", "2"));
+        assertThat(passed, contains(marker));
+    }
+
+    @Test
+    public void testMarkerOnly() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final Cmd cmd = Cmd.builder("").outputCallback(line -> lines.add(line.toString())).build();
+        final List<String> passed = run(CallbackTap.forOutput(cmd), cmd.getMarker() + " 1\n");
+        assertThat(lines.isEmpty(), is(true));
+        assertThat(passed, contains(cmd.getMarker() + " 1"));
+    }
+}
@@ -34,8 +34,17 @@ public class CmdBuilderTest extends BaseTest {
                 .outputBuffer(false)
                 .errorBuffer(false)
                 .timeout(1337)
+                .isolated(true)
+                .interruptible(true)
+                .idempotent(true)
+                .privilege(Cmd.Privilege.USER)
+                .priority(Cmd.Priority.HIGH)
+                .deadline(4242)
+                .tenant("tenant")
                 .outputProcessor(PublishProcessor.create())
                 .errorProcessor(PublishProcessor.create())
+                .outputCallback(line -> { })
+                .errorCallback(line -> { })
                 .build();
 
         Cmd copy = Cmd.from(orig).build();
@@ -43,8 +52,17 @@ public class CmdBuilderTest extends BaseTest {
         assertEquals(orig.isOutputBufferEnabled(), copy.isOutputBufferEnabled());
         assertEquals(orig.isErrorBufferEnabled(), copy.isErrorBufferEnabled());
         assertEquals(orig.getTimeout(), copy.getTimeout());
+        assertEquals(orig.isIsolated(), copy.isIsolated());
+        assertEquals(orig.isInterruptible(), copy.isInterruptible());
+        assertEquals(orig.isIdempotent(), copy.isIdempotent());
+        assertEquals(orig.getPrivilege(), copy.getPrivilege());
+        assertEquals(orig.getPriority(), copy.getPriority());
+        assertEquals(orig.getDeadline(), copy.getDeadline());
+        assertEquals(orig.getTenant(), copy.getTenant());
         assertEquals(orig.getOutputProcessor(), copy.getOutputProcessor());
         assertEquals(orig.getErrorProcessor(), copy.getErrorProcessor());
+        assertEquals(orig.getOutputCallback(), copy.getOutputCallback());
+        assertEquals(orig.getErrorCallback(), copy.getErrorCallback());
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -7,16 +7,27 @@ import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.EnvVar;
 import eu.darken.rxshell.extra.RXSDebug;
 import eu.darken.rxshell.process.RxProcess;
+import eu.darken.rxshell.pump.Pump;
+import eu.darken.rxshell.shell.LineReader;
 import eu.darken.rxshell.shell.RxShell;
+import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.observers.TestObserver;
 import io.reactivex.rxjava3.processors.PublishProcessor;
 import io.reactivex.rxjava3.schedulers.Schedulers;
@@ -28,6 +39,7 @@ import timber.log.Timber;
 
 import static org.awaitility.Awaitility.await;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.notNullValue;
@@ -36,9 +48,12 @@ import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNot.not;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -108,6 +123,18 @@ public class CmdProcessorTest extends BaseTest {
         assertThat(mockSession.getErrorPub().hasSubscribers(), is(false));
     }
 
+    @Test
+    public void testSubmitAll() {
+        processor.attach(session);
+
+        final List<Cmd> cmds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) cmds.add(Cmd.builder("echo " + i).build());
+        final List<Cmd.Result> results = processor.submitAll(cmds).test().awaitDone(3, TimeUnit.SECONDS).assertComplete().values();
+
+        assertThat(results.size(), is(20));
+        for (int i = 0; i < 20; i++) assertThat(results.get(i).getOutput(), contains(String.valueOf(i)));
+    }
+
     @Test
     public void testCommand_empty() {
         processor.attach(session);
@@ -188,6 +215,403 @@ public class CmdProcessorTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testCommand_callback() {
+        processor.attach(session);
+
+        final List<String> output = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        final Cmd cmd = Cmd.builder("echo straw", "error berry")
+                .outputCallback(line -> output.add(line.toString()))
+                .errorCallback(line -> errors.add(line.toString()))
+                .build();
+        final Cmd.Result result = processor.submit(cmd).test().awaitDone(2, TimeUnit.SECONDS).assertNoErrors().values().get(0);
+
+        assertThat(result.getExitCode(), is(0));
+        assertThat(output, contains("straw"));
+        assertThat(errors, contains("berry"));
+        assertThat(result.getOutput().isEmpty(), is(true));
+        assertThat(result.getErrors().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCommand_callback_realShell() {
+        final RxCmdShell.Session shell = RxCmdShell.builder().build().open().blockingGet();
+
+        final int[] count = new int[1];
+        final Cmd.Result result = Cmd.builder("i=0; while [ $i -lt 1000 ]; do echo \"line $i\"; i=$((i+1)); done", "echo -n tail")
+                .outputCallback(line -> {
+                    if (line.length() > 0 && line.charAt(0) == 'l') count[0]++;
+                })
+                .execute(shell);
+
+        assertThat(result.getExitCode(), is(0));
+        assertThat(count[0], is(1000));
+
+        final List<String> outputs = new ArrayList<>();
+        Cmd.builder("echo -n partial").outputCallback(line -> outputs.add(line.toString())).execute(shell);
+        assertThat(outputs, contains("partial"));
+
+        shell.close().blockingGet();
+    }
+
+    @Test
+    public void testCommand_outputSink_realShell() throws IOException {
+        final RxCmdShell.Session shell = RxCmdShell.builder().build().open().blockingGet();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Cmd.Result result = Cmd.builder("printf 'a\\000b\\377\\nc'")
+                .outputChannel(Channels.newChannel(out))
+                .execute(shell);
+        assertThat(result.getExitCode(), is(0));
+        assertThat(result.getOutput().size(), is(0));
+        assertThat(out.toByteArray(), is(new byte[]{'a', 0, 'b', (byte) 0xFF, '\n', 'c'}));
+
+        final ByteSink.PipeSink pipe = ByteSink.pipe();
+        final Single<Cmd.Result> pending = Cmd.builder("i=0; while [ $i -lt 10000 ]; do echo \"line $i\"; i=$((i+1)); done")
+                .outputSink(pipe)
+                .submit(shell)
+                .cache();
+        pending.subscribe();
+        final List<String> lines = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(pipe.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        assertThat(pending.blockingGet().getExitCode(), is(0));
+        assertThat(lines.size(), is(10000));
+        assertThat(lines.get(9999), is("line 9999"));
+
+        assertThat(Cmd.builder("echo lines").execute(shell).getOutput(), contains("lines"));
+        shell.close().blockingGet();
+    }
+
+    @Test
+    public void testCommand_pipeline_realShell() {
+        final Pump pump = new Pump(1);
+        final List<RxCmdShell.Session> shells = new ArrayList<>();
+        shells.add(RxCmdShell.builder().pipeline(16).build().open().blockingGet());
+        shells.add(RxCmdShell.builder().pipeline(16).pump(pump).build().open().blockingGet());
+
+        for (RxCmdShell.Session shell : shells) {
+            final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                observers.add(Cmd.builder("echo out" + i, "echo err" + i + " >&2", "(exit " + (i % 3) + ")").submit(shell).test());
+            }
+            final List<Cmd> batch = new ArrayList<>();
+            for (int i = 0; i < 300; i++) batch.add(Cmd.builder("test " + i + " -lt 150").build());
+            final List<Cmd.Result> batchResults = shell.submitAll(batch).toList().blockingGet();
+            assertThat(batchResults.size(), is(300));
+            for (int i = 0; i < 300; i++) assertThat(batchResults.get(i).getExitCode(), is(i < 150 ? 0 : 1));
+
+            final List<String> lines = new ArrayList<>();
+            final Cmd.Result callback = Cmd.builder("echo tapped").outputCallback(line -> lines.add(line.toString())).execute(shell);
+            assertThat(callback.getExitCode(), is(0));
+            assertThat(lines, contains("tapped"));
+
+            for (int i = 0; i < 200; i++) {
+                final Cmd.Result result = observers.get(i).awaitDone(5, TimeUnit.SECONDS).assertValueCount(1).values().get(0);
+                assertThat(result.getExitCode(), is(i % 3));
+                assertThat(result.getOutput(), contains("out" + i));
+                assertThat(result.getErrors(), contains("err" + i));
+            }
+            assertThat(shell.close().blockingGet(), is(0));
+        }
+        pump.shutdown();
+    }
+
+    @Test
+    public void testCoalescing() throws IOException {
+        processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().coalesce(Coalescing.window(200, TimeUnit.MILLISECONDS)).build());
+        processor.attach(session);
+
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) observers.add(processor.submit(Cmd.builder("echo " + i).build()).test());
+        for (int i = 0; i < 5; i++) {
+            assertThat(observers.get(i).awaitDone(2, TimeUnit.SECONDS).values().get(0).getOutput(), contains(String.valueOf(i)));
+        }
+        verify(session).writeLine(startsWith("echo 0" + LineReader.getLineSeparator()), eq(true));
+        verify(session, never()).writeLine(anyString(), eq(false));
+    }
+
+    @Test
+    public void testCoalescing_realShell() {
+        final Pump pump = new Pump(1);
+        final List<RxCmdShell.Session> shells = new ArrayList<>();
+        shells.add(RxCmdShell.builder().coalesce(Coalescing.window(5, TimeUnit.MILLISECONDS, 8, 512)).build().open().blockingGet());
+        shells.add(RxCmdShell.builder().coalesce(Coalescing.window(5, TimeUnit.MILLISECONDS)).pipeline(4).pump(pump).build().open().blockingGet());
+
+        for (RxCmdShell.Session shell : shells) {
+            final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                observers.add(Cmd.builder("echo out" + i, "(exit " + (i % 3) + ")").submit(shell).test());
+                if (i % 50 == 0) {
+                    final List<String> lines = new ArrayList<>();
+                    Cmd.builder("echo tapped").outputCallback(line -> lines.add(line.toString())).submit(shell).test();
+                }
+            }
+            for (int i = 0; i < 200; i++) {
+                final Cmd.Result result = observers.get(i).awaitDone(5, TimeUnit.SECONDS).assertValueCount(1).values().get(0);
+                assertThat(result.getExitCode(), is(i % 3));
+                assertThat(result.getOutput(), contains("out" + i));
+            }
+            assertThat(shell.close().blockingGet(), is(0));
+        }
+        pump.shutdown();
+    }
+
+    @Test
+    public void testSubmit_racingShutdown() throws InterruptedException {
+        processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        final List<TestObserver<Cmd.Result>> observers = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 200; i++) observers.add(processor.submit(Cmd.builder("echo " + i).build()).test());
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        session.cancel().test().awaitDone(1, TimeUnit.SECONDS);
+        for (Thread thread : threads) thread.join();
+
+        // Nothing gets lost, whatever didn't run fails
+        assertThat(observers.size(), is(1600));
+        for (TestObserver<Cmd.Result> observer : observers) {
+            observer.awaitDone(2, TimeUnit.SECONDS).assertValueCount(1);
+        }
+        processor.submit(Cmd.builder("echo dead").build()).test().awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.SHELL_DIED);
+    }
+
+    @Test
+    public void testPriority() {
+        processor.attach(session);
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        processor.submit(Cmd.builder("sleep 200").build()).test();
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        for (Cmd.Priority priority : Arrays.asList(Cmd.Priority.LOW, Cmd.Priority.NORMAL, Cmd.Priority.HIGH)) {
+            observers.add(processor.submit(Cmd.builder("echo " + priority).priority(priority).build())
+                    .doOnSuccess(result -> order.add(result.getOutput().get(0)))
+                    .test());
+        }
+        for (TestObserver<Cmd.Result> observer : observers) observer.awaitDone(2, TimeUnit.SECONDS).assertValueCount(1);
+        assertThat(order, contains("HIGH", "NORMAL", "LOW"));
+    }
+
+    @Test
+    public void testCancel_queued() throws IOException {
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> slow = processor.submit(Cmd.builder("sleep 200").build()).test();
+        final TestObserver<Cmd.Result> cancelled = processor.submit(Cmd.builder("echo gone").build()).test();
+        final TestObserver<Cmd.Result> after = processor.submit(Cmd.builder("echo after").build()).test();
+        cancelled.dispose();
+
+        slow.awaitDone(2, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        after.awaitDone(2, TimeUnit.SECONDS).assertValue(result -> result.getOutput().contains("after"));
+        verify(session, never()).writeLine("echo gone", false);
+        cancelled.assertNoValues();
+    }
+
+    @Test
+    public void testCancel_inFlight() throws IOException {
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> running = processor.submit(Cmd.builder("sleep 200", "echo discarded").build()).test();
+        verify(session, timeout(1000)).writeLine("sleep 200", false);
+        running.dispose();
+
+        // Runs to its end, the session survives
+        processor.submit(Cmd.builder("echo after").build()).test()
+                .awaitDone(2, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK && result.getOutput().contains("after"));
+        verify(session, never()).cancel();
+        running.assertNoValues();
+    }
+
+    @Test
+    public void testCancel_interruptible() throws IOException {
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> running = processor.submit(Cmd.builder("sleep 5000").interruptible(true).build()).test();
+        verify(session, timeout(1000)).writeLine(startsWith("{" + LineReader.getLineSeparator() + "(" + LineReader.getLineSeparator() + "sleep 5000"), eq(true));
+        running.dispose();
+
+        // Wakes the shell's reader, which kills just this command
+        verify(session, timeout(1000)).writeLine(Pipeline.INTERRUPT, true);
+        verify(session, never()).cancel();
+        running.assertNoValues();
+    }
+
+    @Test
+    public void testCancel_batch() throws IOException {
+        processor.attach(session);
+
+        processor.submit(Cmd.builder("sleep 200").build()).test();
+        final TestSubscriber<Cmd.Result> batch = processor.submitAll(Arrays.asList(Cmd.builder("echo b1").build(), Cmd.builder("echo b2").build())).test();
+        batch.cancel();
+
+        processor.submit(Cmd.builder("echo after").build()).test()
+                .awaitDone(2, TimeUnit.SECONDS)
+                .assertValue(result -> result.getOutput().contains("after"));
+        verify(session, never()).writeLine(startsWith("echo b1"), anyBoolean());
+        batch.assertNoValues();
+    }
+
+    @Test
+    public void testAdmission() throws IOException {
+        processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().admission(Admission.reject(1)).build());
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> running = processor.submit(Cmd.builder("sleep 200").build()).test();
+        verify(session, timeout(1000)).writeLine("sleep 200", false);
+        final TestObserver<Cmd.Result> queued = processor.submit(Cmd.builder("echo queued").build()).test();
+        assertThat(processor.getQueueSize(), is(1));
+
+        processor.submit(Cmd.builder("echo full").build()).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.REJECTED);
+        processor.submitAll(Arrays.asList(Cmd.builder("echo b1").build(), Cmd.builder("echo b2").build())).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValueCount(2)
+                .assertValueAt(1, result -> result.getExitCode() == Cmd.ExitCode.REJECTED);
+        assertThat(processor.getRejectedCount(), is(3L));
+        verify(session, never()).writeLine("echo full", false);
+
+        running.awaitDone(2, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        queued.awaitDone(2, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        assertThat(processor.getQueueSize(), is(0));
+        // The session is fine
+        processor.submit(Cmd.builder("echo after").build()).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+    }
+
+    @Test
+    public void testFairness() {
+        final Fairness fairness = Fairness.builder().weight("ui", 2).build();
+        processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().fairness(fairness).build());
+        processor.attach(session);
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        processor.submit(Cmd.builder("sleep 200").build()).test();
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            observers.add(processor.submit(Cmd.builder("echo bulk").tenant("scanner").build())
+                    .doOnSuccess(result -> order.add(result.getOutput().get(0)))
+                    .test());
+        }
+        for (int i = 0; i < 4; i++) {
+            observers.add(processor.submit(Cmd.builder("echo ui").tenant("ui").build())
+                    .doOnSuccess(result -> order.add(result.getOutput().get(0)))
+                    .test());
+        }
+        for (TestObserver<Cmd.Result> observer : observers) observer.awaitDone(2, TimeUnit.SECONDS).assertValueCount(1);
+        // Submitted last, but not stuck behind the bulk tenant
+        assertThat(order, contains("bulk", "ui", "ui", "bulk", "ui", "ui", "bulk", "bulk"));
+
+        final Map<String, TenantStats> stats = processor.getTenantStats();
+        assertThat(stats.keySet(), contains(Cmd.DEFAULT_TENANT, "scanner", "ui"));
+        assertThat(stats.get("ui").getWeight(), is(2));
+        assertThat(stats.get("ui").getCount(), is(4L));
+        assertThat(stats.get("scanner").getMaxWait(TimeUnit.MILLISECONDS), is(greaterThanOrEqualTo(100L)));
+        assertThat(stats.get("scanner").getMaxLatency(TimeUnit.NANOSECONDS), is(greaterThanOrEqualTo(stats.get("scanner").getMaxWait(TimeUnit.NANOSECONDS))));
+    }
+
+    @Test
+    public void testDeadline() throws IOException {
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> slow = processor.submit(Cmd.builder("sleep 500").build()).test();
+        // Otherwise the earlier deadline would put it ahead of the slow command
+        verify(session, timeout(1000)).writeLine("sleep 500", false);
+        final long start = System.currentTimeMillis();
+        final TestObserver<Cmd.Result> expired = processor.submit(Cmd.builder("echo late").deadline(start + 100).build()).test();
+
+        // Completes while still queued, without waiting for the slow command
+        expired.awaitDone(300, TimeUnit.MILLISECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.TIMEOUT);
+        slow.assertNoValues();
+        verify(session, never()).writeLine("echo late", false);
+
+        // The session lives on
+        slow.awaitDone(2, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        processor.submit(Cmd.builder("echo ok").deadline(System.currentTimeMillis() + 5000).build()).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        processor.submit(Cmd.builder("echo passed").deadline(start).build()).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.TIMEOUT);
+    }
+
+    @Test
+    public void testCommand_pump_realShell() {
+        final Pump pump = new Pump(1);
+        final RxCmdShell.Session blocking = RxCmdShell.builder().build().open().blockingGet();
+        final List<RxCmdShell.Session> pumped = new ArrayList<>();
+        for (int i = 0; i < 3; i++) pumped.add(RxCmdShell.builder().pump(pump).build().open().blockingGet());
+
+        for (RxCmdShell.Session shell : pumped) {
+            final Cmd.Result result = Cmd.builder("echo straw", "echo berry >&2", "i=0; while [ $i -lt 500 ]; do echo \"line $i\"; i=$((i+1)); done", "false")
+                    .execute(shell);
+            assertThat(result.getExitCode(), is(1));
+            assertThat(result.getOutput().size(), is(501));
+            assertThat(result.getOutput().get(0), is("straw"));
+            assertThat(result.getOutput().get(500), is("line 499"));
+            assertThat(result.getErrors(), contains("berry"));
+            assertThat(shell.getThreadCount(), is(0));
+        }
+        await().atMost(2, TimeUnit.SECONDS).until(blocking::getThreadCount, is(5));
+
+        assertThat(Cmd.builder("echo -n partial").execute(pumped.get(0)).getOutput(), contains("partial"));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Cmd.builder("head -c 100000 /dev/zero").outputChannel(Channels.newChannel(out)).execute(pumped.get(1));
+        assertThat(out.size(), is(100000));
+
+        pumped.get(0).cancel().blockingAwait();
+        pumped.get(0).waitFor().blockingGet();
+        assertThat(Cmd.builder("echo dead").execute(pumped.get(0)).getExitCode(), is(Cmd.ExitCode.SHELL_DIED));
+
+        for (RxCmdShell.Session shell : pumped.subList(1, pumped.size())) {
+            assertThat(shell.close().blockingGet(), is(0));
+        }
+        blocking.close().blockingGet();
+        await().atMost(2, TimeUnit.SECONDS).until(pump::getTaskCount, is(0));
+        pump.shutdown();
+    }
+
+    @Test
+    public void testCommand_executionConfig_realShell() {
+        final ExecutionConfig config = ExecutionConfig.builder()
+                .readerThreads(4)
+                .dispatchThreads(2)
+                .deliveryThreads(1)
+                .build();
+        final RxCmdShell.Session shell = RxCmdShell.builder().executionConfig(config).build().open().blockingGet();
+
+        final List<String> readerThreads = new ArrayList<>();
+        final Cmd.Result result = Cmd.builder("echo straw")
+                .outputCallback(line -> readerThreads.add(Thread.currentThread().getName()))
+                .submit(shell)
+                .map(r -> {
+                    assertThat(Thread.currentThread().getName(), Matchers.startsWith("rxshell-delivery-"));
+                    return r;
+                })
+                .blockingGet();
+        assertThat(result.getExitCode(), is(0));
+        assertThat(readerThreads.size(), is(1));
+        assertThat(readerThreads.get(0), Matchers.startsWith("rxshell-reader-"));
+
+        // Two pipe readers and two process waits
+        await().atMost(2, TimeUnit.SECONDS).until(() -> config.getStats().get(0).getActiveThreads(), is(4));
+        assertThat(config.getStats().get(1).getActiveThreads(), is(1));
+
+        shell.close().blockingGet();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> config.getStats().get(0).getActiveThreads(), is(0));
+        config.shutdown();
+    }
+
     @Test
     public void testCommand_outputProcessor_async_timing() {
         RXSDebug.setDebug(true);
@@ -294,6 +718,82 @@ public class CmdProcessorTest extends BaseTest {
         verify(session, timeout(1000)).cancel();
     }
 
+    @Test
+    public void testWatchdog_isolated_realShell() {
+        final RxCmdShell.Session shell = RxCmdShell.builder().build().open().blockingGet();
+
+        final TestObserver<Cmd.Result> killed = Cmd.builder("echo before", "sleep 30", "echo after")
+                .timeout(500)
+                .isolated(true)
+                .submit(shell)
+                .test();
+        final TestObserver<Cmd.Result> queued = Cmd.builder("echo queued").submit(shell).test();
+
+        final Cmd.Result result = killed.awaitDone(5, TimeUnit.SECONDS).assertNoErrors().values().get(0);
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.TIMEOUT));
+        assertThat(result.getOutput(), contains("before"));
+        queued.awaitDone(1, TimeUnit.SECONDS).assertValue(r -> r.getExitCode() == Cmd.ExitCode.OK && r.getOutput().contains("queued"));
+
+        // Finishing in time keeps the command's own exit code
+        final Cmd.Result fast = Cmd.builder("echo fast", "exit 3").timeout(5000).isolated(true).execute(shell);
+        assertThat(fast.getExitCode(), is(3));
+        assertThat(fast.getOutput(), contains("fast"));
+
+        assertThat(shell.isAlive().blockingGet(), is(true));
+        assertThat(Cmd.builder("echo alive").execute(shell).getOutput(), contains("alive"));
+        shell.close().blockingGet();
+    }
+
+    @Test
+    public void testCancel_interruptible_realShell() {
+        final RxCmdShell.Session shell = RxCmdShell.builder().build().open().blockingGet();
+
+        final TestObserver<Cmd.Result> interrupted = Cmd.builder("echo before", "sleep 30", "echo after")
+                .interruptible(true)
+                .submit(shell)
+                .test();
+        final TestObserver<Cmd.Result> queued = Cmd.builder("echo queued").submit(shell).test();
+        TestHelper.sleep(300);
+        interrupted.dispose();
+
+        // Doesn't wait for the sleep and the session survives
+        queued.awaitDone(2, TimeUnit.SECONDS).assertValue(r -> r.getExitCode() == Cmd.ExitCode.OK && r.getOutput().contains("queued"));
+        interrupted.assertNoValues();
+
+        // Finishing normally keeps the command's own exit code and output
+        final Cmd.Result fast = Cmd.builder("echo fast", "exit 3").interruptible(true).execute(shell);
+        assertThat(fast.getExitCode(), is(3));
+        assertThat(fast.getOutput(), contains("fast"));
+        // Its reader is gone and doesn't take what comes next
+        assertThat(Cmd.builder("echo alive").execute(shell).getOutput(), contains("alive"));
+
+        // Also with a watchdog
+        final TestObserver<Cmd.Result> both = Cmd.builder("sleep 30").interruptible(true).isolated(true).timeout(20000).submit(shell).test();
+        TestHelper.sleep(300);
+        both.dispose();
+        assertThat(Cmd.builder("echo alive").timeout(2000).execute(shell).getExitCode(), is(Cmd.ExitCode.OK));
+
+        assertThat(shell.isAlive().blockingGet(), is(true));
+        shell.close().blockingGet();
+    }
+
+    @Test
+    public void testWatchdog_isolated_grandchildren() {
+        final RxCmdShell.Session shell = RxCmdShell.builder().build().open().blockingGet();
+
+        // The backgrounded subshell is a grandchild of the isolated one, "true" stops the shell from exec'ing the last command
+        final Cmd.Result result = Cmd.builder("sh -c '(sleep 1; echo late; echo late >&2) & wait'", "true")
+                .timeout(300)
+                .isolated(true)
+                .execute(shell);
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.TIMEOUT));
+
+        final Cmd.Result next = Cmd.builder("sleep 1.5", "echo next").execute(shell);
+        assertThat(next.getOutput(), contains("next"));
+        assertThat(next.getErrors().isEmpty(), is(true));
+        shell.close().blockingGet();
+    }
+
     @Test
     public void testHarvestersUpstreamError_both() {
         processor.attach(session);
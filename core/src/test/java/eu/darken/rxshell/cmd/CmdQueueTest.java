@@ -0,0 +1,425 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class CmdQueueTest extends BaseTest {
+
+    private static CmdProcessor.QueueCmd item(String command) {
+        return new CmdProcessor.QueueCmd(Cmd.builder(command).build(), null);
+    }
+
+    private static CmdProcessor.QueueCmd item(String command, Cmd.Priority priority) {
+        return new CmdProcessor.QueueCmd(Cmd.builder(command).priority(priority).build(), null);
+    }
+
+    @Test
+    public void testOrder() {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        assertThat(queue.isEmpty(), is(true));
+        assertThat(queue.poll(), is(nullValue()));
+
+        final CmdProcessor.QueueCmd first = item("1");
+        final CmdProcessor.QueueCmd second = item("2");
+        final CmdProcessor.QueueCmd pushed = item("0");
+        queue.offer(first);
+        queue.offer(second);
+        assertThat(queue.isEmpty(), is(false));
+
+        assertThat(queue.poll(), is(first));
+        queue.pushBack(first);
+        queue.pushBack(pushed);
+        assertThat(queue.poll(), is(pushed));
+        assertThat(queue.poll(), is(first));
+        assertThat(queue.poll(), is(second));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testPriority() {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final long now = System.currentTimeMillis();
+        final CmdProcessor.QueueCmd low = new CmdProcessor.QueueCmd(Cmd.builder("low").priority(Cmd.Priority.LOW).build(), null);
+        final CmdProcessor.QueueCmd normal1 = item("normal1");
+        final CmdProcessor.QueueCmd normal2 = item("normal2");
+        final CmdProcessor.QueueCmd late = new CmdProcessor.QueueCmd(Cmd.builder("late").deadline(now + 500).build(), null);
+        final CmdProcessor.QueueCmd early = new CmdProcessor.QueueCmd(Cmd.builder("early").deadline(now + 200).build(), null);
+        final CmdProcessor.QueueCmd high = new CmdProcessor.QueueCmd(Cmd.builder("high").priority(Cmd.Priority.HIGH).build(), null);
+        for (CmdProcessor.QueueCmd item : Arrays.asList(low, normal1, late, normal2, early, high)) queue.offer(item);
+
+        // Earliest deadline first within a priority, those without one after urgent deadlines and in order
+        for (CmdProcessor.QueueCmd expected : Arrays.asList(high, early, late, normal1, normal2, low)) {
+            assertThat(queue.poll(), is(expected));
+        }
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testDeadline_distant() {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final CmdProcessor.QueueCmd plain = item("plain");
+        final CmdProcessor.QueueCmd distant = new CmdProcessor.QueueCmd(Cmd.builder("distant").deadline(System.currentTimeMillis() + 3600 * 1000).build(), null);
+        final CmdProcessor.QueueCmd urgent = new CmdProcessor.QueueCmd(Cmd.builder("urgent").deadline(System.currentTimeMillis() + 100).build(), null);
+        for (CmdProcessor.QueueCmd item : Arrays.asList(plain, distant, urgent)) queue.offer(item);
+
+        // A deadline an hour away doesn't overtake earlier commands without one
+        for (CmdProcessor.QueueCmd expected : Arrays.asList(urgent, plain, distant)) {
+            assertThat(queue.poll(), is(expected));
+        }
+    }
+
+    @Test
+    public void testDeadline_noStarvation() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final CmdProcessor.QueueCmd plain = item("plain");
+        queue.offer(plain);
+        final long stop = System.currentTimeMillis() + CmdQueue.NO_DEADLINE_SLACK + 500;
+        int overtaken = 0;
+        // A steady stream of commands with urgent deadlines
+        while (true) {
+            queue.offer(new CmdProcessor.QueueCmd(Cmd.builder("urgent").deadline(System.currentTimeMillis() + 100).build(), null));
+            final CmdProcessor.QueueCmd next = queue.poll();
+            if (next == plain) break;
+            overtaken++;
+            assertThat(System.currentTimeMillis() < stop, is(true));
+            Thread.sleep(10);
+        }
+        // Urgent ones still went first while it wasn't due yet
+        assertThat(overtaken > 0, is(true));
+    }
+
+    private static CmdProcessor.QueueCmd item(String command, String tenant) {
+        return new CmdProcessor.QueueCmd(Cmd.builder(command).tenant(tenant).build(), null);
+    }
+
+    private static List<String> drain(CmdQueue queue) {
+        final List<String> commands = new ArrayList<>();
+        CmdProcessor.QueueCmd item;
+        while ((item = queue.poll()) != null) commands.add(item.cmd.getCommands().get(0));
+        return commands;
+    }
+
+    @Test
+    public void testFairness_weights() {
+        final CmdQueue queue = new CmdQueue(item -> { }, null, Fairness.builder().weight("a", 3).build());
+        for (int i = 0; i < 4; i++) queue.offer(item("a", "a"));
+        for (int i = 0; i < 4; i++) queue.offer(item("b", "b"));
+        assertThat(queue.isEmpty(), is(false));
+
+        assertThat(drain(queue), contains("a", "b", "a", "a", "a", "b", "b", "b"));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFairness_idle() {
+        final CmdQueue queue = new CmdQueue(item -> { }, null, Fairness.builder().build());
+        for (int i = 0; i < 4; i++) queue.offer(item("a", "a"));
+        assertThat(drain(queue).size(), is(4));
+
+        // b doesn't save up its share while a ran alone
+        for (int i = 0; i < 3; i++) queue.offer(item("a", "a"));
+        for (int i = 0; i < 3; i++) queue.offer(item("b", "b"));
+        assertThat(drain(queue), contains("b", "a", "b", "a", "b", "a"));
+    }
+
+    @Test
+    public void testFairness_priority() {
+        final CmdQueue queue = new CmdQueue(item -> { }, null, Fairness.builder().weight("a", 10).build());
+        queue.offer(item("a", "a"));
+        queue.offer(new CmdProcessor.QueueCmd(Cmd.builder("b").tenant("b").priority(Cmd.Priority.HIGH).build(), null));
+        queue.offer(new CmdProcessor.QueueCmd(Cmd.builder("c").priority(Cmd.Priority.LOW).build(), null));
+        assertThat(drain(queue), contains("b", "a", "c"));
+    }
+
+    @Test
+    public void testFairness_claimed() {
+        final CmdQueue queue = new CmdQueue(item -> { }, null, Fairness.builder().build());
+        final List<CmdProcessor.QueueCmd> cancelled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) cancelled.add(item("a", "a"));
+        for (CmdProcessor.QueueCmd item : cancelled) queue.offer(item);
+        queue.offer(item("b", "b"));
+        queue.offer(item("b", "b"));
+        queue.offer(item("a", "a"));
+        // The tenant isn't charged for what it didn't run
+        for (CmdProcessor.QueueCmd item : cancelled) queue.claim(item);
+        assertThat(drain(queue), contains("b", "a", "b"));
+    }
+
+    @Test
+    public void testFairness_shed() {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.shed(2), Fairness.builder().build());
+        final CmdProcessor.QueueCmd oldest = item("a", "a");
+        queue.offer(oldest);
+        queue.offer(item("b", "b"));
+        assertThat(queue.offer(item("c", "c")), contains(oldest));
+        assertThat(drain(queue), contains("b", "c"));
+    }
+
+    @Test
+    public void testDeadline() {
+        final List<CmdProcessor.QueueCmd> expired = new ArrayList<>();
+        final CmdQueue queue = new CmdQueue(expired::add);
+        final CmdProcessor.QueueCmd passed = new CmdProcessor.QueueCmd(Cmd.builder("passed").deadline(System.currentTimeMillis() - 1).build(), null);
+        final CmdProcessor.QueueCmd claimed = item("claimed");
+        final CmdProcessor.QueueCmd item = item("item");
+        queue.offer(passed);
+        queue.offer(claimed);
+        queue.offer(item);
+        // E.g. by its deadline timer
+        assertThat(queue.claim(claimed), is(true));
+
+        assertThat(queue.poll(), is(item));
+        assertThat(queue.poll(), is(nullValue()));
+        assertThat(expired, contains(passed));
+        assertThat(item.claim(), is(false));
+    }
+
+    @Test
+    public void testStop() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final CmdProcessor.QueueCmd item = item("1");
+        queue.offer(item);
+        queue.stop();
+        assertThat(queue.poll().isPoisonPill(), is(true));
+        assertThat(queue.take().isPoisonPill(), is(true));
+        assertThat(queue.pollItem(), is(item));
+        assertThat(queue.pollItem(), is(nullValue()));
+    }
+
+    @Test
+    public void testTake() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final AtomicReference<CmdProcessor.QueueCmd> taken = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread consumer = new Thread(() -> {
+            try {
+                taken.set(queue.take());
+            } catch (InterruptedException ignored) {
+            }
+            done.countDown();
+        });
+        consumer.start();
+
+        assertThat(done.await(200, TimeUnit.MILLISECONDS), is(false));
+        final CmdProcessor.QueueCmd item = item("1");
+        queue.offer(item);
+        assertThat(done.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(taken.get(), is(item));
+    }
+
+    @Test
+    public void testTake_stop() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final AtomicReference<CmdProcessor.QueueCmd> taken = new AtomicReference<>();
+        final Thread consumer = new Thread(() -> {
+            try {
+                taken.set(queue.take());
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        queue.stop();
+        consumer.join(1000);
+        assertThat(taken.get().isPoisonPill(), is(true));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testTake_interrupted() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        new CmdQueue(item -> { }).take();
+    }
+
+    @Test
+    public void testPollTimeout() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final long start = System.nanoTime();
+        assertThat(queue.poll(TimeUnit.MILLISECONDS.toNanos(100)), is(nullValue()));
+        assertThat(System.nanoTime() - start, is(greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100))));
+    }
+
+    @Test
+    public void testProducers() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final int producers = 8;
+        final int count = 10000;
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < count; i++) queue.offer(item(producer + ":" + i));
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+
+        final int[] next = new int[producers];
+        for (int i = 0; i < producers * count; i++) {
+            final String[] parts = queue.take().cmd.getCommands().get(0).split(":");
+            final int producer = Integer.parseInt(parts[0]);
+            // Each producer's items arrive in order
+            assertThat(Integer.parseInt(parts[1]), is(next[producer]++));
+        }
+        for (Thread thread : threads) thread.join();
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testPriority_concurrent() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        final int count = 20000;
+        final Thread plainProducer = new Thread(() -> {
+            for (int i = 0; i < count; i++) queue.offer(item("plain"));
+        });
+        final Thread highProducer = new Thread(() -> {
+            for (int i = 0; i < count; i++) queue.offer(item("high", Cmd.Priority.HIGH));
+        });
+        plainProducer.start();
+        highProducer.start();
+        for (int i = 0; i < 2 * count; i++) queue.take();
+        plainProducer.join();
+        highProducer.join();
+        // Every ordered command went through the heap
+        assertThat(queue.unordered.get(), is(0));
+
+        // And the fast path still gives way to priorities
+        final CmdProcessor.QueueCmd plain = item("plain");
+        final CmdProcessor.QueueCmd high = item("high", Cmd.Priority.HIGH);
+        queue.offer(plain);
+        queue.offer(high);
+        assertThat(queue.poll(), is(high));
+        assertThat(queue.poll(), is(plain));
+    }
+
+    @Test
+    public void testAdmission_reject() {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.reject(2));
+        final CmdProcessor.QueueCmd first = item("1");
+        final CmdProcessor.QueueCmd third = item("3");
+        assertThat(queue.offer(first), is(nullValue()));
+        assertThat(queue.offer(item("2")), is(nullValue()));
+        assertThat(queue.offer(third), contains(third));
+        assertThat(third.isClaimed(), is(true));
+        assertThat(queue.size(), is(2));
+
+        assertThat(queue.poll(), is(first));
+        assertThat(queue.size(), is(1));
+        assertThat(queue.offer(item("4")), is(nullValue()));
+        assertThat(queue.size(), is(2));
+    }
+
+    @Test
+    public void testAdmission_claimFreesRoom() {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.reject(1));
+        final CmdProcessor.QueueCmd cancelled = item("cancelled");
+        queue.offer(cancelled);
+        // E.g. a cancellation or its deadline timer
+        assertThat(queue.claim(cancelled), is(true));
+        assertThat(queue.claim(cancelled), is(false));
+        assertThat(queue.size(), is(0));
+
+        final CmdProcessor.QueueCmd next = item("next");
+        assertThat(queue.offer(next), is(nullValue()));
+        assertThat(queue.poll(), is(next));
+    }
+
+    @Test
+    public void testAdmission_batch() {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.reject(2));
+        final CmdProcessor.QueueCmd batch = new CmdProcessor.QueueCmd(Arrays.asList(item("1"), item("2"), item("3")));
+        // Larger than the capacity, but the queue is empty
+        assertThat(queue.offer(batch), is(nullValue()));
+        assertThat(queue.size(), is(3));
+        final CmdProcessor.QueueCmd single = item("4");
+        assertThat(queue.offer(single), contains(single));
+
+        assertThat(queue.poll(), is(batch));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void testAdmission_shed() {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.shed(3));
+        final CmdProcessor.QueueCmd low = item("low", Cmd.Priority.LOW);
+        final CmdProcessor.QueueCmd normal1 = item("normal1");
+        final CmdProcessor.QueueCmd normal2 = item("normal2");
+        final CmdProcessor.QueueCmd high = item("high", Cmd.Priority.HIGH);
+        for (CmdProcessor.QueueCmd item : Arrays.asList(low, normal1, normal2)) assertThat(queue.offer(item), is(nullValue()));
+
+        assertThat(queue.offer(high), contains(low));
+        // Lower than everything queued, it's turned away itself
+        final CmdProcessor.QueueCmd lower = item("lower", Cmd.Priority.LOW);
+        assertThat(queue.offer(lower), contains(lower));
+        // The oldest among equals
+        final CmdProcessor.QueueCmd normal3 = item("normal3");
+        assertThat(queue.offer(normal3), contains(normal1));
+        assertThat(queue.size(), is(3));
+
+        assertThat(queue.poll(), is(high));
+        assertThat(queue.poll(), is(normal2));
+        assertThat(queue.poll(), is(normal3));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testAdmission_block() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.block(1));
+        final CmdProcessor.QueueCmd first = item("1");
+        final CmdProcessor.QueueCmd second = item("2");
+        queue.offer(first);
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final Thread submitter = new Thread(() -> {
+            queue.offer(second);
+            admitted.countDown();
+        });
+        submitter.start();
+        assertThat(admitted.await(200, TimeUnit.MILLISECONDS), is(false));
+
+        assertThat(queue.poll(), is(first));
+        assertThat(admitted.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(queue.poll(), is(second));
+    }
+
+    @Test
+    public void testAdmission_block_interrupted() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.block(1));
+        queue.offer(item("1"));
+
+        final CmdProcessor.QueueCmd second = item("2");
+        final AtomicReference<List<CmdProcessor.QueueCmd>> turnedAway = new AtomicReference<>();
+        final Thread submitter = new Thread(() -> turnedAway.set(queue.offer(second)));
+        submitter.start();
+        submitter.interrupt();
+        submitter.join(1000);
+        assertThat(turnedAway.get(), contains(second));
+    }
+
+    @Test
+    public void testAdmission_block_stopped() throws InterruptedException {
+        final CmdQueue queue = new CmdQueue(item -> { }, Admission.block(1));
+        queue.offer(item("1"));
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        new Thread(() -> {
+            queue.offer(item("2"));
+            admitted.countDown();
+        }).start();
+        assertThat(admitted.await(100, TimeUnit.MILLISECONDS), is(false));
+        // Let in, so that the processor fails it
+        queue.stop();
+        assertThat(admitted.await(1, TimeUnit.SECONDS), is(true));
+    }
+}
@@ -0,0 +1,80 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class CoalescingTest extends BaseTest {
+
+    private static CmdProcessor.QueueCmd item(Cmd cmd) {
+        return new CmdProcessor.QueueCmd(cmd, null);
+    }
+
+    @Test
+    public void testGroup() {
+        final Coalescing.Group group = new Coalescing.Group(Coalescing.window(1, TimeUnit.SECONDS, 3, Coalescing.DEFAULT_MAX_BYTES));
+        assertThat(group.drain(), is(nullValue()));
+
+        final CmdProcessor.QueueCmd first = item(Cmd.builder("echo 1").build());
+        assertThat(group.offer(first), is(true));
+        assertThat(group.remainingNanos() > 0, is(true));
+        assertThat(group.drain(), is(first));
+        assertThat(group.isEmpty(), is(true));
+
+        for (int i = 0; i < 3; i++) assertThat(group.offer(item(Cmd.builder("echo " + i).build())), is(true));
+        assertThat(group.isFull(), is(true));
+        assertThat(group.offer(item(Cmd.builder("echo 4").build())), is(false));
+
+        final CmdProcessor.QueueCmd batch = group.drain();
+        assertThat(batch.isBatch(), is(true));
+        assertThat(batch.batch.size(), is(3));
+        assertThat(group.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testGroup_window() {
+        final Coalescing.Group group = new Coalescing.Group(Coalescing.window(0, TimeUnit.MILLISECONDS));
+        group.offer(item(Cmd.builder("echo 1").build()));
+        assertThat(group.remainingNanos() <= 0, is(true));
+    }
+
+    @Test
+    public void testGroup_maxBytes() {
+        final Cmd cmd = Cmd.builder("echo 1").build();
+        final Coalescing.Group group = new Coalescing.Group(Coalescing.window(1, TimeUnit.SECONDS, 100, Coalescing.sizeOf(cmd) + 1));
+        // A single command is never too large
+        final CmdProcessor.QueueCmd large = item(Cmd.builder("echo " + new String(new char[1024]).replace('\0', 'x')).build());
+        assertThat(group.offer(large), is(true));
+        assertThat(group.isFull(), is(true));
+        assertThat(group.drain(), is(large));
+
+        assertThat(group.offer(item(cmd)), is(true));
+        assertThat(group.isFull(), is(false));
+        assertThat(group.offer(item(Cmd.builder("echo 2").build())), is(false));
+    }
+
+    @Test
+    public void testGroup_rejects() {
+        final Coalescing.Group group = new Coalescing.Group(Coalescing.window(1, TimeUnit.SECONDS));
+        assertThat(group.offer(item(Cmd.builder("echo 1").outputCallback(line -> { }).build())), is(false));
+        assertThat(group.offer(item(Cmd.builder("echo 1").errorCallback(line -> { }).build())), is(false));
+        assertThat(group.offer(CmdProcessor.QueueCmd.poisonPill()), is(false));
+        assertThat(group.isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCommands() {
+        Coalescing.window(1, TimeUnit.SECONDS, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindow() {
+        Coalescing.window(-1, TimeUnit.SECONDS);
+    }
+}
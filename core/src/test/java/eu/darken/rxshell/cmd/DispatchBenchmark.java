@@ -0,0 +1,173 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.darken.rxshell.extra.RXSDebug;
+import eu.darken.rxshell.process.RxProcess;
+import eu.darken.rxshell.shell.RxShell;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.processors.PublishProcessor;
+import testtools.BaseTest;
+import testtools.TestHelper;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Per-command overhead of matching shell output to commands, without the shell itself.
+ * <p>"chain" is what {@link CmdProcessor} used to assemble for every command:
+ * two harvesters with cached observables, merged into a list.
+ * "demux" is the {@link Pipeline}, which stays subscribed for the whole session and only creates the parsers.
+ * <p>Allocations are only reported on VMs that support {@code com.sun.management.ThreadMXBean}.
+ */
+public class DispatchBenchmark extends BaseTest {
+    private static final int COMMANDS = 200_000;
+    private static final int ROUNDS = 5;
+    private final Harvester.Factory factory = new Harvester.Factory();
+    private PublishProcessor<String> output;
+    private PublishProcessor<String> errors;
+    private RxShell.Session session;
+    private boolean debug;
+
+    @Before
+    public void setup() throws Exception {
+        TestHelper.assumeBenchmark();
+        super.setup();
+        // Per-line logging would dominate the numbers
+        debug = RXSDebug.isDebug();
+        RXSDebug.setDebug(false);
+        output = PublishProcessor.create();
+        errors = PublishProcessor.create();
+        // Only the lines are faked, writes go through a real writer
+        final RxProcess.Session process = mock(RxProcess.Session.class);
+        when(process.output()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(process.error()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(process.waitFor()).thenReturn(Single.never());
+        when(process.destroy()).thenReturn(Completable.complete());
+        final OutputStreamWriter writer = new OutputStreamWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+
+            }
+        }, StandardCharsets.UTF_8);
+        session = new RxShell.Session(process, writer) {
+            @Override
+            public Flowable<String> outputLines() {
+                return output;
+            }
+
+            @Override
+            public Flowable<String> errorLines() {
+                return errors;
+            }
+        };
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        RXSDebug.setDebug(debug);
+        super.tearDown();
+    }
+
+    private void feed(Cmd cmd, int index) {
+        output.onNext("line " + index);
+        output.onNext(cmd.getMarker() + " 0");
+        errors.onNext(cmd.getMarker());
+    }
+
+    private long chain() throws IOException {
+        long count = 0;
+        for (int i = 0; i < COMMANDS; i++) {
+            final Cmd cmd = Cmd.builder("echo " + i).build();
+            final Observable<OutputHarvester.Crop> outputs = output.compose(upstream -> factory.forOutput(upstream, cmd)).toObservable().cache();
+            outputs.subscribe(s -> {}, e -> {});
+            final Observable<Harvester.Crop> errs = errors.compose(upstream -> factory.forError(upstream, cmd)).toObservable().cache();
+            errs.subscribe(s -> {}, e -> {});
+            final List<List<Harvester.Crop>> results = new ArrayList<>(1);
+            Observable.merge(outputs, errs).toList().subscribe(crops -> results.add(crops));
+            for (String write : cmd.getCommands()) session.writeLine(write, false);
+            session.writeLine("echo " + cmd.getMarker() + " $?", false);
+            session.writeLine("echo " + cmd.getMarker() + " >&2", true);
+            feed(cmd, i);
+            if (results.get(0).size() == 2) count++;
+        }
+        return count;
+    }
+
+    private long demux() {
+        final long[] count = new long[1];
+        final Pipeline pipeline = new Pipeline(session, factory, 1, new Pipeline.Listener() {
+            @Override
+            public void onResult(CmdProcessor.QueueCmd item) {
+                if (item.exitCode == Cmd.ExitCode.OK) count[0]++;
+            }
+
+            @Override
+            public void onCapacity() {
+
+            }
+        });
+        for (int i = 0; i < COMMANDS; i++) {
+            final Cmd cmd = Cmd.builder("echo " + i).build();
+            pipeline.write(new CmdProcessor.QueueCmd(cmd, null));
+            feed(cmd, i);
+        }
+        pipeline.dispose();
+        return count[0];
+    }
+
+    private interface Run {
+        long run() throws IOException;
+    }
+
+    /**
+     * @return {nanos, bytes} per command, bytes are {@code -1} if unsupported.
+     */
+    private long[] measure(Run run) throws IOException {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocations = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+        final long thread = Thread.currentThread().getId();
+        final long bytesBefore = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) assertThat(run.run(), is((long) COMMANDS));
+        final long nanos = (System.nanoTime() - start) / ROUNDS / COMMANDS;
+        final long bytes = allocations != null ? (allocations.getThreadAllocatedBytes(thread) - bytesBefore) / ROUNDS / COMMANDS : -1;
+        return new long[]{nanos, bytes};
+    }
+
+    @Test
+    public void compare() throws IOException {
+        // Warmup
+        assertThat(chain(), is((long) COMMANDS));
+        assertThat(demux(), is((long) COMMANDS));
+
+        final long[] chain = measure(this::chain);
+        final long[] demux = measure(this::demux);
+
+        Timber.i("Per command, chain: %dns, %d bytes, demux: %dns, %d bytes (%d commands)", chain[0], chain[1], demux[0], demux[1], COMMANDS);
+    }
+}
@@ -10,6 +10,7 @@ import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import io.reactivex.rxjava3.internal.subscriptions.EmptySubscription;
 import io.reactivex.rxjava3.processors.PublishProcessor;
 import io.reactivex.rxjava3.processors.ReplayProcessor;
 import io.reactivex.rxjava3.subscribers.TestSubscriber;
@@ -82,6 +83,28 @@ public class HarvesterTest extends BaseTest {
         assertThat(crop.buffer, Matchers.contains("some-output"));
     }
 
+    @Test
+    public void testDiscard_output() {
+        String uuid = UUID.randomUUID().toString();
+        when(cmd.getMarker()).thenReturn(uuid);
+        when(cmd.isOutputBufferEnabled()).thenReturn(true);
+
+        TestSubscriber<OutputHarvester.Crop> testSubscriber = new TestSubscriber<>();
+        OutputHarvester.OutputSub sub = harvesterFactory.outputSub(testSubscriber, cmd);
+        sub.onSubscribe(EmptySubscription.INSTANCE);
+
+        sub.onNext("before");
+        sub.discard();
+        sub.onNext("after");
+        sub.onNext(uuid + " 3");
+
+        testSubscriber.assertValueCount(1).assertComplete();
+        OutputHarvester.Crop crop = testSubscriber.values().get(0);
+        assertThat(crop.buffer.size(), is(0));
+        assertThat(crop.exitCode, is(3));
+        assertThat(crop.isComplete, is(true));
+    }
+
     @Test
     public void testBuffers_error() {
         String uuid = UUID.randomUUID().toString();
@@ -0,0 +1,66 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import testtools.BaseTest;
+import testtools.TestHelper;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+/**
+ * Fast read-only commands on a pool whose sessions stall now and then, with and without {@link Hedging}.
+ * <p>The stalls are commands submitted to a session directly, so the pool's routing doesn't see them, like a shell that is slow for reasons of its own.
+ */
+public class HedgingBenchmark extends BaseTest {
+    private static final int SESSIONS = 3;
+    private static final int COMMANDS = 300;
+    private static final long STALL_EVERY_MS = 500;
+    private static final String STALL = "sleep 0.2";
+
+    @Before
+    public void setup() throws Exception {
+        TestHelper.assumeBenchmark();
+        super.setup();
+    }
+
+    private RxCmdShellPool.Stats run(Hedging hedging) {
+        final RxCmdShellPool pool = RxCmdShellPool.builder(RxCmdShell.builder())
+                .minSessions(SESSIONS).maxSessions(SESSIONS)
+                .hedge(hedging)
+                .build();
+        // Warmup, also opens the sessions
+        for (int i = 0; i < 50; i++) pool.submit(Cmd.builder("true").build()).blockingGet();
+
+        final Random random = new Random(42);
+        final Disposable stalls = Observable.interval(STALL_EVERY_MS, TimeUnit.MILLISECONDS).subscribe(tick -> {
+            final RxCmdShellPool.Member member = pool.members.get(random.nextInt(pool.members.size()));
+            if (member.isOpen()) member.session.submit(Cmd.builder(STALL).build()).subscribe();
+        });
+        for (int i = 0; i < COMMANDS; i++) {
+            final Cmd.Result result = pool.submit(Cmd.builder("sleep 0.01", "echo " + i).idempotent(true).build()).blockingGet();
+            assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+        }
+        stalls.dispose();
+        final RxCmdShellPool.Stats stats = pool.getStats();
+        pool.cancel().blockingAwait(5, TimeUnit.SECONDS);
+        return stats;
+    }
+
+    @Test
+    public void compare() {
+        final RxCmdShellPool.Stats before = run(null);
+        final RxCmdShellPool.Stats after = run(Hedging.percentile(90, 5, TimeUnit.MILLISECONDS));
+        Timber.i("Without hedging: p50=%dus, p99=%dus", before.getLatencyP50(TimeUnit.MICROSECONDS), before.getLatencyP99(TimeUnit.MICROSECONDS));
+        Timber.i("With hedging: p50=%dus, p99=%dus, hedged=%d, won=%d (%d commands)",
+                after.getLatencyP50(TimeUnit.MICROSECONDS), after.getLatencyP99(TimeUnit.MICROSECONDS),
+                after.getHedged(), after.getHedgeWins(), COMMANDS);
+    }
+}
@@ -0,0 +1,54 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.processors.PublishProcessor;
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class HedgingTest extends BaseTest {
+
+    @Test
+    public void testAccepts() {
+        final Hedging hedging = Hedging.after(1, TimeUnit.SECONDS);
+        assertThat(hedging.accepts(Cmd.builder("ls").build()), is(false));
+        assertThat(hedging.accepts(Cmd.builder("ls").idempotent(true).build()), is(true));
+        assertThat(hedging.accepts(Cmd.builder("ls").idempotent(true).outputProcessor(PublishProcessor.create()).build()), is(false));
+        assertThat(hedging.accepts(Cmd.builder("ls").idempotent(true).errorCallback(line -> { }).build()), is(false));
+        assertThat(hedging.accepts(Cmd.builder("ls").idempotent(true).interruptible(true).build()), is(false));
+    }
+
+    @Test
+    public void testDelay_fixed() {
+        final LatencyWindow latencies = new LatencyWindow();
+        assertThat(Hedging.after(5, TimeUnit.MILLISECONDS).delayNanos(latencies), is(TimeUnit.MILLISECONDS.toNanos(5)));
+    }
+
+    @Test
+    public void testDelay_percentile() {
+        final LatencyWindow latencies = new LatencyWindow();
+        final Hedging hedging = Hedging.percentile(90);
+        for (int i = 1; i < Hedging.MIN_SAMPLES; i++) latencies.record(i);
+        // Not enough samples yet
+        assertThat(hedging.delayNanos(latencies), is(-1L));
+
+        latencies.record(Hedging.MIN_SAMPLES);
+        assertThat(hedging.delayNanos(latencies), is(18L));
+        // Floor
+        assertThat(Hedging.percentile(90, 100, TimeUnit.NANOSECONDS).delayNanos(latencies), is(100L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentile_invalid() {
+        Hedging.percentile(101);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDelay_negative() {
+        Hedging.after(-1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,34 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LatencyWindowTest extends BaseTest {
+
+    @Test
+    public void testPercentile() {
+        final LatencyWindow window = new LatencyWindow();
+        assertThat(window.percentile(99), is(0L));
+        for (int i = 100; i >= 1; i--) window.record(i);
+        assertThat(window.size(), is(100));
+        assertThat(window.percentile(50), is(50L));
+        assertThat(window.percentile(99), is(99L));
+        assertThat(window.percentile(100), is(100L));
+        assertThat(window.percentile(0), is(1L));
+    }
+
+    @Test
+    public void testWindow() {
+        final LatencyWindow window = new LatencyWindow(10);
+        for (int i = 0; i < 10; i++) window.record(1000);
+        assertThat(window.percentile(50), is(1000L));
+        // Older samples drop out, once the sorted copy is stale
+        for (int i = 0; i < 16; i++) window.record(1);
+        assertThat(window.size(), is(10));
+        assertThat(window.percentile(100), is(1L));
+    }
+}
@@ -0,0 +1,82 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MarkerMatcherTest extends BaseTest {
+
+    @Test
+    public void testIndexOf() {
+        final String marker = UUID.randomUUID().toString();
+        final MarkerMatcher matcher = new MarkerMatcher(marker);
+        assertThat(matcher.indexOf(""), is(-1));
+        assertThat(matcher.indexOf("short"), is(-1));
+        assertThat(matcher.indexOf(marker), is(0));
+        assertThat(matcher.indexOf(marker + " 0"), is(0));
+        assertThat(matcher.indexOf("content" + marker + " 0"), is(7));
+        assertThat(matcher.indexOf("äöü€" + marker), is(4));
+        assertThat(matcher.indexOf(marker.substring(1) + marker), is(marker.length() - 1));
+        assertThat(matcher.indexOf(marker, 1), is(-1));
+        assertThat(matcher.indexOf(new StringBuilder("xx").append(marker)), is(2));
+    }
+
+    @Test
+    public void testIndexOf_matchesStringIndexOf() {
+        final Random random = new Random(1337);
+        final String marker = "abcab";
+        final MarkerMatcher matcher = new MarkerMatcher(marker);
+        final char[] alphabet = new char[]{'a', 'b', 'c', 'ö'};
+        for (int run = 0; run < 10000; run++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(20);
+            for (int i = 0; i < length; i++) sb.append(alphabet[random.nextInt(alphabet.length)]);
+            final String text = sb.toString();
+            assertThat(text, matcher.indexOf(text), is(text.indexOf(marker)));
+
+            final byte[] bytes = ("xx" + text).getBytes(StandardCharsets.UTF_8);
+            final String decoded = new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_8);
+            final int byteIndex = matcher.indexOf(bytes, 2, bytes.length - 2);
+            if (decoded.contains(marker)) {
+                assertThat(new String(bytes, byteIndex, marker.length(), StandardCharsets.UTF_8), is(marker));
+            } else {
+                assertThat(byteIndex, is(-1));
+            }
+        }
+    }
+
+    @Test
+    public void testParseExitCode() {
+        final String marker = UUID.randomUUID().toString();
+        final MarkerMatcher matcher = new MarkerMatcher(marker);
+        assertThat(matcher.parseExitCode(marker + " 0", 0), is(0));
+        assertThat(matcher.parseExitCode(marker + " 255", 0), is(255));
+        assertThat(matcher.parseExitCode(marker + " -1", 0), is(-1));
+        assertThat(matcher.parseExitCode(marker + " +3", 0), is(3));
+        assertThat(matcher.parseExitCode("abc" + marker + " 127", 3), is(127));
+        assertThat(matcher.parseExitCode(marker + " " + Integer.MAX_VALUE, 0), is(Integer.MAX_VALUE));
+        assertThat(matcher.parseExitCode(marker + " " + Integer.MIN_VALUE, 0), is(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void testParseExitCode_invalid() {
+        final String marker = UUID.randomUUID().toString();
+        final MarkerMatcher matcher = new MarkerMatcher(marker);
+        for (String invalid : new String[]{"", " ", " -", " +", " 1a", " &/()", " 2147483648", " -2147483649", " 1 "}) {
+            try {
+                matcher.parseExitCode(marker + invalid, 0);
+                throw new AssertionError("Should have failed: " + invalid);
+            } catch (NumberFormatException ignore) { }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import eu.darken.rxshell.shell.LineReader;
+import eu.darken.rxshell.shell.RxShell;
+import io.reactivex.rxjava3.observers.TestObserver;
+import testtools.BaseTest;
+import testtools.MockRxShellSession;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelineTest extends BaseTest {
+    MockRxShellSession mockSession;
+    RxShell.Session session;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        mockSession = new MockRxShellSession();
+        session = mockSession.getSession();
+    }
+
+    @Test
+    public void testInFlight() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+        session.isAlive().test().awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertValue(true);
+
+        final Cmd slow = Cmd.builder("sleep 500", "echo slow").build();
+        final TestObserver<Cmd.Result> slowObserver = processor.submit(slow).test();
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        final List<Cmd> cmds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Cmd cmd = Cmd.builder("echo " + i, "error e" + i).build();
+            cmds.add(cmd);
+            observers.add(processor.submit(cmd).test());
+        }
+
+        // Everything is written while the first command is still sleeping
+        verify(session, timeout(200)).writeLine("echo " + cmds.get(2).getMarker() + " >&2", true);
+        slowObserver.assertNoValues();
+
+        assertThat(slowObserver.awaitDone(2, TimeUnit.SECONDS).values().get(0).getOutput(), contains("slow"));
+        for (int i = 0; i < 3; i++) {
+            final Cmd.Result result = observers.get(i).awaitDone(1, TimeUnit.SECONDS).assertValueCount(1).values().get(0);
+            assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+            assertThat(result.getOutput(), contains(String.valueOf(i)));
+            assertThat(result.getErrors(), contains("e" + i));
+        }
+        processor.isIdle().filter(idle -> idle).test().awaitCount(1).assertValueCount(1);
+        session.close().test().awaitDone(1, TimeUnit.SECONDS).assertValue(0);
+    }
+
+    @Test
+    public void testDepth() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(2).build());
+        processor.attach(session);
+
+        processor.submit(Cmd.builder("sleep 300").build()).test();
+        processor.submit(Cmd.builder("echo 1").build()).test();
+        final Cmd third = Cmd.builder("echo 2").build();
+        final TestObserver<Cmd.Result> observer = processor.submit(third).test();
+
+        verify(session, after(150).never()).writeLine("echo 2", false);
+        verify(session, timeout(1000)).writeLine("echo 2", false);
+        assertThat(observer.awaitDone(1, TimeUnit.SECONDS).values().get(0).getOutput(), contains("2"));
+    }
+
+    @Test
+    public void testBarrier() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        processor.submit(Cmd.builder("sleep 300").build()).test();
+        final List<String> lines = new ArrayList<>();
+        final Cmd callback = Cmd.builder("echo tapped").outputCallback(line -> lines.add(line.toString())).build();
+        final TestObserver<Cmd.Result> callbackObserver = processor.submit(callback).test();
+        final TestObserver<Cmd.Result> afterObserver = processor.submit(Cmd.builder("echo after").build()).test();
+
+        verify(session, after(150).never()).writeLine("echo tapped", false);
+        callbackObserver.awaitDone(2, TimeUnit.SECONDS).assertValueCount(1);
+        verify(session, timeout(1000)).writeLine("echo after", false);
+        assertThat(afterObserver.awaitDone(1, TimeUnit.SECONDS).values().get(0).getOutput(), contains("after"));
+    }
+
+    @Test
+    public void testShellDied() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        observers.add(processor.submit(Cmd.builder("sleep 5000").build()).test());
+        observers.add(processor.submit(Cmd.builder("echo 1").build()).test());
+        observers.add(processor.submit(Cmd.builder("echo 2").build()).test());
+        verify(session, timeout(1000)).writeLine("echo 2", false);
+
+        // The shell's pipes close
+        mockSession.getOutputPub().onComplete();
+        mockSession.getErrorPub().onComplete();
+        for (TestObserver<Cmd.Result> observer : observers) {
+            observer.awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.SHELL_DIED);
+        }
+        processor.submit(Cmd.builder("echo dead").build()).test().awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.SHELL_DIED);
+    }
+
+    @Test
+    public void testTimeout() {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        final TestObserver<Cmd.Result> first = processor.submit(Cmd.builder("sleep 200").build()).test();
+        // Its timeout only starts once the first one is done
+        final TestObserver<Cmd.Result> second = processor.submit(Cmd.builder("echo 1").timeout(100).build()).test();
+        final TestObserver<Cmd.Result> third = processor.submit(Cmd.builder("sleep 5000").timeout(100).build()).test();
+
+        first.awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        second.awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        third.awaitDone(1, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.TIMEOUT);
+        session.waitFor().test().awaitDone(1, TimeUnit.SECONDS).assertValue(1);
+    }
+
+    @Test
+    public void testTimeout_isolated() throws IOException, InterruptedException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        final Cmd cmd = Cmd.builder("sleep 5000").timeout(100).isolated(true).build();
+        final TestObserver<Cmd.Result> observer = processor.submit(cmd).test();
+
+        // The shell should kill it, our timer only gives up after the grace period
+        verify(session, timeout(1000)).writeLine(startsWith("(" + LineReader.getLineSeparator() + "sleep 5000"), eq(true));
+        assertThat(observer.await(Pipeline.ISOLATION_GRACE / 2, TimeUnit.MILLISECONDS), is(false));
+        observer.awaitDone(Pipeline.ISOLATION_GRACE, TimeUnit.MILLISECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.TIMEOUT);
+        session.waitFor().test().awaitDone(1, TimeUnit.SECONDS).assertValue(1);
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(2).build());
+        processor.attach(session);
+
+        final List<Cmd> cmds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) cmds.add(Cmd.builder("echo " + i, "error e" + i).build());
+        final List<Cmd.Result> results = processor.submitAll(cmds).test().awaitDone(2, TimeUnit.SECONDS).assertComplete().values();
+
+        assertThat(results.size(), is(50));
+        for (int i = 0; i < 50; i++) {
+            assertThat(results.get(i).getCmd(), is(cmds.get(i)));
+            assertThat(results.get(i).getOutput(), contains(String.valueOf(i)));
+            assertThat(results.get(i).getErrors(), contains("e" + i));
+        }
+        // One write for everything
+        verify(session).writeLine(startsWith("echo 0" + LineReader.getLineSeparator()), eq(true));
+        verify(session, never()).writeLine(anyString(), eq(false));
+    }
+
+    @Test
+    public void testBatch_barrier() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+
+        final List<String> lines = new ArrayList<>();
+        final List<Cmd> cmds = new ArrayList<>();
+        cmds.add(Cmd.builder("echo 0").build());
+        cmds.add(Cmd.builder("echo 1").outputCallback(line -> lines.add(line.toString())).build());
+        cmds.add(Cmd.builder("echo 2").build());
+        final List<Cmd.Result> results = processor.submitAll(cmds).test().awaitDone(2, TimeUnit.SECONDS).assertComplete().values();
+
+        assertThat(results.get(0).getOutput(), contains("0"));
+        assertThat(results.get(1).getOutput().size(), is(0));
+        assertThat(lines, contains("1"));
+        assertThat(results.get(2).getOutput(), contains("2"));
+        verify(session).writeLine("echo 1", false);
+    }
+
+    @Test
+    public void testBatch_dead() {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(4).build());
+        processor.attach(session);
+        session.cancel().test().awaitDone(1, TimeUnit.SECONDS);
+        processor.isIdle().ignoreElements().blockingAwait(1, TimeUnit.SECONDS);
+
+        processor.submitAll(Arrays.asList(Cmd.builder("echo 0").build(), Cmd.builder("echo 1").build())).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValueCount(2)
+                .assertValueAt(1, result -> result.getExitCode() == Cmd.ExitCode.SHELL_DIED)
+                .assertComplete();
+        processor.submitAll(new ArrayList<>()).test().awaitDone(1, TimeUnit.SECONDS).assertNoValues().assertComplete();
+    }
+
+    @Test
+    public void testSingleDepth() throws IOException {
+        final CmdProcessor processor = new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(1).build());
+        processor.attach(session);
+        assertThat(processor.pipeline == null, is(false));
+
+        processor.submit(Cmd.builder("sleep 200").build()).test();
+        final TestObserver<Cmd.Result> observer = processor.submit(Cmd.builder("echo 1").build()).test();
+        verify(session, after(100).never()).writeLine("echo 1", false);
+        assertThat(observer.awaitDone(1, TimeUnit.SECONDS).values().get(0).getOutput(), contains("1"));
+    }
+
+    @Test
+    public void testMayCarryMarker() {
+        final Cmd cmd = Cmd.builder("echo").build();
+        assertThat(Pipeline.mayCarryMarker(cmd.getMarker() + " 0"), is(true));
+        assertThat(Pipeline.mayCarryMarker(cmd.getMarker()), is(true));
+        // Output without a trailing newline
+        assertThat(Pipeline.mayCarryMarker("tail" + cmd.getMarker() + " 1"), is(true));
+
+        assertThat(Pipeline.mayCarryMarker("line 1"), is(false));
+        assertThat(Pipeline.mayCarryMarker(cmd.getMarker().substring(1)), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDepth() {
+        new CmdProcessor(new Harvester.Factory(), CmdProcessor.Options.builder().pipelineDepth(0).build());
+    }
+}
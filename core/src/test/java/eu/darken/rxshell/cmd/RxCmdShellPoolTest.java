@@ -0,0 +1,230 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.processors.PublishProcessor;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import testtools.BaseTest;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class RxCmdShellPoolTest extends BaseTest {
+    RxCmdShellPool pool;
+
+    @After
+    public void teardown() {
+        if (pool != null) pool.cancel().blockingAwait(5, TimeUnit.SECONDS);
+    }
+
+    private void awaitOpen(int sessions) {
+        await().atMost(5, TimeUnit.SECONDS).until(() -> {
+            int open = 0;
+            for (RxCmdShellPool.Member member : pool.members) if (member.isOpen()) open++;
+            return open == sessions && pool.getSessionCount() == sessions;
+        });
+    }
+
+    @Test
+    public void testSubmit() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).build();
+        final Cmd.Result result = pool.submit(Cmd.builder("echo straw", "echo berry >&2").build()).blockingGet();
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+        assertThat(result.getOutput(), contains("straw"));
+        assertThat(result.getErrors(), contains("berry"));
+
+        final List<Cmd.Result> results = pool.submitAll(Arrays.asList(
+                Cmd.builder("cd /").build(),
+                Cmd.builder("pwd").build()
+        )).toList().blockingGet();
+        assertThat(results.get(1).getOutput(), contains("/"));
+    }
+
+    @Test
+    public void testParallel() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).minSessions(2).maxSessions(2).build();
+        awaitOpen(2);
+
+        final long start = System.currentTimeMillis();
+        final List<TestObserver<Cmd.Result>> observers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) observers.add(pool.submit(Cmd.builder("sleep 1").build()).test());
+        for (TestObserver<Cmd.Result> observer : observers) {
+            observer.awaitDone(3, TimeUnit.SECONDS).assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        }
+        // One session would take two seconds
+        assertThat(System.currentTimeMillis() - start, is(lessThan(1800L)));
+    }
+
+    @Test
+    public void testGrowth_andEviction() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder())
+                .maxSessions(3)
+                .growThreshold(1)
+                .idleTimeout(200, TimeUnit.MILLISECONDS)
+                .healthCheckInterval(50, TimeUnit.MILLISECONDS)
+                .build();
+        awaitOpen(1);
+
+        final TestObserver<Cmd.Result> first = pool.submit(Cmd.builder("sleep 1").build()).test();
+        final TestObserver<Cmd.Result> second = pool.submit(Cmd.builder("echo second").build()).test();
+        assertThat(pool.getSessionCount(), is(2));
+        awaitOpen(2);
+        // Goes to the new, idle session
+        pool.submit(Cmd.builder("echo third").build()).test()
+                .awaitDone(500, TimeUnit.MILLISECONDS)
+                .assertValue(result -> result.getOutput().contains("third"));
+        first.awaitDone(3, TimeUnit.SECONDS).assertValueCount(1);
+        second.awaitDone(3, TimeUnit.SECONDS).assertValueCount(1);
+
+        // Back to the minimum once idle
+        await().atMost(3, TimeUnit.SECONDS).until(() -> pool.getSessionCount() == 1);
+        assertThat(pool.submit(Cmd.builder("echo after").build()).blockingGet().getOutput(), contains("after"));
+    }
+
+    @Test
+    public void testReplacement() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).build();
+        awaitOpen(1);
+        final RxCmdShell.Session dying = pool.members.get(0).session;
+        dying.cancel().blockingAwait();
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> pool.members.size() == 1 && pool.members.get(0).isOpen() && pool.members.get(0).session != dying);
+        assertThat(pool.submit(Cmd.builder("echo alive").build()).blockingGet().getOutput(), contains("alive"));
+    }
+
+    @Test
+    public void testRetired_skipped() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).minSessions(2).maxSessions(2).build();
+        awaitOpen(2);
+        // Retired, but not removed yet
+        final RxCmdShellPool.Member retired = pool.members.get(0);
+        retired.retire();
+
+        for (int i = 0; i < 3; i++) {
+            pool.submit(Cmd.builder("echo " + i).build()).subscribeOn(Schedulers.io()).test()
+                    .awaitDone(3, TimeUnit.SECONDS)
+                    .assertValue(result -> result.getExitCode() == Cmd.ExitCode.OK);
+        }
+        assertThat(retired.outstanding, is(0));
+    }
+
+    @Test
+    public void testTemplate() {
+        final RxCmdShell.Builder template = RxCmdShell.builder()
+                .shellEnvironment("RXS_TEST", "pooled")
+                .standby(2)
+                .linger(1, TimeUnit.SECONDS);
+        pool = RxCmdShellPool.builder(template).minSessions(2).maxSessions(2).build();
+        template.shellEnvironment("RXS_TEST", "changed");
+        awaitOpen(2);
+
+        for (RxCmdShellPool.Member member : pool.members) {
+            assertThat(member.shell.getStandbyStats(), is(nullValue()));
+            assertThat(member.shell.lingers(), is(false));
+            assertThat(Cmd.builder("echo $RXS_TEST").execute(member.session).getOutput(), contains("pooled"));
+        }
+    }
+
+    @Test
+    public void testStats() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).build();
+        for (int i = 0; i < 5; i++) pool.submit(Cmd.builder("sleep 0.05").build()).blockingGet();
+
+        final RxCmdShellPool.Stats stats = pool.getStats();
+        assertThat(stats.getSessions(), is(1));
+        assertThat(stats.getSubmitted(), is(5L));
+        assertThat(stats.getCompleted(), is(5L));
+        assertThat(stats.getOutstanding(), is(0));
+        assertThat(stats.getBusySessions(), is(0));
+        assertThat(stats.getThroughput(), is(greaterThan(0d)));
+        assertThat(stats.getUtilization(), is(greaterThan(0d)));
+        assertThat(stats.getUtilization(), is(lessThanOrEqualTo(1d)));
+    }
+
+    @Test
+    public void testHedging() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder())
+                .minSessions(2).maxSessions(2)
+                .hedge(Hedging.after(100, TimeUnit.MILLISECONDS))
+                .build();
+        awaitOpen(2);
+
+        final TestObserver<Cmd.Result> slow = pool.submit(Cmd.builder("sleep 1").build()).test();
+        final TestObserver<Cmd.Result> brief = pool.submit(Cmd.builder("sleep 0.2").build()).test();
+        // Both sessions are busy, it queues behind "sleep 1" and the copy behind "sleep 0.2"
+        final long start = System.currentTimeMillis();
+        final Cmd.Result result = pool.submit(Cmd.builder("echo hedged").idempotent(true).build()).blockingGet();
+        assertThat(result.getOutput(), contains("hedged"));
+        assertThat(System.currentTimeMillis() - start, is(lessThan(800L)));
+
+        final RxCmdShellPool.Stats stats = pool.getStats();
+        assertThat(stats.getHedged(), is(1L));
+        assertThat(stats.getHedgeWins(), is(1L));
+        // The losing copy was dropped from its queue
+        await().atMost(3, TimeUnit.SECONDS).until(() -> pool.getStats().getOutstanding() == 0);
+        slow.assertValueCount(1);
+        brief.assertValueCount(1);
+        assertThat(pool.getStats().getLatencyP99(TimeUnit.MILLISECONDS), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void testHedging_notIdempotent() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder())
+                .minSessions(2).maxSessions(2)
+                .hedge(Hedging.after(50, TimeUnit.MILLISECONDS))
+                .build();
+        awaitOpen(2);
+
+        pool.submit(Cmd.builder("sleep 0.3").build()).blockingGet();
+        pool.submit(Cmd.builder("sleep 0.3").idempotent(true).outputProcessor(PublishProcessor.create()).build()).blockingGet();
+        assertThat(pool.getStats().getHedged(), is(0L));
+    }
+
+    @Test
+    public void testHedging_fastLoses() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder())
+                .minSessions(2).maxSessions(2)
+                .hedge(Hedging.after(100, TimeUnit.MILLISECONDS))
+                .build();
+        awaitOpen(2);
+
+        // Nothing to overtake, the copy starts on the idle session but the first attempt is ahead
+        final Cmd.Result result = pool.submit(Cmd.builder("sleep 0.3", "echo first").idempotent(true).build()).blockingGet();
+        assertThat(result.getOutput(), contains("first"));
+        final RxCmdShellPool.Stats stats = pool.getStats();
+        assertThat(stats.getHedged(), is(1L));
+        assertThat(stats.getHedgeWins(), is(0L));
+    }
+
+    @Test
+    public void testClosed() {
+        pool = RxCmdShellPool.builder(RxCmdShell.builder()).build();
+        final TestObserver<Cmd.Result> running = pool.submit(Cmd.builder("sleep 0.2", "echo done").build()).test();
+        awaitOpen(1);
+        pool.close().blockingAwait(3, TimeUnit.SECONDS);
+
+        running.assertValue(result -> result.getOutput().contains("done"));
+        assertThat(pool.getSessionCount(), is(0));
+        pool.submit(Cmd.builder("echo late").build()).test()
+                .awaitDone(1, TimeUnit.SECONDS)
+                .assertValue(result -> result.getExitCode() == Cmd.ExitCode.SHELL_DIED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_minAboveMax() {
+        RxCmdShellPool.builder(RxCmdShell.builder()).minSessions(3).maxSessions(2).build();
+    }
+}
@@ -0,0 +1,131 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.reactivex.rxjava3.core.Single;
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RxCmdShellRouterTest extends BaseTest {
+    // Stands in for a command that only works as root
+    private static final String NEEDS_ROOT = "if [ \"$RXS_SHELL\" = root ]; then echo $RXS_SHELL; else echo \"cat: /data: Permission denied\" >&2; false; fi";
+    RxCmdShell user;
+    RxCmdShell root;
+    RxCmdShellRouter router;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        user = RxCmdShell.builder().shellEnvironment("RXS_SHELL", "user").build();
+        root = RxCmdShell.builder().shellEnvironment("RXS_SHELL", "root").build();
+        router = RxCmdShellRouter.builder().user(user).root(root).build();
+    }
+
+    @After
+    public void teardown() {
+        user.cancel().blockingAwait(5, TimeUnit.SECONDS);
+        root.cancel().blockingAwait(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTagged() {
+        assertThat(router.submit(Cmd.builder("echo $RXS_SHELL").privilege(Cmd.Privilege.USER).build()).blockingGet().getOutput(), contains("user"));
+        assertThat(router.submit(Cmd.builder("echo $RXS_SHELL").privilege(Cmd.Privilege.ROOT).build()).blockingGet().getOutput(), contains("root"));
+
+        // Told to use the user shell, so that's the result
+        final Cmd.Result denied = router.submit(Cmd.builder(NEEDS_ROOT).privilege(Cmd.Privilege.USER).idempotent(true).build()).blockingGet();
+        assertThat(denied.getExitCode(), is(1));
+        assertThat(router.getStats().getEscalations(), is(0L));
+    }
+
+    @Test
+    public void testUnknown_notRepeatable() {
+        assertThat(router.submit(Cmd.builder("echo $RXS_SHELL").build()).blockingGet().getOutput(), contains("root"));
+        assertThat(router.getStats().getUserRuns(), is(0L));
+    }
+
+    @Test
+    public void testUnknown_repeatable() {
+        assertThat(router.submit(Cmd.builder("echo $RXS_SHELL").idempotent(true).build()).blockingGet().getOutput(), contains("user"));
+        final RxCmdShellRouter.Stats stats = router.getStats();
+        assertThat(stats.getUserRuns(), is(1L));
+        assertThat(stats.getRootRuns(), is(0L));
+    }
+
+    @Test
+    public void testEscalation() {
+        final Cmd.Result first = router.submit(Cmd.builder(NEEDS_ROOT).idempotent(true).build()).blockingGet();
+        assertThat(first.getExitCode(), is(Cmd.ExitCode.OK));
+        assertThat(first.getOutput(), contains("root"));
+        RxCmdShellRouter.Stats stats = router.getStats();
+        assertThat(stats.getUserRuns(), is(1L));
+        assertThat(stats.getRootRuns(), is(1L));
+        assertThat(stats.getEscalations(), is(1L));
+        assertThat(stats.getLearned(), is(1));
+
+        // Learned, straight to root
+        assertThat(router.submit(Cmd.builder(NEEDS_ROOT).idempotent(true).build()).blockingGet().getOutput(), contains("root"));
+        stats = router.getStats();
+        assertThat(stats.getUserRuns(), is(1L));
+        assertThat(stats.getRootRuns(), is(2L));
+        assertThat(stats.getEscalations(), is(1L));
+    }
+
+    @Test
+    public void testEscalation_otherFailure() {
+        final Cmd.Result result = router.submit(Cmd.builder("echo nope >&2; (exit 3)").idempotent(true).build()).blockingGet();
+        assertThat(result.getExitCode(), is(3));
+        assertThat(router.getStats().getEscalations(), is(0L));
+        assertThat(router.getStats().getLearned(), is(0));
+    }
+
+    @Test
+    public void testEscalation_exitCode() {
+        final Cmd.Result result = router.submit(Cmd.builder("[ \"$RXS_SHELL\" = root ] || (exit 126)").idempotent(true).build()).blockingGet();
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+        assertThat(router.getStats().getEscalations(), is(1L));
+    }
+
+    @Test
+    public void testEscalation_userShellFailed() {
+        final RxCmdShell failing = mock(RxCmdShell.class);
+        when(failing.open()).thenReturn(Single.error(new IOException("No shell")));
+        router = RxCmdShellRouter.builder().user(failing).root(root).build();
+        assertThat(router.submit(Cmd.builder("echo $RXS_SHELL").idempotent(true).build()).blockingGet().getOutput(), contains("root"));
+        assertThat(router.getStats().getEscalations(), is(1L));
+        // Not the command's fault
+        assertThat(router.getStats().getLearned(), is(0));
+    }
+
+    @Test
+    public void testDeniedPattern() {
+        router = RxCmdShellRouter.builder().user(user).root(root).deniedPattern(Pattern.compile("nope")).build();
+        final Cmd.Result result = router.submit(Cmd.builder("[ \"$RXS_SHELL\" = root ] || { echo nope >&2; (exit 3); }").idempotent(true).build()).blockingGet();
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+        assertThat(router.getStats().getEscalations(), is(1L));
+    }
+
+    @Test
+    public void testHistorySize() {
+        router = RxCmdShellRouter.builder().user(user).root(root).historySize(1).build();
+        router.submit(Cmd.builder(NEEDS_ROOT).idempotent(true).build()).blockingGet();
+        router.submit(Cmd.builder(NEEDS_ROOT + " # other").idempotent(true).build()).blockingGet();
+        assertThat(router.getStats().getLearned(), is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilder_sameShell() {
+        RxCmdShellRouter.builder().user(user).root(user).build();
+    }
+}
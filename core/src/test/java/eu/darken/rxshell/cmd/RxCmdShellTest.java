@@ -9,8 +9,10 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.shell.RxShell;
 import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Single;
@@ -18,7 +20,9 @@ import io.reactivex.rxjava3.core.SingleEmitter;
 import io.reactivex.rxjava3.subjects.BehaviorSubject;
 import testtools.BaseTest;
 
+import static org.awaitility.Awaitility.await;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.Mockito.doReturn;
@@ -40,6 +44,7 @@ public class RxCmdShellTest extends BaseTest {
     public void setup() throws Exception {
         super.setup();
         when(builder.getProcessorFactory()).thenReturn(commandProcessorFactory);
+        when(builder.getExecutionConfig()).thenReturn(ExecutionConfig.defaultConfig());
         when(commandProcessorFactory.create()).thenReturn(cmdProcessor);
         BehaviorSubject<Boolean> idlePub = BehaviorSubject.createDefault(true);
         when(cmdProcessor.isIdle()).thenReturn(idlePub);
@@ -91,6 +96,25 @@ public class RxCmdShellTest extends BaseTest {
         verify(rxShellSession, never()).errorLines();
     }
 
+    @Test
+    public void testOpen_dispatchExhausted() {
+        final ExecutionConfig config = ExecutionConfig.builder().dispatchThreads(2).build();
+        final RxCmdShell first = RxCmdShell.builder().executionConfig(config).build();
+        final RxCmdShell second = RxCmdShell.builder().executionConfig(config).build();
+
+        final RxCmdShell.Session session = first.open().blockingGet();
+        // Fails instead of its commands waiting for a dispatch thread forever
+        second.open().test().awaitDone(1, TimeUnit.SECONDS).assertError(RejectedExecutionException.class);
+        assertThat(Cmd.builder("echo first").execute(session).getOutput(), contains("first"));
+
+        // The thread is returned once the session ended, and we can try again
+        session.close().blockingGet();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> second.open().test().awaitDone(1, TimeUnit.SECONDS).values().size() == 1);
+        assertThat(Cmd.builder("echo second").execute(second).getOutput(), contains("second"));
+        second.close().blockingGet();
+        config.shutdown();
+    }
+
     @Test
     public void testCancel() {
         RxCmdShell shell = new RxCmdShell(builder, rxShell);
@@ -283,4 +307,78 @@ public class RxCmdShellTest extends BaseTest {
         verify(rxShellSession).close();
     }
 
+    @Test
+    public void testLinger() {
+        RxCmdShell shell = RxCmdShell.builder().linger(300, TimeUnit.MILLISECONDS).build();
+
+        assertThat(Cmd.builder("echo 1").execute(shell).getOutput(), contains("1"));
+        final RxCmdShell.Session session = shell.open().blockingGet();
+        assertThat(shell.getOneShotSpawnCount(), is(1L));
+        shell.close().blockingGet();
+
+        for (int i = 0; i < 3; i++) Cmd.builder("echo " + i).execute(shell);
+        assertThat(shell.getOneShotSpawnCount(), is(2L));
+        assertThat(shell.getOneShotReuseCount(), is(2L));
+        assertThat(shell.isAlive().blockingGet(), is(true));
+        assertThat(session.isAlive().blockingGet(), is(false));
+
+        // Reaped once idle
+        await().atMost(2, TimeUnit.SECONDS).until(() -> !shell.isAlive().blockingGet());
+        Cmd.builder("echo again").execute(shell);
+        assertThat(shell.getOneShotSpawnCount(), is(3L));
+        shell.cancel().blockingAwait();
+    }
+
+    @Test
+    public void testLinger_oneShotWhileReaping() {
+        RxCmdShell shell = RxCmdShell.builder().linger(1, TimeUnit.HOURS).build();
+        Cmd.builder("echo 1").execute(shell);
+        final RxCmdShell.Session reaped = shell.session.blockingGet();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> {
+            synchronized (shell) {
+                return shell.oneShots == 0;
+            }
+        });
+
+        // The linger time ran out, the next one-shot comes right after
+        shell.reap();
+        final Cmd.Result result = Cmd.builder("echo 2").execute(shell);
+        assertThat(result.getExitCode(), is(Cmd.ExitCode.OK));
+        assertThat(result.getOutput(), contains("2"));
+        assertThat(shell.getOneShotSpawnCount(), is(2L));
+        assertThat(shell.getOneShotReuseCount(), is(0L));
+
+        // The new session lingers and is reaped too
+        await().atMost(2, TimeUnit.SECONDS).until(() -> !reaped.isAlive().blockingGet());
+        assertThat(shell.isAlive().blockingGet(), is(true));
+        await().atMost(1, TimeUnit.SECONDS).until(() -> {
+            synchronized (shell) {
+                return shell.oneShots == 0;
+            }
+        });
+        shell.reap();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> !shell.isAlive().blockingGet());
+    }
+
+    @Test
+    public void testLinger_explicitOpen() throws InterruptedException {
+        RxCmdShell shell = RxCmdShell.builder().linger(100, TimeUnit.MILLISECONDS).build();
+        Cmd.builder("echo 1").execute(shell);
+        // Now it's ours, one-shots don't close it anymore
+        final RxCmdShell.Session session = shell.open().blockingGet();
+        Cmd.builder("echo 2").execute(shell);
+        Thread.sleep(400);
+        assertThat(session.isAlive().blockingGet(), is(true));
+        assertThat(shell.getOneShotReuseCount(), is(1L));
+        shell.close().blockingGet();
+    }
+
+    @Test
+    public void testOneShot_noLinger() {
+        RxCmdShell shell = RxCmdShell.builder().build();
+        Cmd.builder("echo 1").execute(shell);
+        Cmd.builder("echo 2").execute(shell);
+        assertThat(shell.getOneShotSpawnCount(), is(2L));
+        assertThat(shell.isAlive().blockingGet(), is(false));
+    }
 }
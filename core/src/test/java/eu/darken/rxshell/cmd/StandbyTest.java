@@ -0,0 +1,92 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import testtools.BaseTest;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class StandbyTest extends BaseTest {
+    RxCmdShell shell;
+
+    @After
+    public void teardown() {
+        if (shell == null) return;
+        shell.closeStandby().blockingAwait(5, TimeUnit.SECONDS);
+        shell.cancel().blockingAwait(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testHit() {
+        shell = RxCmdShell.builder().shellEnvironment("RXS_TEST", "warm").standby(1).build();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> shell.getStandbyStats().getReady() == 1);
+
+        final RxCmdShell.Session first = shell.open().blockingGet();
+        assertThat(shell.getStandbyStats().getHits(), is(1L));
+        // The environment was set while it waited
+        assertThat(Cmd.builder("echo $RXS_TEST").execute(first).getOutput(), contains("warm"));
+        // Replaced right away
+        await().atMost(5, TimeUnit.SECONDS).until(() -> shell.getStandbyStats().getReady() == 1);
+
+        // Also after the session died
+        first.cancel().blockingAwait();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> !shell.isAlive().blockingGet());
+        final RxCmdShell.Session second = shell.open().blockingGet();
+        assertThat(second, is(not(first)));
+        assertThat(shell.getStandbyStats().getHits(), is(2L));
+        assertThat(shell.getStandbyStats().getMisses(), is(0L));
+        assertThat(Cmd.builder("echo second").execute(second).getOutput(), contains("second"));
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> shell.getStandbyStats().getOpens() == 3);
+        final StandbyStats stats = shell.getStandbyStats();
+        assertThat(stats.getMaxOpenLatency(TimeUnit.NANOSECONDS), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void testBuilderChangedLater() {
+        final RxCmdShell.Builder builder = RxCmdShell.builder().shellEnvironment("RXS_TEST", "warm").standby(1);
+        shell = builder.build();
+        builder.shellEnvironment("RXS_TEST", "changed").standby(2);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> shell.getStandbyStats().getReady() == 1);
+        final RxCmdShell.Session first = shell.open().blockingGet();
+        assertThat(Cmd.builder("echo $RXS_TEST").execute(first).getOutput(), contains("warm"));
+
+        // The replacement is built from the same snapshot
+        await().atMost(5, TimeUnit.SECONDS).until(() -> shell.getStandbyStats().getReady() == 1);
+        first.cancel().blockingAwait();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> !shell.isAlive().blockingGet());
+        final RxCmdShell.Session second = shell.open().blockingGet();
+        assertThat(Cmd.builder("echo $RXS_TEST").execute(second).getOutput(), contains("warm"));
+        assertThat(shell.getStandbyStats().getHits(), is(2L));
+    }
+
+    @Test
+    public void testMiss() {
+        shell = RxCmdShell.builder().standby(1).build();
+        shell.closeStandby().blockingAwait(5, TimeUnit.SECONDS);
+
+        final RxCmdShell.Session session = shell.open().blockingGet();
+        assertThat(Cmd.builder("echo cold").execute(session).getOutput(), contains("cold"));
+        final StandbyStats stats = shell.getStandbyStats();
+        assertThat(stats.getHits(), is(0L));
+        assertThat(stats.getMisses(), is(1L));
+        assertThat(stats.getReady(), is(0));
+    }
+
+    @Test
+    public void testDisabled() {
+        shell = RxCmdShell.builder().build();
+        assertThat(shell.getStandbyStats(), is(nullValue()));
+        shell.closeStandby().test().assertComplete();
+    }
+}
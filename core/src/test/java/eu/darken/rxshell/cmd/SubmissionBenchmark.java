@@ -0,0 +1,123 @@
+package eu.darken.rxshell.cmd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import testtools.BaseTest;
+import testtools.TestHelper;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+/**
+ * Many threads submitting to one session at once, measured at the hand-off to the dispatcher.
+ * <p>"locked" is how {@link CmdProcessor} used to queue: a monitor around the dead-check and a {@link LinkedBlockingDeque}.
+ * "lock-free" is the {@link CmdQueue} with the volatile dead-check.
+ */
+public class SubmissionBenchmark extends BaseTest {
+    private static final int THREADS = 32;
+    private static final int SUBMISSIONS = 50_000;
+    private static final int ROUNDS = 5;
+    private final Object lock = new Object();
+    private volatile boolean dead = false;
+
+    @Before
+    public void setup() throws Exception {
+        TestHelper.assumeBenchmark();
+        super.setup();
+    }
+
+    private interface Queue {
+        void submit(CmdProcessor.QueueCmd item);
+
+        CmdProcessor.QueueCmd take() throws InterruptedException;
+    }
+
+    private Queue locked() {
+        final LinkedBlockingDeque<CmdProcessor.QueueCmd> deque = new LinkedBlockingDeque<>();
+        return new Queue() {
+            @Override
+            public void submit(CmdProcessor.QueueCmd item) {
+                synchronized (lock) {
+                    if (!dead) deque.add(item);
+                }
+            }
+
+            @Override
+            public CmdProcessor.QueueCmd take() throws InterruptedException {
+                return deque.take();
+            }
+        };
+    }
+
+    private Queue lockFree() {
+        final CmdQueue queue = new CmdQueue(item -> { });
+        return new Queue() {
+            @Override
+            public void submit(CmdProcessor.QueueCmd item) {
+                if (!dead) queue.offer(item);
+            }
+
+            @Override
+            public CmdProcessor.QueueCmd take() throws InterruptedException {
+                return queue.take();
+            }
+        };
+    }
+
+    /**
+     * @return nanoseconds until the consumer got all items.
+     */
+    private long run(Queue queue) throws InterruptedException {
+        final Cmd cmd = Cmd.builder("echo").build();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < SUBMISSIONS; i++) queue.submit(new CmdProcessor.QueueCmd(cmd, null));
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        long taken = 0;
+        while (taken < (long) THREADS * SUBMISSIONS) {
+            queue.take();
+            taken++;
+        }
+        final long duration = System.nanoTime() - begin;
+        for (Thread producer : producers) producer.join();
+        assertThat(taken, is((long) THREADS * SUBMISSIONS));
+        return duration;
+    }
+
+    @Test
+    public void compare() throws InterruptedException {
+        // Warmup
+        run(locked());
+        run(lockFree());
+
+        long locked = 0;
+        long lockFree = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            locked += run(locked());
+            lockFree += run(lockFree());
+        }
+        final long total = (long) ROUNDS * THREADS * SUBMISSIONS;
+        Timber.i("Per submission, locked: %dns, lock-free: %dns (%d threads, %d submissions each)",
+                locked / total, lockFree / total, THREADS, SUBMISSIONS);
+    }
+}
@@ -0,0 +1,78 @@
+package eu.darken.rxshell.exec;
+
+import org.junit.Test;
+
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ExecutionConfigTest extends BaseTest {
+
+    @Test
+    public void testDefault() {
+        ExecutionConfig config = ExecutionConfig.defaultConfig();
+        assertThat(config.getReaderScheduler(), is(Schedulers.io()));
+        assertThat(config.getDispatchScheduler(), is(Schedulers.io()));
+        assertThat(config.getDeliveryScheduler(), is(nullValue()));
+        assertThat(config.getExecutors(), is(empty()));
+        assertThat(config.getStats(), is(empty()));
+    }
+
+    @Test
+    public void testPools() {
+        ExecutionConfig config = ExecutionConfig.builder()
+                .readerThreads(8)
+                .dispatchThreads(3)
+                .deliveryThreads(1)
+                .build();
+
+        assertThat(config.getExecutors().size(), is(3));
+        assertThat(config.getReaderScheduler(), is(config.getExecutors().get(0).getScheduler()));
+        assertThat(config.getDispatchScheduler(), is(config.getExecutors().get(1).getScheduler()));
+        assertThat(config.getDeliveryScheduler(), is(config.getExecutors().get(2).getScheduler()));
+
+        assertThat(config.getStats().get(0).getName(), is("rxshell-reader"));
+        assertThat(config.getStats().get(0).getMaxThreads(), is(8));
+        assertThat(config.getStats().get(1).getName(), is("rxshell-dispatch"));
+        assertThat(config.getStats().get(2).getName(), is("rxshell-delivery"));
+        config.shutdown();
+    }
+
+    @Test
+    public void testReserveDispatch() {
+        ExecutionConfig config = ExecutionConfig.builder().dispatchThreads(3).build();
+        // One thread stays free
+        assertThat(config.reserveDispatch(), is(true));
+        assertThat(config.reserveDispatch(), is(true));
+        assertThat(config.reserveDispatch(), is(false));
+        config.releaseDispatch();
+        assertThat(config.reserveDispatch(), is(true));
+        config.shutdown();
+
+        // Unbounded
+        assertThat(ExecutionConfig.defaultConfig().reserveDispatch(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDispatchThreads_invalid() {
+        ExecutionConfig.builder().dispatchThreads(1);
+    }
+
+    @Test
+    public void testCustomSchedulers() {
+        ExecutionConfig config = ExecutionConfig.builder()
+                .readerScheduler(Schedulers.newThread())
+                .dispatchScheduler(Schedulers.single())
+                .deliveryScheduler(Schedulers.computation())
+                .build();
+        assertThat(config.getReaderScheduler(), is(Schedulers.newThread()));
+        assertThat(config.getDispatchScheduler(), is(Schedulers.single()));
+        assertThat(config.getDeliveryScheduler(), is(Schedulers.computation()));
+        assertThat(config.getExecutors(), is(empty()));
+    }
+}
@@ -0,0 +1,88 @@
+package eu.darken.rxshell.exec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.darken.rxshell.cmd.Cmd;
+import eu.darken.rxshell.cmd.RxCmdShell;
+import eu.darken.rxshell.pump.Pump;
+import io.reactivex.rxjava3.core.Single;
+import testtools.BaseTest;
+import testtools.TestHelper;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Platform threads and heap used by many idle {@code sh} sessions.
+ * <p>Thread counts include the JVM's own process reaper threads.
+ * Idle pool threads survive between runs, so "started" is the more reliable number when running all modes at once.
+ * <p>{@code -Drxshell.benchmark.sessions=N} changes the number of sessions, the default is 1000.
+ */
+public class SessionFootprintBenchmark extends BaseTest {
+    private static final int SESSIONS = Integer.getInteger("rxshell.benchmark.sessions", 1000);
+
+    @Before
+    public void setup() throws Exception {
+        TestHelper.assumeBenchmark();
+        super.setup();
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void measure(String label, RxCmdShell.Builder builder) {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final int threadsBefore = threadBean.getThreadCount();
+        final long startedBefore = threadBean.getTotalStartedThreadCount();
+        final long heapBefore = usedHeap();
+        final long start = System.nanoTime();
+
+        final List<Single<RxCmdShell.Session>> opens = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) opens.add(builder.build().open());
+        final List<RxCmdShell.Session> sessions = Single.merge(opens).toList().blockingGet();
+        for (RxCmdShell.Session session : sessions) {
+            assertThat(Cmd.builder("echo ok").execute(session).getExitCode(), is(Cmd.ExitCode.OK));
+        }
+        final long openMillis = (System.nanoTime() - start) / 1000000;
+
+        final int threads = threadBean.getThreadCount() - threadsBefore;
+        final long started = threadBean.getTotalStartedThreadCount() - startedBefore;
+        final long heap = usedHeap() - heapBefore;
+
+        for (RxCmdShell.Session session : sessions) session.close().blockingGet();
+
+        Timber.i("%s: %d sessions, %d platform threads (%.2f per session, %d started), %d KB heap (%.1f KB per session), %dms to open",
+                label, SESSIONS, threads, (float) threads / SESSIONS, started, heap / 1024, heap / 1024f / SESSIONS, openMillis);
+    }
+
+    @Test
+    public void ioPool() {
+        measure("io pool", RxCmdShell.builder());
+    }
+
+    @Test
+    public void virtualThreads() {
+        assumeTrue("Needs a Java 21+ VM", ShellExecutor.isVirtualSupported());
+        final ExecutionConfig config = ExecutionConfig.builder().virtualThreads().build();
+        measure("virtual threads", RxCmdShell.builder().executionConfig(config));
+        config.shutdown();
+    }
+
+    @Test
+    public void pump() {
+        final Pump pump = new Pump(2);
+        measure("pump", RxCmdShell.builder().pump(pump));
+        pump.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+package eu.darken.rxshell.exec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.core.Single;
+import testtools.BaseTest;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.startsWith;
+import static org.hamcrest.core.Is.is;
+
+public class ShellExecutorTest extends BaseTest {
+    ShellExecutor executor;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        executor = new ShellExecutor("test-pool", 2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new ShellExecutor("test", 0);
+    }
+
+    @Test
+    public void testThreadNames() {
+        assertThat(executor.isVirtual(), is(false));
+        final String name = Single.fromCallable(() -> Thread.currentThread().getName())
+                .subscribeOn(executor.getScheduler())
+                .blockingGet();
+        assertThat(name, startsWith("test-pool-"));
+    }
+
+    @Test
+    public void testStats() throws InterruptedException {
+        assertThat(executor.getStats().getName(), is("test-pool"));
+        assertThat(executor.getStats().getMaxThreads(), is(2));
+        assertThat(executor.getStats().getActiveThreads(), is(0));
+
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) { }
+            });
+        }
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> executor.getStats().getActiveThreads() == 2);
+        ShellExecutor.Stats stats = executor.getStats();
+        assertThat(stats.getThreads(), is(2));
+        assertThat(stats.getQueuedTasks(), is(1));
+        assertThat(stats.getUtilization(), is(1f));
+
+        release.countDown();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> executor.getStats().getCompletedTasks() == 3);
+        stats = executor.getStats();
+        assertThat(stats.getActiveThreads(), is(0));
+        assertThat(stats.getQueuedTasks(), is(0));
+        assertThat(stats.getLargestThreads(), is(2));
+        assertThat(stats.getUtilization(), is(0f));
+    }
+
+    @Test
+    public void testReserve() {
+        assertThat(executor.tryReserve(1), is(true));
+        assertThat(executor.tryReserve(2), is(false));
+        assertThat(executor.tryReserve(1), is(true));
+        assertThat(executor.tryReserve(1), is(false));
+        executor.release(2);
+        assertThat(executor.tryReserve(2), is(true));
+    }
+
+    @Test
+    public void testVirtual() {
+        if (!ShellExecutor.isVirtualSupported()) {
+            try {
+                ShellExecutor.virtual("test-virtual");
+                throw new AssertionError();
+            } catch (UnsupportedOperationException ignored) { }
+            return;
+        }
+
+        final ShellExecutor virtual = ShellExecutor.virtual("test-virtual");
+        assertThat(virtual.isVirtual(), is(true));
+        final String name = Single.fromCallable(() -> Thread.currentThread().getName())
+                .subscribeOn(virtual.getScheduler())
+                .blockingGet();
+        assertThat(name, startsWith("test-virtual-"));
+        assertThat(virtual.getStats().getMaxThreads(), is(Integer.MAX_VALUE));
+        virtual.shutdown();
+    }
+}
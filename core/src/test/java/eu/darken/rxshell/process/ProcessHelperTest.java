@@ -6,6 +6,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.concurrent.TimeUnit;
+
 import eu.darken.rxshell.extra.ApiWrap;
 import testtools.BaseTest;
 
@@ -13,6 +15,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -39,4 +43,31 @@ public class ProcessHelperTest extends BaseTest {
         assertThat(ProcessHelper.isAlive(process), is(false));
     }
 
+    @Test
+    public void testExitWatch_legacy() throws InterruptedException {
+        ApiWrap.setSDKInt(21);
+        doThrow(new IllegalThreadStateException()).when(process).exitValue();
+        final ProcessHelper.ExitWatch watch = new ProcessHelper.ExitWatch(process);
+        assertThat(watch.hasExited(), is(false));
+        // Throttled, no further exception
+        assertThat(watch.hasExited(), is(false));
+        verify(process, times(1)).exitValue();
+
+        doReturn(0).when(process).exitValue();
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(ProcessHelper.ExitWatch.LEGACY_INTERVAL_NANOS) + 1);
+        assertThat(watch.hasExited(), is(true));
+        assertThat(watch.hasExited(), is(true));
+        verify(process, times(2)).exitValue();
+    }
+
+    @Test
+    public void testExitWatch_oreo() {
+        ApiWrap.setSDKInt(26);
+        when(process.isAlive()).thenReturn(true);
+        final ProcessHelper.ExitWatch watch = new ProcessHelper.ExitWatch(process);
+        assertThat(watch.hasExited(), is(false));
+        when(process.isAlive()).thenReturn(false);
+        assertThat(watch.hasExited(), is(true));
+    }
+
 }
@@ -10,8 +10,10 @@ import org.mockito.junit.MockitoJUnitRunner;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import eu.darken.rxshell.exec.ExecutionConfig;
 import eu.darken.rxshell.extra.ApiWrap;
 import eu.darken.rxshell.extra.RXSDebug;
 import io.reactivex.rxjava3.observers.TestObserver;
@@ -21,8 +23,10 @@ import testtools.MockProcess;
 
 import static org.awaitility.Awaitility.await;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -131,6 +135,38 @@ public class RxProcessTest extends BaseTest {
         await().atMost(2, TimeUnit.SECONDS).until(() -> mockProcesses.get(2).isAlive(), is(false));
     }
 
+    @Test
+    public void testReinit_exitedBeforeCleared() {
+        ApiWrap.setSDKInt(26);
+        RxProcess rxProcess = new RxProcess(processFactory, processKiller, "sh");
+        RxProcess.Session first = rxProcess.open().test().awaitCount(1).assertNoErrors().values().get(0);
+
+        // Exited, but waitFor() hasn't returned yet
+        doReturn(false).when(mockProcesses.get(0)).isAlive();
+        RxProcess.Session second = rxProcess.open().test().awaitCount(1).assertNoErrors().values().get(0);
+        assertThat(second, is(not(first)));
+        assertThat(mockProcesses.size(), is(2));
+        assertThat(rxProcess.open().test().awaitCount(1).values().get(0), is(second));
+    }
+
+    @Test
+    public void testOpen_readersExhausted() {
+        final ExecutionConfig config = ExecutionConfig.builder().readerThreads(4).build();
+        RxProcess first = new RxProcess(processFactory, processKiller, null, config, "sh");
+        RxProcess second = new RxProcess(processFactory, processKiller, null, config, "sh");
+
+        RxProcess.Session session = first.open().test().awaitCount(1).assertNoErrors().values().get(0);
+        // Fails instead of waiting for a reader thread forever
+        second.open().test().awaitDone(1, TimeUnit.SECONDS).assertError(RejectedExecutionException.class);
+        assertThat(mockProcesses.size(), is(1));
+
+        // Threads are returned once the session ended, and we can try again
+        session.destroy().test().awaitDone(1, TimeUnit.SECONDS).assertNoErrors();
+        await().atMost(2, TimeUnit.SECONDS).until(() -> !first.isAlive().blockingGet());
+        second.open().test().awaitCount(1).assertNoErrors().values().get(0).destroy().test().awaitDone(1, TimeUnit.SECONDS);
+        config.shutdown();
+    }
+
     @Test
     public void testDestroy() {
         RxProcess rxProcess = new RxProcess(processFactory, processKiller, "sh");
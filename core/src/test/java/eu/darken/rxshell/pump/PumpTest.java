@@ -0,0 +1,170 @@
+package eu.darken.rxshell.pump;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import testtools.BaseTest;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class PumpTest extends BaseTest {
+    Pump pump;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        pump = new Pump(2);
+    }
+
+    @After
+    public void tearDown() {
+        pump.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new Pump(0);
+    }
+
+    @Test
+    public void testTask_done() {
+        AtomicInteger runs = new AtomicInteger();
+        pump.lane().add(() -> runs.incrementAndGet() < 5 ? Pump.Task.BUSY : Pump.Task.DONE);
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> runs.get() == 5);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> pump.getTaskCount() == 0);
+        assertThat(runs.get(), is(5));
+    }
+
+    @Test
+    public void testTask_error_removes() {
+        pump.lane().add(() -> {
+            throw new RuntimeException();
+        });
+        await().atMost(1, TimeUnit.SECONDS).until(() -> pump.getTaskCount() == 0);
+    }
+
+    @Test
+    public void testLanes_spread() {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Set<String> threads = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            Pump.Lane lane = pump.lane();
+            threads.add(lane.getThreadName());
+            lane.add(() -> stop.get() ? Pump.Task.DONE : Pump.Task.IDLE);
+        }
+        assertThat(threads.size(), is(2));
+        assertThat(pump.getTaskCount(), is(4));
+        assertThat(pump.getThreadCount(), is(2));
+
+        stop.set(true);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> pump.getTaskCount() == 0);
+    }
+
+    @Test
+    public void testLane_samethread() {
+        Pump.Lane lane = pump.lane();
+        Set<String> threads = new HashSet<>();
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            lane.add(() -> {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread().getName());
+                }
+                return runs.incrementAndGet() < 30 ? Pump.Task.BUSY : Pump.Task.DONE;
+            });
+        }
+        await().atMost(1, TimeUnit.SECONDS).until(() -> pump.getTaskCount() == 0);
+        assertThat(threads.size(), is(1));
+        assertThat(threads.iterator().next(), is(lane.getThreadName()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPause() {
+        new Pump(1, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testWakeup() throws InterruptedException {
+        pump.shutdown();
+        pump = new Pump(1, 1, TimeUnit.SECONDS);
+        Pump.Lane lane = pump.lane();
+        AtomicBoolean ready = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(1);
+        lane.add(() -> {
+            if (!ready.get()) return Pump.Task.IDLE;
+            done.countDown();
+            return Pump.Task.DONE;
+        });
+        // Let the pump back off to its longest pause
+        Thread.sleep(200);
+
+        ready.set(true);
+        lane.wakeup();
+        // Well before the pause would have ended
+        assertThat(done.await(50, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIdlePause() {
+        new Pump(1, 10, 5, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testIdle_backsOff() throws InterruptedException {
+        pump.shutdown();
+        pump = new Pump(1, 2, 100, TimeUnit.MILLISECONDS);
+        AtomicInteger polls = new AtomicInteger();
+        pump.lane().add(() -> {
+            polls.incrementAndGet();
+            return Pump.Task.IDLE;
+        });
+        // Quiet for longer than IDLE_AFTER_NANOS
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Pump.IDLE_AFTER_NANOS) + 500);
+
+        polls.set(0);
+        Thread.sleep(500);
+        // Polling every 2ms would be about 250
+        assertThat(polls.get() <= 10, is(true));
+    }
+
+    @Test
+    public void testEmpty_sleeps() throws InterruptedException {
+        pump.shutdown();
+        pump = new Pump(1, 2, 100, TimeUnit.MILLISECONDS);
+        Pump.Lane lane = pump.lane();
+        Thread.sleep(200);
+
+        // Sleeps without a timeout, adding a task wakes it up
+        CountDownLatch done = new CountDownLatch(1);
+        lane.add(() -> {
+            done.countDown();
+            return Pump.Task.DONE;
+        });
+        assertThat(done.await(50, TimeUnit.MILLISECONDS), is(true));
+        await().atMost(1, TimeUnit.SECONDS).until(() -> pump.getTaskCount() == 0);
+
+        CountDownLatch again = new CountDownLatch(1);
+        lane.add(() -> {
+            again.countDown();
+            return Pump.Task.DONE;
+        });
+        assertThat(again.await(50, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShutdown() {
+        pump.shutdown();
+        pump.lane();
+    }
+}
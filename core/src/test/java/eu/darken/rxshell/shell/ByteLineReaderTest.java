@@ -0,0 +1,201 @@
+package eu.darken.rxshell.shell;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import testtools.BaseTest;
+import testtools.MockInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ByteLineReaderTest extends BaseTest {
+
+    private static ByteLineReader reader(String data, String separator, int windowSize) {
+        return new ByteLineReader(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), separator, windowSize);
+    }
+
+    private static List<String> readAll(ByteLineReader reader) throws IOException {
+        final List<String> output = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            output.add(line);
+        }
+        return output;
+    }
+
+    @Test
+    public void testLineEndings_linux() throws IOException {
+        assertThat(readAll(reader("line1\r\nline2\r\nli\rne\n\n", "\n", 8192)), contains("line1\r", "line2\r", "li\rne", ""));
+    }
+
+    @Test
+    public void testLineEndings_windows() throws IOException {
+        assertThat(readAll(reader("line1\r\nline2\r\n\r\n", "\r\n", 8192)), contains("line1", "line2", ""));
+    }
+
+    @Test
+    public void testLineEndings_legacy() throws IOException {
+        assertThat(readAll(reader("line1\n\rline2\n\rli\nne\r\r", "\r", 8192)), contains("line1\n", "line2\n", "li\nne", ""));
+    }
+
+    @Test
+    public void testNoTrailingSeparator() throws IOException {
+        final ByteLineReader reader = reader("line1\nline2", "\n", 8192);
+        assertThat(readAll(reader), contains("line1", "line2"));
+        assertThat(reader.readLine(), is(nullValue()));
+    }
+
+    @Test
+    public void testCarryOver() throws IOException {
+        assertThat(readAll(reader("abcdefgh\nij\nklmnopqrstuvwxyz\n", "\n", 4)), contains("abcdefgh", "ij", "klmnopqrstuvwxyz"));
+        assertThat(readAll(reader("abc\r\ndef\r\r\n", "\r\n", 4)), contains("abc", "def\r"));
+    }
+
+    @Test
+    public void testUTF8() throws IOException {
+        // Multi-byte sequences spread over window boundaries
+        assertThat(readAll(reader("äöü\nascii\n日本語\n😀x\n", "\n", 2)), contains("äöü", "ascii", "日本語", "😀x"));
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        final byte[] data = new byte[]{'a', (byte) 0xC3, '\n', (byte) 0xFF, 'b', '\n', 'c', '\n'};
+        final List<String> expected = new ArrayList<>();
+        final LineReader lineReader = new LineReader("\n");
+        final InputStreamReader source = new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8);
+        String line;
+        while ((line = lineReader.readLine(source)) != null) expected.add(line);
+
+        assertThat(readAll(new ByteLineReader(new ByteArrayInputStream(data), "\n")), is(expected));
+    }
+
+    @Test
+    public void testMatchesLineReader() throws IOException {
+        final Random random = new Random(42);
+        final String[] tokens = new String[]{"a", "line", "ö", "€", "\r", "\n", "\r\n", " "};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) sb.append(tokens[random.nextInt(tokens.length)]);
+        final String data = sb.toString();
+
+        for (String separator : new String[]{"\n", "\r", "\r\n"}) {
+            final List<String> expected = new ArrayList<>();
+            final LineReader lineReader = new LineReader(separator);
+            final InputStreamReader source = new InputStreamReader(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+            String line;
+            while ((line = lineReader.readLine(source)) != null) expected.add(line);
+
+            assertThat(readAll(reader(data, separator, 16)), is(expected));
+        }
+    }
+
+    @Test
+    public void testLineView() throws IOException {
+        final ByteLineReader reader = reader("ascii line\näöü line\n", "\n", 4);
+
+        LineView view = reader.readLineView();
+        assertThat(view.length(), is(10));
+        assertThat(view.charAt(0), is('a'));
+        assertThat(view.subSequence(6, 10).toString(), is("line"));
+        assertThat(view.narrow(6, 10).toString(), is("line"));
+        assertThat(view.length(), is(4));
+
+        view = reader.readLineView();
+        assertThat(view.toString(), is("äöü line"));
+        assertThat(view.charAt(1), is('ö'));
+
+        assertThat(reader.readLineView(), is(nullValue()));
+    }
+
+    @Test
+    public void testPollLineView() throws IOException {
+        final MockInputStream stream = new MockInputStream();
+        final ByteLineReader reader = new ByteLineReader(stream, "\r\n", 4);
+
+        assertThat(reader.pollLineView(), is(nullValue()));
+
+        stream.queue("first\r\nsec");
+        assertThat(reader.pollLineView().toString(), is("first"));
+        assertThat(reader.pollLineView(), is(nullValue()));
+
+        stream.queue("ond\r");
+        assertThat(reader.pollLineView(), is(nullValue()));
+        stream.queue("\näö");
+        assertThat(reader.pollLineView().toString(), is("second"));
+        assertThat(reader.pollLineView(), is(nullValue()));
+
+        assertThat(reader.flushLineView().toString(), is("äö"));
+        assertThat(reader.flushLineView(), is(nullValue()));
+    }
+
+    @Test
+    public void testFlushLineView_heldBack() throws IOException {
+        final ByteLineReader reader = reader("line\r", "\r\n", 16);
+        assertThat(reader.pollLineView(), is(nullValue()));
+        assertThat(reader.flushLineView().toString(), is("line\r"));
+    }
+
+    @Test
+    public void testNoTrailingSeparator_heldBack() throws IOException {
+        // Only the last byte isn't ASCII, with "\r\n" it's held back until the end of the stream
+        final byte[] data = {'x', '\r', '\n', 'a', 'b', (byte) 0xC3};
+        for (int windowSize : new int[]{2, 3, 4, 16}) {
+            final ByteLineReader reader = new ByteLineReader(new ByteArrayInputStream(data), "\r\n", windowSize);
+            // Decoded as UTF-8, as a Latin-1 'Ã' it would pass for valid text
+            assertThat(readAll(reader), contains("x", "ab\uFFFD"));
+        }
+    }
+
+    @Test
+    public void testByteTap() throws IOException {
+        final ByteLineReader reader = reader("line1\nraw\0bytesSTOPline2\nline3\n", "\n", 4);
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        final AtomicReference<ByteTap> taps = new AtomicReference<>();
+        reader.setByteTaps(taps);
+
+        assertThat(reader.readLine(), is("line1"));
+        taps.set(new ByteTap() {
+            boolean done = false;
+
+            @Override
+            public int onBytes(byte[] buffer, int offset, int length) {
+                final String chunk = new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+                final int stop = chunk.indexOf("STOP");
+                if (stop >= 0) {
+                    done = true;
+                    raw.write(buffer, offset, stop);
+                    return stop;
+                }
+                // Hold back what could be the start of the stop word
+                final int consumable = Math.max(length - 3, 0);
+                raw.write(buffer, offset, consumable);
+                return consumable;
+            }
+
+            @Override
+            public boolean isDone() {
+                return done;
+            }
+        });
+        assertThat(reader.readLine(), is("STOPline2"));
+        assertThat(taps.get(), is(nullValue()));
+        assertThat(raw.toString("ISO-8859-1"), is("raw\0bytes"));
+        assertThat(reader.getDivertedBytes(), is(9L));
+        assertThat(reader.readLine(), is("line3"));
+        assertThat(reader.readLine(), is(nullValue()));
+    }
+}
@@ -0,0 +1,97 @@
+package eu.darken.rxshell.shell;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static testtools.StreamHelper.makeStream;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChunkedLineReaderTest extends BaseTest {
+
+    private static List<String> readAll(ChunkedLineReader reader) throws IOException {
+        final List<String> output = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            output.add(line);
+        }
+        return output;
+    }
+
+    @Test
+    public void testLineEndings_linux() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new InputStreamReader(makeStream("line1\r\nline2\r\nli\rne\n\n")), "\n");
+        assertThat(readAll(reader), contains("line1\r", "line2\r", "li\rne", ""));
+    }
+
+    @Test
+    public void testLineEndings_windows() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new InputStreamReader(makeStream("line1\r\nline2\r\n\r\n")), "\r\n");
+        assertThat(readAll(reader), contains("line1", "line2", ""));
+    }
+
+    @Test
+    public void testLineEndings_legacy() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new InputStreamReader(makeStream("line1\n\rline2\n\rli\nne\r\r")), "\r");
+        assertThat(readAll(reader), contains("line1\n", "line2\n", "li\nne", ""));
+    }
+
+    @Test
+    public void testNoTrailingSeparator() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new StringReader("line1\nline2"), "\n");
+        assertThat(readAll(reader), contains("line1", "line2"));
+        assertThat(reader.readLine(), is(nullValue()));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new StringReader(""), "\n");
+        assertThat(reader.readLine(), is(nullValue()));
+    }
+
+    @Test
+    public void testCarryOver() throws IOException {
+        // Window smaller than the lines forces carry-over and growing
+        final ChunkedLineReader reader = new ChunkedLineReader(new StringReader("abcdefgh\nij\nklmnopqrstuvwxyz\n"), "\n", 4);
+        assertThat(readAll(reader), contains("abcdefgh", "ij", "klmnopqrstuvwxyz"));
+    }
+
+    @Test
+    public void testSeparatorSplitAcrossReads() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new StringReader("abc\r\ndef\r\r\n"), "\r\n", 4);
+        assertThat(readAll(reader), contains("abc", "def\r"));
+    }
+
+    @Test
+    public void testMatchesLineReader() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("line").append(i);
+            if (i % 7 == 0) sb.append('\r');
+            sb.append(i % 13 == 0 ? "\r\n" : "\n");
+        }
+        final String data = sb.toString();
+
+        for (String separator : new String[]{"\n", "\r", "\r\n"}) {
+            final List<String> expected = new ArrayList<>();
+            final LineReader lineReader = new LineReader(separator);
+            final StringReader source = new StringReader(data);
+            String line;
+            while ((line = lineReader.readLine(source)) != null) expected.add(line);
+
+            assertThat(readAll(new ChunkedLineReader(new StringReader(data), separator, 16)), is(expected));
+        }
+    }
+}
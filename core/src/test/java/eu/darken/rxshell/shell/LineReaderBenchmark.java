@@ -0,0 +1,79 @@
+package eu.darken.rxshell.shell;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import testtools.BaseTest;
+import testtools.TestHelper;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static testtools.StreamHelper.makeStream;
+
+public class LineReaderBenchmark extends BaseTest {
+    private static final int LINES = 500_000;
+    private static final int ROUNDS = 5;
+    private String data;
+
+    @Before
+    public void setup() throws Exception {
+        TestHelper.assumeBenchmark();
+        super.setup();
+        // Roughly what 'ls -lR' looks like
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.append("-rw-r--r-- 1 root root 4096 2018-01-01 12:00 some_file_name_").append(i).append(".txt\n");
+        }
+        data = sb.toString();
+    }
+
+    private long lineReader() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(makeStream(data), StandardCharsets.UTF_8));
+        final LineReader lineReader = new LineReader("\n");
+        long count = 0;
+        while (lineReader.readLine(reader) != null) count++;
+        return count;
+    }
+
+    private long chunkedLineReader() throws IOException {
+        final ChunkedLineReader reader = new ChunkedLineReader(new InputStreamReader(makeStream(data), StandardCharsets.UTF_8), "\n");
+        long count = 0;
+        while (reader.readLine() != null) count++;
+        return count;
+    }
+
+    private long byteLineReader() throws IOException {
+        final ByteLineReader reader = new ByteLineReader(makeStream(data), "\n");
+        long count = 0;
+        while (reader.readLine() != null) count++;
+        return count;
+    }
+
+    @Test
+    public void compare() throws IOException {
+        // Warmup
+        assertThat(lineReader(), is((long) LINES));
+        assertThat(chunkedLineReader(), is((long) LINES));
+        assertThat(byteLineReader(), is((long) LINES));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) lineReader();
+        final long legacy = (System.nanoTime() - start) / ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) chunkedLineReader();
+        final long chunked = (System.nanoTime() - start) / ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) byteLineReader();
+        final long bytes = (System.nanoTime() - start) / ROUNDS;
+
+        Timber.i("LineReader: %dms, ChunkedLineReader: %dms, ByteLineReader: %dms (%d lines)", legacy / 1000000, chunked / 1000000, bytes / 1000000, LINES);
+    }
+}
@@ -0,0 +1,167 @@
+package eu.darken.rxshell.shell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.darken.rxshell.pump.Pump;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subscribers.TestSubscriber;
+import testtools.BaseTest;
+import testtools.MockInputStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.core.Is.is;
+
+public class LineStreamTest extends BaseTest {
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static ByteArrayInputStream makeLines(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append("line").append(i).append(LineReader.getLineSeparator());
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBackpressure() {
+        LineStream stream = new LineStream(makeLines(10), "test", new AtomicReference<>(), OverflowPolicy.block(100));
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test(0);
+
+        subscriber.requestMore(2);
+        subscriber.awaitCount(2);
+        assertThat(subscriber.values().size(), is(2));
+        subscriber.assertNotComplete();
+
+        subscriber.requestMore(Long.MAX_VALUE);
+        subscriber.awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertComplete();
+        assertThat(subscriber.values().size(), is(10));
+        assertThat(subscriber.values().get(9), is("line9"));
+    }
+
+    @Test
+    public void testBlock_stops_reading() throws IOException {
+        MockInputStream input = new MockInputStream();
+        LineStream stream = new LineStream(input, "test", new AtomicReference<>(), OverflowPolicy.block(2));
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test(0);
+
+        for (int i = 0; i < 3; i++) input.queue("line" + i + LineReader.getLineSeparator());
+        // Two buffered, the third one waits for space
+        await().atMost(1, TimeUnit.SECONDS).until(() -> input.available() == 0);
+        input.queue("line3" + LineReader.getLineSeparator());
+        await().pollDelay(100, TimeUnit.MILLISECONDS).atMost(1, TimeUnit.SECONDS).until(() -> input.available() > 0);
+
+        subscriber.requestMore(4);
+        subscriber.awaitCount(4).assertValues("line0", "line1", "line2", "line3");
+
+        input.close();
+        subscriber.requestMore(1);
+        subscriber.awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertComplete();
+    }
+
+    @Test
+    public void testRing_drops_oldest() throws InterruptedException {
+        LineStream stream = new LineStream(makeLines(10), "test", new AtomicReference<>(), OverflowPolicy.ring(3));
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test(0);
+
+        // Give the reader time to overrun the buffer
+        Thread.sleep(200);
+        subscriber.requestMore(Long.MAX_VALUE);
+        subscriber.awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertComplete();
+        subscriber.assertValues("line7", "line8", "line9");
+    }
+
+    @Test
+    public void testSpill_keeps_everything() {
+        File dir = tempFolder.getRoot();
+        LineStream stream = new LineStream(makeLines(5000), "test", new AtomicReference<>(), OverflowPolicy.spill(10, dir));
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test(0);
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> dir.listFiles().length == 1);
+        subscriber.requestMore(1);
+        subscriber.awaitCount(1);
+
+        subscriber.requestMore(Long.MAX_VALUE);
+        subscriber.awaitDone(5, TimeUnit.SECONDS).assertNoErrors().assertComplete();
+        assertThat(subscriber.values().size(), is(5000));
+        for (int i = 0; i < 5000; i++) assertThat(subscriber.values().get(i), is("line" + i));
+        assertThat(dir.listFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testCancel_closes_stream() throws IOException {
+        MockInputStream input = new MockInputStream();
+        LineStream stream = new LineStream(input, "test", new AtomicReference<>(), OverflowPolicy.block(1));
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test(0);
+
+        input.queue("line0" + LineReader.getLineSeparator());
+        input.queue("line1" + LineReader.getLineSeparator());
+        await().atMost(1, TimeUnit.SECONDS).until(() -> input.available() == 0);
+
+        subscriber.cancel();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> input.isOpen(), is(false));
+    }
+
+    @Test
+    public void testPump() throws IOException {
+        Pump pump = new Pump(1);
+        MockInputStream input = new MockInputStream();
+        AtomicBoolean exited = new AtomicBoolean(false);
+        AtomicInteger threads = new AtomicInteger();
+        LineStream stream = new LineStream(input, "test", new AtomicReference<>(), null, OverflowPolicy.block(2), pump.lane(), exited::get, threads, new AtomicLong());
+        TestSubscriber<String> subscriber = stream.test(0);
+        assertThat(pump.getTaskCount(), is(1));
+
+        for (int i = 0; i < 4; i++) input.queue("line" + i + LineReader.getLineSeparator());
+        input.queue("last");
+
+        subscriber.requestMore(3);
+        subscriber.awaitCount(3).assertValues("line0", "line1", "line2");
+
+        exited.set(true);
+        subscriber.requestMore(Long.MAX_VALUE);
+        subscriber.awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertComplete();
+        subscriber.assertValues("line0", "line1", "line2", "line3", "last");
+
+        await().atMost(1, TimeUnit.SECONDS).until(pump::getTaskCount, is(0));
+        assertThat(threads.get(), is(0));
+        pump.shutdown();
+    }
+
+    @Test
+    public void testPump_cancel() throws IOException {
+        Pump pump = new Pump(1);
+        MockInputStream input = new MockInputStream();
+        LineStream stream = new LineStream(input, "test", new AtomicReference<>(), null, OverflowPolicy.block(2), pump.lane(), () -> false, new AtomicInteger(), new AtomicLong());
+        TestSubscriber<String> subscriber = stream.test(0);
+
+        subscriber.cancel();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> input.isOpen(), is(false));
+        await().atMost(1, TimeUnit.SECONDS).until(pump::getTaskCount, is(0));
+        pump.shutdown();
+    }
+
+    @Test
+    public void testBlocking_threadcount() throws IOException {
+        MockInputStream input = new MockInputStream();
+        AtomicInteger threads = new AtomicInteger();
+        LineStream stream = new LineStream(input, "test", new AtomicReference<>(), null, OverflowPolicy.block(2), null, null, threads, new AtomicLong());
+        TestSubscriber<String> subscriber = stream.subscribeOn(Schedulers.io(), false).test();
+
+        await().atMost(1, TimeUnit.SECONDS).until(threads::get, is(1));
+        input.close();
+        subscriber.awaitDone(1, TimeUnit.SECONDS).assertComplete();
+        await().atMost(1, TimeUnit.SECONDS).until(threads::get, is(0));
+    }
+}
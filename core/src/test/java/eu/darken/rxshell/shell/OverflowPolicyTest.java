@@ -0,0 +1,150 @@
+package eu.darken.rxshell.shell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import testtools.BaseTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class OverflowPolicyTest extends BaseTest {
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        OverflowPolicy.block(0);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        LineBuffer buffer = OverflowPolicy.block(2).createBuffer("test", new AtomicLong());
+        buffer.offer("1");
+        assertThat(buffer.isFull(), is(false));
+        buffer.offer("2");
+        assertThat(buffer.isFull(), is(true));
+
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.offer("3");
+                offered.countDown();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+        assertThat(offered.await(200, TimeUnit.MILLISECONDS), is(false));
+
+        assertThat(buffer.poll(), is("1"));
+        assertThat(offered.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(buffer.poll(), is("2"));
+        assertThat(buffer.poll(), is("3"));
+        assertThat(buffer.poll(), is(nullValue()));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testBlock_close_releases() throws Exception {
+        LineBuffer buffer = OverflowPolicy.block(1).createBuffer("test", new AtomicLong());
+        buffer.offer("1");
+
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.offer("2");
+                offered.countDown();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+        assertThat(offered.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        buffer.close();
+        assertThat(offered.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testRing() throws Exception {
+        OverflowPolicy.RingBuffer buffer = (OverflowPolicy.RingBuffer) OverflowPolicy.ring(2).createBuffer("test", new AtomicLong());
+        for (int i = 0; i < 5; i++) buffer.offer(String.valueOf(i));
+
+        assertThat(buffer.getDropped(), is(3L));
+        assertThat(buffer.poll(), is("3"));
+        assertThat(buffer.poll(), is("4"));
+        assertThat(buffer.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testRing_keep() throws Exception {
+        final AtomicLong dropped = new AtomicLong();
+        LineBuffer buffer = OverflowPolicy.ring(2, line -> line.startsWith("m")).createBuffer("test", dropped);
+        for (String line : new String[]{"0", "m1", "2", "3", "m4", "5"}) buffer.offer(line);
+
+        // Only kept lines left, so the buffer grew
+        assertThat(dropped.get(), is(3L));
+        assertThat(buffer.poll(), is("m1"));
+        assertThat(buffer.poll(), is("m4"));
+        assertThat(buffer.poll(), is("5"));
+        assertThat(buffer.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void testKeeping() throws Exception {
+        final OverflowPolicy block = OverflowPolicy.block(1);
+        assertThat(block.keeping(line -> true), is(block));
+
+        final AtomicLong dropped = new AtomicLong();
+        LineBuffer buffer = OverflowPolicy.ring(1, line -> line.equals("a")).keeping(line -> line.equals("b")).createBuffer("test", dropped);
+        for (String line : new String[]{"a", "b", "c", "d"}) buffer.offer(line);
+
+        assertThat(dropped.get(), is(1L));
+        assertThat(buffer.poll(), is("a"));
+        assertThat(buffer.poll(), is("b"));
+        assertThat(buffer.poll(), is("d"));
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        File dir = tempFolder.newFolder();
+        LineBuffer buffer = OverflowPolicy.spill(3, dir).createBuffer("test", new AtomicLong());
+        for (int i = 0; i < 10; i++) buffer.offer("line" + i + " ü");
+        assertThat(dir.listFiles().length, is(1));
+
+        for (int i = 0; i < 5; i++) assertThat(buffer.poll(), is("line" + i + " ü"));
+        // Memory has room again, but spilled lines come first
+        buffer.offer("line10 ü");
+        for (int i = 5; i < 11; i++) assertThat(buffer.poll(), is("line" + i + " ü"));
+
+        assertThat(buffer.poll(), is(nullValue()));
+        assertThat(buffer.isEmpty(), is(true));
+        assertThat(dir.listFiles(), is(emptyArray()));
+
+        // Spilling again after the file was released
+        for (int i = 0; i < 5; i++) buffer.offer("again" + i);
+        for (int i = 0; i < 5; i++) assertThat(buffer.poll(), is("again" + i));
+        assertThat(dir.listFiles(), is(emptyArray()));
+    }
+
+    @Test
+    public void testSpill_close_deletes() throws Exception {
+        File dir = tempFolder.newFolder();
+        LineBuffer buffer = OverflowPolicy.spill(1, dir).createBuffer("test", new AtomicLong());
+        for (int i = 0; i < 10; i++) buffer.offer("line" + i);
+        assertThat(dir.listFiles().length, is(1));
+
+        buffer.close();
+        assertThat(dir.listFiles(), is(emptyArray()));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+}
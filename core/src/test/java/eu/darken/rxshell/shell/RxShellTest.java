@@ -8,6 +8,7 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -124,6 +125,40 @@ public class RxShellTest extends BaseTest {
         errorObs.awaitDone(1, TimeUnit.SECONDS).assertNoErrors().assertComplete();
     }
 
+    @Test
+    public void testTap() throws IOException {
+        RxShell rxShell = new RxShell(rxProcess);
+        RxShell.Session session = rxShell.open().test().awaitCount(1).assertNoErrors().values().get(0);
+
+        TestSubscriber<String> outputObs = session.outputLines().test();
+        TestSubscriber<String> errorObs = session.errorLines().test();
+
+        final List<String> tapped = new ArrayList<>();
+        session.setOutputTap(line -> {
+            if (line.charAt(0) != 't') return false;
+            tapped.add(line.toString());
+            return true;
+        });
+        session.setErrorTap(line -> {
+            line.narrow(1, line.length());
+            return false;
+        });
+
+        outputStream.queue("tapped" + LineReader.getLineSeparator());
+        outputStream.queue("passed" + LineReader.getLineSeparator());
+        errorStream.queue("xnarrowed" + LineReader.getLineSeparator());
+
+        outputObs.awaitCount(1).assertNoErrors().assertValue("passed");
+        errorObs.awaitCount(1).assertNoErrors().assertValue("narrowed");
+        assertThat(tapped, is(Collections.singletonList("tapped")));
+
+        session.setOutputTap(null);
+        outputStream.queue("tapped" + LineReader.getLineSeparator());
+        outputObs.awaitCount(2).assertNoErrors().assertValues("passed", "tapped");
+
+        session.cancel().test().awaitDone(1, TimeUnit.SECONDS).assertComplete();
+    }
+
     @Test
     public void testOpen_error() throws IOException {
         doReturn(Single.error(new InterruptedException())).when(rxProcess).open();
@@ -0,0 +1,228 @@
+package eu.darken.rxshell.transfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.darken.rxshell.cmd.Cmd;
+import eu.darken.rxshell.cmd.RxCmdShell;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.observers.TestObserver;
+import testtools.BaseTest;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FileTransferTest extends BaseTest {
+    @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+    private RxCmdShell.Session session;
+
+    @Before
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        session = RxCmdShell.builder().build().open().blockingGet();
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        session.close().blockingGet();
+        super.tearDown();
+    }
+
+    private static byte[] randomBytes(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        final byte[] data = randomBytes(300 * 1024 + 17);
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), data);
+
+        final List<Long> progress = new ArrayList<>();
+        final FileTransfer transfer = FileTransfer.builder().chunkSize(64 * 1024).build();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FileTransfer.Stats stats = transfer.read(session, file.getPath(), Channels.newChannel(out), (transferred, total) -> {
+            assertThat(total, is((long) data.length));
+            progress.add(transferred);
+        }).blockingGet();
+
+        assertThat(out.toByteArray(), is(data));
+        assertThat(stats.getBytes(), is((long) data.length));
+        assertThat(stats.getChunks(), is(5L));
+        assertThat(stats.getChecksum(), is(notNullValue()));
+        assertThat(progress.get(progress.size() - 1), is((long) data.length));
+    }
+
+    @Test
+    public void testRead_chunkAligned() throws IOException {
+        final byte[] data = randomBytes(4096);
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), data);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FileTransfer transfer = FileTransfer.builder().chunkSize(1024).checksum(FileTransfer.Checksum.SHA256).build();
+
+        final FileTransfer.Stats stats = transfer.read(session, file.getPath(), Channels.newChannel(out)).blockingGet();
+        assertThat(out.toByteArray(), is(data));
+        assertThat(stats.getChunks(), is(4L));
+    }
+
+    @Test
+    public void testRead_missing() {
+        final FileTransfer transfer = FileTransfer.builder().build();
+        final TestObserver<FileTransfer.Stats> observer = transfer.read(session, "/nonexistant/file", Channels.newChannel(new ByteArrayOutputStream())).test();
+        observer.awaitDone(5, TimeUnit.SECONDS).assertError(IOException.class);
+    }
+
+    @Test
+    public void testRead_cancel() throws IOException {
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), randomBytes(4 * 1024 * 1024));
+        final FileTransfer transfer = FileTransfer.builder().chunkSize(1024).build();
+
+        final AtomicReference<Disposable> disposable = new AtomicReference<>();
+        final AtomicLong progressed = new AtomicLong();
+        disposable.set(transfer.read(session, file.getPath(), Channels.newChannel(new ByteArrayOutputStream()), (transferred, total) -> {
+            progressed.set(transferred);
+            if (disposable.get() != null) disposable.get().dispose();
+        }).subscribe());
+        await().until(() -> progressed.get() > 0);
+        disposable.get().dispose();
+        // The rest of the output is discarded, the session isn't blocked
+        assertThat(Cmd.builder("echo alive").execute(session).getOutput(), contains("alive"));
+        assertThat(progressed.get(), is(lessThan(4L * 1024 * 1024)));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        final byte[] data = randomBytes(500 * 1024 + 3);
+        final File source = tempFolder.newFile();
+        Files.write(source.toPath(), data);
+        final File target = new File(tempFolder.getRoot(), "it's a target");
+
+        final List<Long> progress = new ArrayList<>();
+        final FileTransfer transfer = FileTransfer.builder()
+                .chunkSize(128 * 1024)
+                .checksum(FileTransfer.Checksum.SHA1)
+                .stagingDir(tempFolder.getRoot())
+                .build();
+        final FileTransfer.Stats stats;
+        try (FileChannel channel = new FileInputStream(source).getChannel()) {
+            stats = transfer.write(session, channel, target.getPath(), (transferred, total) -> {
+                assertThat(total, is((long) data.length));
+                progress.add(transferred);
+            }).blockingGet();
+        }
+
+        assertThat(Files.readAllBytes(target.toPath()), is(data));
+        assertThat(stats.getBytes(), is((long) data.length));
+        assertThat(stats.getChunks(), is(4L));
+        assertThat(progress, contains(131072L, 262144L, 393216L, (long) data.length));
+        assertThat(tempFolder.getRoot().list().length, is(2));
+    }
+
+    @Test
+    public void testWrite_empty() throws IOException {
+        final File target = new File(tempFolder.getRoot(), "empty");
+        final FileTransfer transfer = FileTransfer.builder().stagingDir(tempFolder.getRoot()).build();
+
+        final FileTransfer.Stats stats = transfer.write(session, Channels.newChannel(new ByteArrayInputStream(new byte[0])), target.getPath()).blockingGet();
+        assertThat(stats.getBytes(), is(0L));
+        assertThat(target.length(), is(0L));
+    }
+
+    @Test
+    public void testWrite_badTarget() {
+        final FileTransfer transfer = FileTransfer.builder().stagingDir(tempFolder.getRoot()).build();
+        final TestObserver<FileTransfer.Stats> observer = transfer
+                .write(session, Channels.newChannel(new ByteArrayInputStream(randomBytes(1024))), "/nonexistant/dir/file")
+                .test();
+        observer.awaitDone(5, TimeUnit.SECONDS).assertError(IOException.class);
+        assertThat(tempFolder.getRoot().list().length, is(0));
+        assertThat(Cmd.builder("echo alive").execute(session).getOutput(), contains("alive"));
+    }
+
+    @Test
+    public void testWrite_stagingWorldWritable() throws IOException {
+        final File staging = tempFolder.newFolder("staging");
+        assertThat(staging.setWritable(true, false), is(true));
+        final File target = new File(tempFolder.getRoot(), "target");
+        final FileTransfer transfer = FileTransfer.builder().stagingDir(staging).build();
+
+        transfer.write(session, Channels.newChannel(new ByteArrayInputStream(randomBytes(1024))), target.getPath()).test()
+                .awaitDone(5, TimeUnit.SECONDS)
+                .assertError(error -> error instanceof IOException && error.getMessage().contains("world-writable"));
+        assertThat(staging.list().length, is(0));
+        assertThat(target.exists(), is(false));
+    }
+
+    @Test
+    public void testWrite_cancel() {
+        final File target = new File(tempFolder.getRoot(), "cancelled");
+        final FileTransfer transfer = FileTransfer.builder().chunkSize(1024).stagingDir(tempFolder.getRoot()).build();
+        final InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+        };
+
+        final Disposable disposable = transfer.write(session, Channels.newChannel(endless), target.getPath()).subscribe();
+        await().until(target::exists);
+        disposable.dispose();
+        await().until(() -> tempFolder.getRoot().list().length == 0);
+        assertThat(Cmd.builder("echo alive").execute(session).getOutput(), contains("alive"));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws IOException {
+        final File file = tempFolder.newFile();
+        Files.write(file.toPath(), randomBytes(1024));
+        final FileTransfer transfer = FileTransfer.builder().checksum(null).build();
+
+        final FileTransfer.Stats stats = transfer.read(session, file.getPath(), Channels.newChannel(new ByteArrayOutputStream())).blockingGet();
+        assertThat(stats.getChecksum(), is(nullValue()));
+
+        // The file changes between the copy and the verification
+        final FileTransfer verifying = FileTransfer.builder().build();
+        final TestObserver<FileTransfer.Stats> observer = verifying.read(session, file.getPath(), Channels.newChannel(new ByteArrayOutputStream()), (transferred, total) -> {
+            try {
+                Files.write(file.toPath(), randomBytes(2048));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).test();
+        observer.awaitDone(5, TimeUnit.SECONDS).assertError(FileTransfer.ChecksumException.class);
+    }
+}
@@ -1,6 +1,7 @@
 package testtools;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import eu.darken.rxshell.shell.LineReader;
@@ -68,7 +69,7 @@ public class MockRxShellSession {
             String line = invocation.getArgument(0);
             boolean flush = invocation.getArgument(1);
             Timber.d("writeLine(%s, %b)", line, flush);
-            queue.add(line);
+            queue.addAll(Arrays.asList(line.split(LineReader.getLineSeparator())));
             return null;
         }).when(session).writeLine(any(), anyBoolean());
 
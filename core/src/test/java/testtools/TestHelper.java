@@ -6,6 +6,8 @@ import java.util.List;
 
 import io.reactivex.rxjava3.plugins.RxJavaPlugins;
 
+import static org.junit.Assume.assumeTrue;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
@@ -27,4 +29,11 @@ public class TestHelper {
     public static void assertTODO() {
         assertThat("TODO", true, is(false));
     }
+
+    /**
+     * Benchmarks only run if requested, e.g. {@code ./gradlew test -Drxshell.benchmark=true}
+     */
+    public static void assumeBenchmark() {
+        assumeTrue("Benchmarks are disabled", Boolean.getBoolean("rxshell.benchmark"));
+    }
 }
@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import eu.darken.rxshell.cmd.Cmd;
 import eu.darken.rxshell.cmd.RxCmdShell;
@@ -55,7 +56,9 @@ public class SELinux {
         private final static String SELINUX_GETENFORCE_DISABLED = "Disabled";
         private final static String SELINUX_GETENFORCE_PERMISSIVE = "Permissive";
         private final static String SELINUX_GETENFORCE_ENFORCING = "Enforcing";
+        private static final long ONE_SHOT_LINGER = 1000;
         private RxCmdShell.Session session;
+        private RxCmdShell oneShotShell;
 
         public Builder() {
 
@@ -71,7 +74,9 @@ public class SELinux {
 
         private Cmd.Result trySession(Cmd.Builder cmdBuilder) {
             if (session != null) return cmdBuilder.execute(session);
-            else return cmdBuilder.execute(RxCmdShell.builder().build());
+            // Lingers, so that the commands of one build() share a shell
+            if (oneShotShell == null) oneShotShell = RxCmdShell.builder().linger(ONE_SHOT_LINGER, TimeUnit.MILLISECONDS).build();
+            return cmdBuilder.execute(oneShotShell);
         }
 
         public Single<SELinux> build() {
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -160,7 +161,9 @@ public class SuBinary {
             PATTERNMAP.put(Pattern.compile("^([0-9]*)\\W(com\\.genymotion\\.superuser)$"), Type.GENYMOTION);
         }
 
+        private static final long ONE_SHOT_LINGER = 1000;
         private RxCmdShell.Session session;
+        private RxCmdShell oneShotShell;
 
         public Builder() {
         }
@@ -175,7 +178,9 @@ public class SuBinary {
 
         private Cmd.Result trySession(Cmd.Builder cmdBuilder) {
             if (session != null) return cmdBuilder.execute(session);
-            else return cmdBuilder.execute(RxCmdShell.builder().build());
+            // Lingers, so that the commands of one build() share a shell
+            if (oneShotShell == null) oneShotShell = RxCmdShell.builder().linger(ONE_SHOT_LINGER, TimeUnit.MILLISECONDS).build();
+            return cmdBuilder.execute(oneShotShell);
         }
 
         public Single<SuBinary> build() {
@@ -188,7 +193,7 @@ public class SuBinary {
 
                 Cmd.Result versionResult = trySession(Cmd.builder("su --version"));
                 if (versionResult.getExitCode() != Cmd.ExitCode.OK && versionResult.getExitCode() != Cmd.ExitCode.EXCEPTION) {
-                    versionResult = Cmd.builder("su --V", "su -version", "su -v", "su -V").timeout(5000).execute(session);
+                    versionResult = trySession(Cmd.builder("su --V", "su -version", "su -v", "su -V").timeout(5000));
                 }
 
                 rawResult.addAll(versionResult.getOutput());